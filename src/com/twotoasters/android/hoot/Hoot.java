@@ -16,35 +16,169 @@
 
 package com.twotoasters.android.hoot;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 
-import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
 
+import android.net.Uri;
 import android.os.Build;
 import android.util.Base64;
+import android.util.Log;
 
 public class Hoot {
 
+    /** Pick the best blocking transport for the running platform. */
+    public static final int TRANSPORT_DEFAULT = 0;
+    public static final int TRANSPORT_HTTP_URL_CONNECTION = 1;
+    public static final int TRANSPORT_HTTP_CLIENT = 2;
+    /**
+     * Selector-based transport that keeps many requests in flight from a
+     * couple of threads. Plain http only; https falls back to the default.
+     */
+    public static final int TRANSPORT_NON_BLOCKING = 3;
+    /**
+     * Multiplexes every request to a host over one HTTP/2 connection. https
+     * hosts need ALPN support from the platform; plain http hosts are assumed
+     * to speak h2c. Hosts without HTTP/2 fall back to the default.
+     */
+    public static final int TRANSPORT_HTTP2 = 4;
+
+    /**
+     * Make a transport selectable with {@link #setTransportType(int)}. The
+     * built-in TRANSPORT_ types can be replaced this way too, e.g. to wrap
+     * them with instrumentation.
+     * 
+     * @param transportType the id to register the factory under.
+     */
+    public static void registerTransportFactory(int transportType,
+            HootTransportFactory factory) {
+        synchronized (sTransportFactories) {
+            sTransportFactories.put(transportType, factory);
+        }
+    }
+
     public static Hoot createInstanceWithBaseUrl(String baseUrl) {
         return new Hoot(baseUrl);
     }
 
-    public HootRequest createRequest() {
-        synchronized (this) {
-            if (mTransport == null) {
-                setupTransport();
-            }
+    /**
+     * Same as <code>createInstanceWithBaseUrl(baseUrl).prewarm(connections)</code>,
+     * so the default transport is used. To prewarm another transport, set it
+     * up first and call {@link #prewarm(int)} yourself.
+     */
+    public static Hoot createInstanceWithBaseUrl(String baseUrl,
+            int prewarmConnections) {
+        return createInstanceWithBaseUrl(baseUrl).prewarm(prewarmConnections);
+    }
+
+    /**
+     * Open connections to the base URL's host in the background: resolve it,
+     * connect and complete TLS handshakes, then park the connections in the
+     * transport's pool so the first requests don't pay for setup. Sets up the
+     * transport, so configure it before calling this.
+     * <p>
+     * HttpURLConnection keeps its pool to itself, so that transport fills it
+     * by sending HEAD requests to the base URL, all at once, and letting
+     * their connections go back to the pool.
+     * 
+     * @param connections how many connections to open, capped at the per
+     *            host maximum.
+     * @throws IllegalStateException if there's no base URL with a host.
+     */
+    public Hoot prewarm(final int connections) {
+        final Uri uri = getBaseUri();
+        if (uri == null) {
+            throw new IllegalStateException(
+                    "Can't prewarm without a base URL with a host: " + mBaseUrl);
         }
+        final HootTransport transport = getTransport();
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mResolver.resolve(uri.getHost());
+                    if (transport instanceof HootPooledTransport) {
+                        ((HootPooledTransport) transport).prewarm(uri,
+                                Math.min(connections, mMaxConnectionsPerHost));
+                    }
+                } catch (IOException e) {
+                    Log.v(TAG, "Unable to prewarm [" + uri + "]: " + e);
+                }
+            }
+        });
+        return this;
+    }
+
+    public HootRequest createRequest() {
+        getTransport();
         return new HootRequest(this);
     }
 
     public HootResult executeRequestSynchronously(HootRequest request) {
-        synchronized (this) {
-            if (mTransport == null) {
-                setupTransport();
+        boolean foreground = mPrefetcher.onForegroundStarted(request);
+        try {
+            return execute(request);
+        } finally {
+            if (foreground) {
+                mPrefetcher.onForegroundFinished(request);
             }
         }
-        return mTransport.synchronousExecute(request);
+    }
+
+    /**
+     * Send the requests when this Hoot is otherwise idle, to have their
+     * responses in its {@link HootCache} or {@link HootResultCache} before
+     * they're asked for. They're sent one at a time, on a low priority
+     * thread, only while no other request is queued or in flight; executing
+     * another request cancels the prefetch in flight. Listeners bound to the
+     * requests are called as usual, except for cancelled prefetches.
+     */
+    public Hoot prefetch(HootRequest... requests) {
+        mPrefetcher.add(requests);
+        return this;
+    }
+
+    /**
+     * Stop prefetching once this many bytes have been received for
+     * prefetches, dropping those still queued. Unlimited by default.
+     * 
+     * @param bytes the budget, or -1 for no limit.
+     */
+    public Hoot setPrefetchBudget(long bytes) {
+        mPrefetcher.setBudget(bytes);
+        return this;
+    }
+
+    /**
+     * @return how many bytes have been received for prefetches.
+     */
+    public long getPrefetchBytes() {
+        return mPrefetcher.getBytes();
+    }
+
+    /**
+     * @return how many prefetches are queued or in flight.
+     */
+    public int getPrefetchQueueSize() {
+        return mPrefetcher.getQueueSize();
+    }
+
+    /**
+     * Drop the queued prefetches and cancel the one in flight.
+     */
+    public void cancelPrefetches() {
+        mPrefetcher.cancelAll();
     }
 
     public Hoot setBasicAuth(String username, String password) {
@@ -58,6 +192,17 @@ public class Hoot {
     	return this;
     }
 
+    /**
+     * Use this SSLContext for https instead of the one Hoot shares between
+     * instances, e.g. to trust a test server's certificate. Must be called
+     * before the first request is created.
+     */
+    public Hoot setSSLContext(SSLContext sslContext) {
+        mSSLContext = sslContext;
+        mSSLSocketFactory = null;
+        return this;
+    }
+
     public Hoot setGlobalDeserializer(HootGlobalDeserializer deserializer) {
         mGlobalDeserializer = deserializer;
         return this;
@@ -72,27 +217,310 @@ public class Hoot {
         return this;
     }
 
+    /**
+     * Enable or disable connection reuse. When enabled (the default) response
+     * bodies are drained and closed rather than disconnected so the
+     * underlying socket can be handed back to the connection pool.
+     * 
+     * @param keepAlive whether connections should be kept alive between
+     *            requests.
+     */
+    public Hoot setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of pooled connections across all hosts.
+     * 
+     * @param maxConnections the maximum number of connections.
+     */
+    public Hoot setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of pooled connections to a single host.
+     * 
+     * @param maxConnectionsPerHost the maximum number of connections per host.
+     */
+    public Hoot setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    /**
+     * Set how long an idle pooled connection is kept before it is evicted.
+     * 
+     * @param timeout the idle timeout in milliseconds.
+     */
+    public Hoot setIdleConnectionTimeout(int timeout) {
+        mIdleConnectionTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Set the resolver the transports use to look up host names. Defaults to
+     * the shared {@link HootDnsCache#getDefault()}. Must be called before the
+     * first request is created. HttpURLConnection always does its own
+     * lookup, so the resolver doesn't apply to that transport.
+     */
+    public Hoot setResolver(HootResolver resolver) {
+        mResolver = resolver;
+        return this;
+    }
+
+    public HootResolver getResolver() {
+        return mResolver;
+    }
+
+    /**
+     * Keep responses to GET requests in this cache, and answer from it when
+     * it can. Off by default.
+     */
+    public Hoot setCache(HootCache cache) {
+        mCache = cache;
+        return this;
+    }
+
+    public HootCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Keep the deserialized results of GET requests in memory, and answer
+     * repeats of them from there without going to the network. Off by
+     * default.
+     */
+    public Hoot setResultCache(HootResultCache resultCache) {
+        mResultCache = resultCache;
+        return this;
+    }
+
+    public HootResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * Run this Hoot's blocking requests on the executor, e.g. one with more
+     * threads, or one of its own so they don't wait on another Hoot's. By
+     * default Hoots share one with {@link HootExecutor}'s defaults.
+     */
+    public Hoot setExecutor(HootExecutor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    public HootExecutor getExecutor() {
+        return mExecutor != null ? mExecutor : getDefaultExecutor();
+    }
+
+    /**
+     * Let a GET or HEAD request executed while an identical one is in flight
+     * wait for that one's result rather than going to the network itself.
+     * Requests are identical if they have the same URL, headers, expected
+     * type and deserializer. If the request in flight is cancelled, one of
+     * those waiting on it is sent in its place. Off by default.
+     * <p>
+     * Every request gets the same deserialized result, so treat it as
+     * immutable.
+     */
+    public Hoot setCoalesceRequests(boolean coalesce) {
+        mCoalesceRequests = coalesce;
+        return this;
+    }
+
+    public boolean isCoalesceRequests() {
+        return mCoalesceRequests;
+    }
+
+    /**
+     * @return how many requests were answered with the result of an identical
+     *         one, i.e. how many trips to the network coalescing saved.
+     */
+    public synchronized int getCoalescedRequestCount() {
+        return mCoalescedRequestCount;
+    }
+
+    /**
+     * Choose the transport this Hoot uses. Must be called before the first
+     * request is created.
+     * 
+     * @param transportType one of the TRANSPORT_ constants, or an id passed
+     *            to {@link #registerTransportFactory(int, HootTransportFactory)}.
+     */
+    public Hoot setTransportType(int transportType) {
+        mTransportType = transportType;
+        return this;
+    }
+
+    /**
+     * Use transports from this factory instead of a registered type. Must be
+     * called before the first request is created.
+     */
+    public Hoot setTransportFactory(HootTransportFactory factory) {
+        mTransportFactory = factory;
+        return this;
+    }
+
+    /**
+     * Use this transport instance. Hoot calls
+     * {@link HootTransport#setup(Hoot)} on it before the first request. Must
+     * be called before the first request is created.
+     */
+    public Hoot setTransport(HootTransport transport) {
+        mTransport = transport;
+        mTransportSetup = false;
+        return this;
+    }
+
+    /**
+     * @return the transport in use, set up and ready to execute requests.
+     */
+    public HootTransport getTransport() {
+        synchronized (this) {
+            if (mTransport == null || !mTransportSetup) {
+                setupTransport();
+            }
+        }
+        return mTransport;
+    }
+
+    public String getBaseUrl() {
+        return mBaseUrl;
+    }
+
+    /**
+     * @return the connection timeout in milliseconds.
+     */
+    public int getTimeout() {
+        return mTimeout;
+    }
+
+    public boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    /**
+     * @return the idle connection timeout in milliseconds.
+     */
+    public int getIdleConnectionTimeout() {
+        return mIdleConnectionTimeout;
+    }
+
+    public X509HostnameVerifier getSSLHostNameVerifier() {
+        return mSSLHostNameVerifier;
+    }
+
+    /**
+     * @return the socket factory transports should use for https, so that
+     *         TLS sessions are resumed rather than renegotiated.
+     */
+    public synchronized SSLSocketFactory getSSLSocketFactory() {
+        if (mSSLSocketFactory == null) {
+            mSSLSocketFactory = new HootSSLSocketFactory(
+                    mSSLContext != null ? mSSLContext
+                            : HootSSLSocketFactory.getDefaultContext(),
+                    mTlsStats);
+        }
+        return mSSLSocketFactory;
+    }
+
+    /**
+     * @return handshake counts and latencies for this Hoot's https
+     *         connections.
+     */
+    public HootTlsStats getTlsStats() {
+        return mTlsStats;
+    }
+
     // -------------------------------------------------------------------------
     // END OF PUBLIC INTERFACE
     // -------------------------------------------------------------------------
     private String mBasicAuthUsername = null;
     private String mBasicAuthPassword = null;
-    private X509HostnameVerifier mSSLHostNameVerifier = SSLSocketFactory.STRICT_HOSTNAME_VERIFIER;
+    private X509HostnameVerifier mSSLHostNameVerifier = org.apache.http.conn.ssl.SSLSocketFactory.STRICT_HOSTNAME_VERIFIER;
+    private SSLContext mSSLContext;
+    private SSLSocketFactory mSSLSocketFactory;
+    private final HootTlsStats mTlsStats = new HootTlsStats();
     private String mBaseUrl;
 
     private int mTimeout = 15 * 1000;
+    private boolean mKeepAlive = true;
+    private int mMaxConnections = 10;
+    private int mMaxConnectionsPerHost = 5;
+    private int mIdleConnectionTimeout = 5 * 60 * 1000;
+
+    private static final String TAG = Hoot.class.getSimpleName();
+    private static ExecutorService sBackgroundExecutor;
+    private static HootExecutor sDefaultExecutor;
+    private static final Map<Integer, HootTransportFactory> sTransportFactories = new HashMap<Integer, HootTransportFactory>();
+    static {
+        registerTransportFactory(TRANSPORT_DEFAULT, new HootTransportFactory() {
+            @Override
+            public HootTransport createTransport() {
+                return createPlatformTransport();
+            }
+        });
+        registerTransportFactory(TRANSPORT_HTTP_URL_CONNECTION,
+                new HootTransportFactory() {
+                    @Override
+                    public HootTransport createTransport() {
+                        return new HootTransportHttpUrlConnection();
+                    }
+                });
+        registerTransportFactory(TRANSPORT_HTTP_CLIENT,
+                new HootTransportFactory() {
+                    @Override
+                    public HootTransport createTransport() {
+                        return new HootTransportHttpClient();
+                    }
+                });
+        registerTransportFactory(TRANSPORT_NON_BLOCKING,
+                new HootTransportFactory() {
+                    @Override
+                    public HootTransport createTransport() {
+                        return new HootTransportNio();
+                    }
+                });
+        registerTransportFactory(TRANSPORT_HTTP2, new HootTransportFactory() {
+            @Override
+            public HootTransport createTransport() {
+                return new HootTransportHttp2();
+            }
+        });
+    }
 
+    private int mTransportType = TRANSPORT_DEFAULT;
+    private HootTransportFactory mTransportFactory;
     private HootTransport mTransport;
+    private boolean mTransportSetup;
     private HootGlobalDeserializer mGlobalDeserializer;
+    private HootResolver mResolver = HootDnsCache.getDefault();
+    private HootCache mCache;
+    private HootResultCache mResultCache;
+    private boolean mCoalesceRequests;
+    private HootExecutor mExecutor;
+    private final HootPrefetcher mPrefetcher = new HootPrefetcher(this);
+
+    // requests in flight that others are coalesced with, each list led by
+    // the one sent; guarded by this
+    private final Map<String, List<HootRequest>> mFlights = new HashMap<String, List<HootRequest>>();
+    private int mCoalescedRequestCount;
 
     private Hoot(String baseUrl) {
         mBaseUrl = baseUrl;
     }
 
-    String getBaseUrl() {
-        return mBaseUrl;
-    }
-
     boolean isBasicAuth() {
         return mBasicAuthUsername != null && mBasicAuthPassword != null;
     }
@@ -104,10 +532,6 @@ public class Hoot {
     String getBasicAuthPassword() {
         return mBasicAuthPassword;
     }
-    
-    X509HostnameVerifier getSSLHostNameVerifier() {
-    	return mSSLHostNameVerifier;
-    }
 
     String calculateBasicAuthHeader() {
         return "Basic "
@@ -115,21 +539,231 @@ public class Hoot {
                         + getBasicAuthPassword()).getBytes(), Base64.NO_WRAP);
     }
 
-    int getTimeout() {
-        return mTimeout;
+    HootPrefetcher getPrefetcher() {
+        return mPrefetcher;
+    }
+
+    private HootResult execute(HootRequest request) {
+        HootTransport transport = getTransport();
+        HootResult result = request.getResult();
+        if (request.isCancelled()) {
+            return result;
+        }
+
+        if (request.getResumableUpload() != null) {
+            try {
+                request.getResumableUpload().execute(request, transport);
+            } catch (Exception e) {
+                result.setException(e);
+                e.printStackTrace();
+            }
+            return result;
+        }
+
+        if (request.getSegmentedDownload() != null) {
+            try {
+                request.getSegmentedDownload().execute(request, transport);
+            } catch (Exception e) {
+                result.setException(e);
+                e.printStackTrace();
+            }
+            return result;
+        }
+
+        if (request.serveFromResultCache() || request.serveFromCache()) {
+            return result;
+        }
+
+        HootTransportRequest transportRequest = request.newTransportRequest();
+        HootTransportResponse response = new HootTransportResponse();
+        try {
+            transport.execute(transportRequest, response);
+            request.processResponse(response);
+        } catch (Exception e) {
+            result.setException(e);
+            e.printStackTrace();
+        } finally {
+            response.close();
+            request.clearTransportRequest(transportRequest);
+        }
+        return result;
+    }
+
+    /**
+     * Put the request in flight, or if an identical one already is, have it
+     * wait on that one.
+     * 
+     * @return true if the request is waiting on another, and mustn't be
+     *         sent.
+     */
+    synchronized boolean joinFlight(HootRequest request) {
+        if (!mCoalesceRequests || !isCoalescable(request)) {
+            return false;
+        }
+        String key = request.getOperation() + " "
+                + HootResultCache.getKey(request);
+        request.setFlightKey(key);
+        List<HootRequest> flight = mFlights.get(key);
+        if (flight == null) {
+            flight = new ArrayList<HootRequest>();
+            mFlights.put(key, flight);
+        }
+        flight.add(request);
+        return flight.size() > 1;
+    }
+
+    /**
+     * Take the request out of its flight, e.g. when it's cancelled.
+     * 
+     * @return the request to send in its place if it was the one in flight
+     *         and others are waiting on it, otherwise null.
+     */
+    synchronized HootRequest leaveFlight(HootRequest request) {
+        List<HootRequest> flight = mFlights.get(request.getFlightKey());
+        if (flight == null) {
+            return null;
+        }
+        boolean wasSent = flight.get(0) == request;
+        flight.remove(request);
+        if (flight.isEmpty()) {
+            mFlights.remove(request.getFlightKey());
+            return null;
+        }
+        return wasSent ? flight.get(0) : null;
+    }
+
+    /**
+     * End the flight the request led, once it's complete.
+     * 
+     * @return the requests that were waiting on it, to be given its result.
+     */
+    synchronized List<HootRequest> landFlight(HootRequest request) {
+        List<HootRequest> flight = mFlights.get(request.getFlightKey());
+        if (flight == null || flight.get(0) != request) {
+            return Collections.emptyList();
+        }
+        mFlights.remove(request.getFlightKey());
+        List<HootRequest> followers = flight.subList(1, flight.size());
+        mCoalescedRequestCount += followers.size();
+        return followers;
+    }
+
+    private static boolean isCoalescable(HootRequest request) {
+        return (request.getOperation() == HootRequest.Operation.GET || request
+                .getOperation() == HootRequest.Operation.HEAD)
+                && request.getDownload() == null
+                && request.getSegmentedDownload() == null
+                && request.getResponseSink() == null
+                && !request.isStaleWhileRevalidate();
     }
 
     void cancelRequest(HootRequest hootRequest) {
-        mTransport.cancel(hootRequest);
+        HootTransportRequest transportRequest = hootRequest.getTransportRequest();
+        if (transportRequest != null
+                && getTransport().getCapabilities().getCancellation() != HootTransportCapabilities.Cancellation.NONE) {
+            mTransport.cancel(transportRequest);
+        }
+        if (hootRequest.getSegmentedDownload() != null) {
+            hootRequest.getSegmentedDownload().cancel(getTransport());
+        }
     }
 
-    private void setupTransport() {
+    /**
+     * @return the transport to run this request on without a pool thread, or
+     *         null if it has to go through a {@link HootTask}.
+     */
+    HootAsyncTransport getAsyncTransport(HootRequest request) {
+        HootTransport transport = getTransport();
+        if (transport.getCapabilities().isNonBlocking()
+                && request.getResumableUpload() == null
+                && request.getSegmentedDownload() == null
+                && transport instanceof HootAsyncTransport
+                && ((HootAsyncTransport) transport)
+                        .isAsync(new HootTransportRequest(request))) {
+            return (HootAsyncTransport) transport;
+        }
+        return null;
+    }
+
+    /**
+     * @return the blocking transport best suited to the running platform.
+     */
+    static HootTransport createPlatformTransport() {
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.FROYO) {
-            mTransport = new HootTransportHttpUrlConnection();
+            return new HootTransportHttpUrlConnection();
         } else {
-            mTransport = new HootTransportHttpClient();
+            return new HootTransportHttpClient();
+        }
+    }
+
+    private static synchronized HootExecutor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = new HootExecutor();
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * @return a pool for short jobs that mustn't run on the UI thread, e.g.
+     *         prewarming connections or looking up the cache.
+     */
+    static synchronized ExecutorService getBackgroundExecutor() {
+        if (sBackgroundExecutor == null) {
+            sBackgroundExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-background");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sBackgroundExecutor;
+    }
+
+    /**
+     * Most requests go to the base URL's host, so get its lookup out of the
+     * way while the first one is being built. Done with the transport's
+     * setup, once the resolver can no longer change.
+     */
+    private void refreshAheadBaseHost() {
+        Uri uri = getBaseUri();
+        if (mResolver instanceof HootDnsCache && uri != null) {
+            ((HootDnsCache) mResolver).refreshAhead(uri.getHost());
+        }
+    }
+
+    /**
+     * @return the base URL, or null if there isn't one or it has no host to
+     *         connect to.
+     */
+    private Uri getBaseUri() {
+        if (mBaseUrl == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(mBaseUrl);
+        return uri.getHost() != null ? uri : null;
+    }
+
+    private void setupTransport() {
+        if (mTransport == null) {
+            HootTransportFactory factory = mTransportFactory;
+            if (factory == null) {
+                synchronized (sTransportFactories) {
+                    factory = sTransportFactories.get(mTransportType);
+                }
+            }
+            if (factory == null) {
+                throw new IllegalStateException("No transport registered for type "
+                        + mTransportType);
+            }
+            mTransport = factory.createTransport();
         }
         mTransport.setup(this);
+        mTransportSetup = true;
+        refreshAheadBaseHost();
+        Log.v(TAG, "Using transport " + mTransport.getClass().getSimpleName()
+                + " (" + mTransport.getCapabilities() + ")");
     }
 
     HootGlobalDeserializer getGlobalDeserializer() {
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * The {@link HootAsyncTransport} counterpart to {@link HootTask}: runs the
+ * request (and any retries) on the transport and reports back on the UI
+ * thread, without tying up a pool thread while the request is in flight.
+ */
+class HootAsyncExecution implements HootAsyncTransport.Callback {
+
+    HootAsyncExecution(HootAsyncTransport transport) {
+        mTransport = transport;
+    }
+
+    void execute(final HootRequest request) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    request.notifyStarted();
+                }
+            }
+        });
+        if (request.getHoot().getCache() == null) {
+            send(request);
+            return;
+        }
+        // the cache is on disk, so look it up off the UI thread
+        Hoot.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.serveFromCache()) {
+                    complete(request);
+                } else {
+                    send(request);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onResponse(HootTransportRequest transportRequest,
+            HootTransportResponse response) {
+        HootRequest request = transportRequest.getRequest();
+        try {
+            if (!request.isCancelled()) {
+                request.processResponse(response);
+            }
+        } catch (Exception e) {
+            request.getResult().setException(e);
+            e.printStackTrace();
+        } finally {
+            response.close();
+        }
+        onAttemptFinished(transportRequest);
+    }
+
+    @Override
+    public void onFailure(HootTransportRequest transportRequest, Exception e) {
+        transportRequest.getRequest().getResult().setException(e);
+        e.printStackTrace();
+        onAttemptFinished(transportRequest);
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private final HootAsyncTransport mTransport;
+
+    private void send(HootRequest request) {
+        mTransport.executeAsync(request.newTransportRequest(),
+                new HootTransportResponse(), this);
+    }
+
+    private void onAttemptFinished(HootTransportRequest transportRequest) {
+        final HootRequest request = transportRequest.getRequest();
+        request.clearTransportRequest(transportRequest);
+        if (request.isCancelled()) {
+            return;
+        }
+
+        if (!request.getResult().isSuccess() && request.shouldRetry()) {
+            send(request);
+            return;
+        }
+        complete(request);
+    }
+
+    private void complete(final HootRequest request) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    request.handleCompletion();
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+/**
+ * A transport that can drive a request without holding a thread for the
+ * whole round trip. Transports implementing this should report
+ * {@link HootTransportCapabilities#isNonBlocking()}.
+ */
+public interface HootAsyncTransport extends HootTransport {
+
+    /**
+     * Completion callback. Hoot deserializes the response on the calling
+     * thread, so it must not be a thread the transport needs for I/O.
+     */
+    public interface Callback {
+        public void onResponse(HootTransportRequest request,
+                HootTransportResponse response);
+
+        public void onFailure(HootTransportRequest request, Exception e);
+    }
+
+    /**
+     * @return true if this request can be executed asynchronously. Requests
+     *         that can't are run through {@link #execute} on a pool thread.
+     */
+    public boolean isAsync(HootTransportRequest request);
+
+    public void executeAsync(HootTransportRequest request,
+            HootTransportResponse response, Callback callback);
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Lets an {@link HootAsyncTransport} serve blocking
+ * {@link HootTransport#execute} calls: hand this to
+ * {@link HootAsyncTransport#executeAsync} and {@link #await()} the outcome.
+ */
+class HootBlockingCallback implements HootAsyncTransport.Callback {
+
+    @Override
+    public void onResponse(HootTransportRequest request,
+            HootTransportResponse response) {
+        mLatch.countDown();
+    }
+
+    @Override
+    public void onFailure(HootTransportRequest request, Exception e) {
+        mException = e;
+        mLatch.countDown();
+    }
+
+    /**
+     * Block until the transport calls back.
+     * 
+     * @throws IOException if the request failed or the wait was interrupted,
+     *             in which case the request is cancelled.
+     */
+    void await(HootTransport transport, HootTransportRequest request)
+            throws IOException {
+        try {
+            mLatch.await();
+        } catch (InterruptedException e) {
+            transport.cancel(request);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        }
+        if (mException instanceof IOException) {
+            throw (IOException) mException;
+        } else if (mException != null) {
+            IOException e = new IOException(mException.getMessage());
+            e.initCause(mException);
+            throw e;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private volatile Exception mException;
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.mime.MultipartEntity;
+
+/**
+ * A request body. Transports stream it straight to the connection: with a
+ * fixed length when {@link #getContentLength()} knows it, chunked when it
+ * doesn't. Replayable bodies can be written again, so a failed request can
+ * be retried; the rest are good for one attempt.
+ * <p>
+ * Subclass it for bodies that are produced as they're written.
+ */
+public abstract class HootBody {
+
+    public static HootBody create(byte[] data) {
+        return create(data, 0, data.length);
+    }
+
+    public static HootBody create(byte[] data, int offset, int length) {
+        return new ByteArrayBody(data, offset, length);
+    }
+
+    /**
+     * The buffer's position and limit are left alone; the bytes between them
+     * are sent.
+     */
+    public static HootBody create(ByteBuffer data) {
+        if (data.hasArray()) {
+            return new ByteArrayBody(data.array(), data.arrayOffset()
+                    + data.position(), data.remaining());
+        }
+        return new ByteBufferBody(data);
+    }
+
+    public static HootBody create(String data) {
+        try {
+            return create(data, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    public static HootBody create(String data, String encoding)
+            throws UnsupportedEncodingException {
+        return create(data.getBytes(encoding));
+    }
+
+    /**
+     * The file is opened each time the body is written, and its length
+     * taken when it's created.
+     */
+    public static HootBody create(File file) {
+        return new FileBody(file, 0, file.length());
+    }
+
+    /**
+     * A region of a file, e.g. one chunk of a resumable upload.
+     */
+    public static HootBody create(File file, long offset, long length) {
+        return new FileBody(file, offset, length);
+    }
+
+    /**
+     * @param length how many bytes to send from the stream, or -1 for all of
+     *            them, chunked. The stream can only be read once, so the body
+     *            can't be replayed.
+     */
+    public static HootBody create(InputStream data, long length) {
+        return new StreamBody(data, length);
+    }
+
+    public static HootBody create(InputStream data) {
+        return create(data, -1);
+    }
+
+    public HootBody setContentType(String contentType) {
+        mContentType = contentType;
+        return this;
+    }
+
+    /**
+     * @return the body's content type, or null to leave it to the caller's
+     *         headers.
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return the body length in bytes, or -1 if it isn't known until it's
+     *         written.
+     */
+    public abstract long getContentLength();
+
+    /**
+     * @return true if {@link #writeTo(OutputStream)} can be called more than
+     *         once and writes the same bytes each time.
+     */
+    public abstract boolean isReplayable();
+
+    /**
+     * Write the body to the stream. The stream is not closed.
+     */
+    public abstract void writeTo(OutputStream os) throws IOException;
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private String mContentType;
+
+    static HootBody create(MultipartEntity entity) {
+        return new EntityBody(entity);
+    }
+
+    /**
+     * @return a channel positioned at the body's first byte, for transports
+     *         that can move it to the socket with
+     *         {@link FileChannel#transferTo}, or null if the body has to be
+     *         written. The caller closes it.
+     */
+    FileChannel openChannel() throws IOException {
+        return null;
+    }
+
+    /**
+     * Copies up to <code>length</code> bytes, or to the end of the stream if
+     * <code>length</code> is negative.
+     * 
+     * @return the number of bytes copied.
+     */
+    static long copy(InputStream in, OutputStream os, long length)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        while (length < 0 || copied < length) {
+            int count = length < 0 ? buffer.length : (int) Math.min(
+                    buffer.length, length - copied);
+            int read = in.read(buffer, 0, count);
+            if (read == -1) {
+                break;
+            }
+            os.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    private static class ByteArrayBody extends HootBody {
+
+        ByteArrayBody(byte[] data, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > data.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public boolean isReplayable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            os.write(mData, mOffset, mLength);
+        }
+
+        private final byte[] mData;
+        private final int mOffset;
+        private final int mLength;
+    }
+
+    private static class ByteBufferBody extends HootBody {
+
+        ByteBufferBody(ByteBuffer data) {
+            mData = data;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mData.remaining();
+        }
+
+        @Override
+        public boolean isReplayable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            ByteBuffer data = mData.duplicate();
+            byte[] buffer = new byte[Math.min(BUFFER_SIZE, data.remaining())];
+            while (data.hasRemaining()) {
+                int count = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, count);
+                os.write(buffer, 0, count);
+            }
+        }
+
+        private final ByteBuffer mData;
+    }
+
+    private static class FileBody extends HootBody {
+
+        FileBody(File file, long offset, long length) {
+            if (offset < 0 || length < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public boolean isReplayable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            InputStream in = new FileInputStream(mFile);
+            try {
+                IOUtils.skipFully(in, mOffset);
+                copy(in, os, mLength);
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        FileChannel openChannel() throws IOException {
+            FileChannel channel = new FileInputStream(mFile).getChannel();
+            channel.position(mOffset);
+            return channel;
+        }
+
+        private final File mFile;
+        private final long mOffset;
+        private final long mLength;
+    }
+
+    static class StreamBody extends HootBody {
+
+        StreamBody(InputStream data, long length) {
+            mData = data;
+            mLength = length;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public boolean isReplayable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            copy(mData, os, mLength);
+        }
+
+        /**
+         * For reading ahead; see {@link HootTransportRequest}.
+         */
+        InputStream getStream() {
+            return mData;
+        }
+
+        private final InputStream mData;
+        private final long mLength;
+    }
+
+    private static class EntityBody extends HootBody {
+
+        EntityBody(MultipartEntity entity) {
+            mEntity = entity;
+            setContentType(entity.getContentType().getValue());
+        }
+
+        @Override
+        public long getContentLength() {
+            return mEntity.getContentLength();
+        }
+
+        @Override
+        public boolean isReplayable() {
+            return mEntity.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            mEntity.writeTo(os);
+        }
+
+        private final MultipartEntity mEntity;
+    }
+
+}
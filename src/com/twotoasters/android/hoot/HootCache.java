@@ -0,0 +1,1058 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import android.util.Log;
+
+/**
+ * An HTTP cache on disk, following RFC 7234, for the GET requests of the
+ * {@link Hoot} it's set on with {@link Hoot#setCache(HootCache)}.
+ * <p>
+ * A fresh response, by its <code>Cache-Control: max-age</code>,
+ * <code>Expires</code> or, failing those, a tenth of its age since
+ * <code>Last-Modified</code>, is served without going to the network. A stale
+ * one with an <code>ETag</code> or <code>Last-Modified</code> is revalidated
+ * with <code>If-None-Match</code> or <code>If-Modified-Since</code>, and a 304
+ * answer is turned back into the cached response. Either way the body goes
+ * through the request's deserializer as if it had come from the server, and
+ * {@link HootResult#isFromCache()} says where it came from.
+ * <p>
+ * One response is kept per URL, along with the request headers it
+ * <code>Vary</code>s on, which a later request must match. Responses are
+ * written to a temporary file as they're read and only become entries once
+ * read to the end, so a stream deserializer that stops early doesn't store
+ * anything. Entries are evicted least recently used first once the cache
+ * outgrows its size, and an append-only journal keeps that order across
+ * processes.
+ */
+public class HootCache {
+
+    /**
+     * @param directory where entries and the journal are kept; nothing else
+     *            should be.
+     * @param maxSize the most bytes to keep.
+     */
+    public HootCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the bytes the entries take up.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return how many requests the cache was asked about.
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return how many requests were answered from the cache without going
+     *         to the network.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how many requests had nothing usable cached.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return how many requests were sent to revalidate a stale entry.
+     */
+    public synchronized int getRevalidationCount() {
+        return mRevalidationCount;
+    }
+
+    /**
+     * @return how many revalidations the server answered with 304, so the
+     *         cached body was used.
+     */
+    public synchronized int getConditionalHitCount() {
+        return mConditionalHitCount;
+    }
+
+    /**
+     * Remove every entry.
+     */
+    public synchronized void evictAll() {
+        try {
+            open();
+            for (String key : new ArrayList<String>(mIndex.keySet())) {
+                remove(key);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to clear cache: " + e);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootCache.class.getSimpleName();
+    private static final String JOURNAL = "journal";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MIN_JOURNAL_COMPACTION = 2000;
+    private static final long HEURISTIC_MAX = 24 * 60 * 60 * 1000L;
+
+    // statuses that are cacheable by default, RFC 7231 6.1
+    private static final Set<Integer> CACHEABLE_STATUSES = new HashSet<Integer>(
+            Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+    // not taken from a 304, since they describe its own (empty) body
+    private static final Set<String> NOT_UPDATED = new HashSet<String>(
+            Arrays.asList("content-length", "content-encoding",
+                    "content-type", "transfer-encoding"));
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // guarded by this
+    private final LinkedHashMap<String, Record> mIndex = new LinkedHashMap<String, Record>(
+            0, 0.75f, true);
+    private Writer mJournal;
+    private int mJournalLines;
+    private long mSize;
+    private int mRequestCount;
+    private int mHitCount;
+    private int mMissCount;
+    private int mRevalidationCount;
+    private int mConditionalHitCount;
+
+    /**
+     * What the journal knows of an entry.
+     */
+    private static class Record {
+        final long size;
+        final String body;
+
+        Record(long size, String body) {
+            this.size = size;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A cached response and the request headers it varies on.
+     */
+    static class Entry {
+        String key;
+        String url;
+        int status;
+        long sentAt;
+        long receivedAt;
+        String body;
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        Map<String, String> vary = new HashMap<String, String>();
+
+        String getHeader(String name) {
+            return HootHttpResponseParser.getHeader(headers, name);
+        }
+
+        /**
+         * @return true if it may be used without revalidating, RFC 7234 4.2.
+         */
+        boolean isFresh(Map<String, String> request, long now) {
+            Map<String, String> requestControl = parseCacheControl(request);
+            Map<String, String> control = parseCacheControl(headers);
+            if (requestControl.containsKey("no-cache")
+                    || "no-cache".equalsIgnoreCase(getValue(request, "Pragma"))
+                    || control.containsKey("no-cache")) {
+                return false;
+            }
+            long lifetime = getFreshnessLifetime(control);
+            long maxAge = parseSeconds(requestControl.get("max-age"));
+            if (maxAge >= 0) {
+                lifetime = Math.min(lifetime, maxAge);
+            }
+            long minFresh = Math.max(0, parseSeconds(requestControl.get("min-fresh")));
+            long maxStale = 0;
+            if (requestControl.containsKey("max-stale")
+                    && !control.containsKey("must-revalidate")) {
+                maxStale = requestControl.get("max-stale") != null ? Math.max(0,
+                        parseSeconds(requestControl.get("max-stale")))
+                        : Long.MAX_VALUE / 2;
+            }
+            return getAge(now) + minFresh < lifetime + maxStale;
+        }
+
+        long getFreshnessLifetime(Map<String, String> control) {
+            long maxAge = parseSeconds(control.get("max-age"));
+            if (maxAge >= 0) {
+                return maxAge;
+            }
+            long date = parseDate(getHeader("Date"));
+            long served = date >= 0 ? date : receivedAt;
+            String expires = getHeader("Expires");
+            if (expires != null) {
+                // an invalid date, e.g. "0", means already expired
+                return Math.max(0, parseDate(expires) - served);
+            }
+            long lastModified = parseDate(getHeader("Last-Modified"));
+            if (lastModified >= 0 && url.indexOf('?') < 0
+                    && CACHEABLE_STATUSES.contains(status)) {
+                return Math.min(HEURISTIC_MAX,
+                        Math.max(0, (served - lastModified) / 10));
+            }
+            return 0;
+        }
+
+        /**
+         * @return the response's current age, RFC 7234 4.2.3.
+         */
+        long getAge(long now) {
+            long date = parseDate(getHeader("Date"));
+            long apparentAge = date >= 0 ? Math.max(0, receivedAt - date) : 0;
+            long ageValue = Math.max(0, parseSeconds(getHeader("Age")));
+            long correctedAge = ageValue + (receivedAt - sentAt);
+            return Math.max(apparentAge, correctedAge) + (now - receivedAt);
+        }
+
+        boolean hasValidator() {
+            return getHeader("ETag") != null
+                    || getHeader("Last-Modified") != null;
+        }
+
+        /**
+         * Make the request conditional on the entry, unless the caller
+         * already has.
+         */
+        void addConditions(Map<String, String> request) {
+            if (getValue(request, "If-None-Match") != null
+                    || getValue(request, "If-Modified-Since") != null) {
+                return;
+            }
+            if (getHeader("ETag") != null) {
+                request.put("If-None-Match", getHeader("ETag"));
+            } else if (getHeader("Last-Modified") != null) {
+                request.put("If-Modified-Since", getHeader("Last-Modified"));
+            }
+        }
+
+        boolean matches(Map<String, String> request) {
+            for (Map.Entry<String, String> varied : vary.entrySet()) {
+                String value = getValue(request, varied.getKey());
+                if (value == null ? varied.getValue() != null
+                        : !value.equals(varied.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the request's response may come from, or go into, the
+     *         cache: a GET whose body is read into the result.
+     */
+    static boolean isCacheable(HootRequest request) {
+        return request.getOperation() == HootRequest.Operation.GET
+                && request.getDownload() == null
+                && request.getSegmentedDownload() == null
+                && request.getResponseSink() == null;
+    }
+
+    /**
+     * Look the request up, counting it.
+     * 
+     * @return the cached response if it's fresh, to be used instead of going
+     *         to the network, or null. A stale entry that can be revalidated
+     *         is left on the request to make it conditional.
+     */
+    HootTransportResponse lookup(HootRequest request) {
+        long now = System.currentTimeMillis();
+        request.setCacheEntry(null, now);
+        Map<String, String> headers = new HootTransportRequest(request)
+                .getHeaders();
+        Entry entry;
+        synchronized (this) {
+            mRequestCount++;
+            entry = get(getKey(request));
+            if (entry != null && !entry.matches(headers)) {
+                entry = null;
+            }
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+        }
+
+        if (entry.isFresh(headers, now)) {
+            HootTransportResponse response = open(entry);
+            if (response != null) {
+                synchronized (this) {
+                    mHitCount++;
+                }
+                return response;
+            }
+        } else if (entry.hasValidator()
+                && !parseCacheControl(headers).containsKey("no-store")) {
+            synchronized (this) {
+                mRevalidationCount++;
+            }
+            request.setCacheEntry(entry, now);
+            return null;
+        }
+        synchronized (this) {
+            mMissCount++;
+        }
+        return null;
+    }
+
+    /**
+     * Look the request up for {@link HootRequest#setStaleWhileRevalidate(boolean)},
+     * counting it: the cached response is used whether or not it's fresh, and
+     * the request still goes to the network, conditional on the entry if it
+     * can be revalidated.
+     * 
+     * @return the cached response, or null.
+     */
+    HootTransportResponse lookupStale(HootRequest request) {
+        long now = System.currentTimeMillis();
+        request.setCacheEntry(null, now);
+        Map<String, String> headers = new HootTransportRequest(request)
+                .getHeaders();
+        Entry entry;
+        synchronized (this) {
+            mRequestCount++;
+            entry = get(getKey(request));
+            if (entry != null && !entry.matches(headers)) {
+                entry = null;
+            }
+        }
+        HootTransportResponse response = entry != null ? open(entry) : null;
+        synchronized (this) {
+            if (response == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            if (entry.hasValidator()) {
+                mRevalidationCount++;
+                request.setCacheEntry(entry, now);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Let the cache see a response from the network.
+     * 
+     * @return the response to read: the cached one for a 304 to a
+     *         revalidation, one whose body is stored as it's read if it can
+     *         be, or the response as is.
+     */
+    HootTransportResponse onResponse(HootRequest request,
+            HootTransportResponse response) {
+        int status = response.getStatusCode();
+        if (!isCacheable(request)) {
+            if (isUnsafe(request.getOperation()) && status >= 200
+                    && status < 400) {
+                // an unsafe method invalidates what was cached, RFC 7234 4.4
+                synchronized (this) {
+                    try {
+                        open();
+                        remove(getKey("GET", request.buildUri().toString()));
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to invalidate: " + e);
+                    }
+                }
+            }
+            return response;
+        }
+
+        Entry entry = request.getCacheEntry();
+        if (status == 304 && entry != null) {
+            HootTransportResponse cached = update(entry, request, response);
+            if (cached != null) {
+                response.close();
+                synchronized (this) {
+                    mConditionalHitCount++;
+                }
+                return cached;
+            }
+            return response;
+        }
+
+        Map<String, String> requestHeaders = getRequestHeaders(request);
+        if (!isStorable(requestHeaders, response)) {
+            if (entry != null || parseCacheControl(response.getHeaders())
+                    .containsKey("no-store")) {
+                synchronized (this) {
+                    try {
+                        open();
+                        remove(getKey(request));
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to remove entry: " + e);
+                    }
+                }
+            }
+            return response;
+        }
+
+        Entry stored = new Entry();
+        stored.key = getKey(request);
+        stored.url = request.buildUri().toString();
+        stored.status = status;
+        stored.sentAt = request.getCacheRequestTime();
+        stored.receivedAt = System.currentTimeMillis();
+        copyHeaders(response.getHeaders(), stored.headers);
+        for (String name : getVaryNames(response.getHeaders())) {
+            stored.vary.put(name.toLowerCase(Locale.US),
+                    getValue(requestHeaders, name));
+        }
+        try {
+            mDirectory.mkdirs();
+            File body = File.createTempFile(stored.key + ".", BODY_SUFFIX,
+                    mDirectory);
+            stored.body = body.getName();
+            InputStream in = response.getBody();
+            if (in == null) {
+                in = new ByteArrayInputStream(new byte[0]);
+            }
+            return new HootTransportResponse().setStatusCode(status)
+                    .setHeaders(response.getHeaders())
+                    .setBody(new StoringInputStream(in, stored, body));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store response: " + e);
+            return response;
+        }
+    }
+
+    /**
+     * Copies the body into the entry's file as it's read, and commits the
+     * entry once it has been read to the end.
+     */
+    private class StoringInputStream extends FilterInputStream {
+
+        StoringInputStream(InputStream in, Entry entry, File file)
+                throws FileNotFoundException {
+            super(in);
+            mEntry = entry;
+            mFile = file;
+            mOut = new FileOutputStream(file);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                commit();
+            } else if (mOut != null) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                commit();
+            } else if (read > 0 && mOut != null) {
+                write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // what's skipped isn't stored, so neither is the entry
+            abort();
+            return in.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            in.close();
+        }
+
+        private final Entry mEntry;
+        private final File mFile;
+        private OutputStream mOut;
+        private long mWritten;
+
+        private void write(byte[] buffer, int offset, int count) {
+            mWritten += count;
+            if (mWritten > mMaxSize) {
+                abort();
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to store response: " + e);
+                abort();
+            }
+        }
+
+        private void commit() {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.close();
+                mOut = null;
+                put(mEntry, mFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to store response: " + e);
+                mFile.delete();
+            }
+        }
+
+        private void abort() {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // it's going anyway
+            }
+            mOut = null;
+            mFile.delete();
+        }
+    }
+
+    private static boolean isUnsafe(HootRequest.Operation operation) {
+        return operation == HootRequest.Operation.POST
+                || operation == HootRequest.Operation.PUT
+                || operation == HootRequest.Operation.PATCH
+                || operation == HootRequest.Operation.DELETE;
+    }
+
+    private static boolean isStorable(Map<String, String> request,
+            HootTransportResponse response) {
+        Map<String, List<String>> headers = response.getHeaders();
+        if (headers == null) {
+            return false;
+        }
+        int status = response.getStatusCode();
+        Map<String, String> control = parseCacheControl(headers);
+        if (parseCacheControl(request).containsKey("no-store")
+                || control.containsKey("no-store")
+                || getVaryNames(headers).contains("*")) {
+            return false;
+        }
+        // only worth keeping if it can be served or revalidated later
+        boolean explicit = control.containsKey("max-age")
+                || HootHttpResponseParser.getHeader(headers, "Expires") != null;
+        boolean validator = HootHttpResponseParser.getHeader(headers, "ETag") != null
+                || HootHttpResponseParser.getHeader(headers, "Last-Modified") != null;
+        return (CACHEABLE_STATUSES.contains(status) && (explicit || validator))
+                || (status < 500 && status != 206 && status != 304 && explicit);
+    }
+
+    /**
+     * Freshen the entry with a 304's headers, RFC 7234 4.3.4.
+     * 
+     * @return the cached response, or null if its body has gone.
+     */
+    private HootTransportResponse update(Entry entry, HootRequest request,
+            HootTransportResponse notModified) {
+        Map<String, List<String>> headers = notModified.getHeaders();
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                String name = header.getKey();
+                if (name == null
+                        || NOT_UPDATED.contains(name.toLowerCase(Locale.US))) {
+                    continue;
+                }
+                Iterator<String> names = entry.headers.keySet().iterator();
+                while (names.hasNext()) {
+                    if (name.equalsIgnoreCase(names.next())) {
+                        names.remove();
+                    }
+                }
+                entry.headers.put(name, new ArrayList<String>(header.getValue()));
+            }
+        }
+        entry.sentAt = request.getCacheRequestTime();
+        entry.receivedAt = System.currentTimeMillis();
+        HootTransportResponse response = open(entry);
+        if (response == null) {
+            return null;
+        }
+        synchronized (this) {
+            try {
+                open();
+                Record record = mIndex.get(entry.key);
+                if (record != null && record.body.equals(entry.body)) {
+                    writeMeta(entry);
+                    commit(entry, new File(mDirectory, entry.body).length());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to update entry: " + e);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return the entry's response, its body read from the cache, or null if
+     *         the body has gone.
+     */
+    private HootTransportResponse open(Entry entry) {
+        try {
+            InputStream body = new FileInputStream(new File(mDirectory,
+                    entry.body));
+            return new HootTransportResponse().setStatusCode(entry.status)
+                    .setHeaders(Collections.unmodifiableMap(entry.headers))
+                    .setBody(body).setFromCache(true);
+        } catch (FileNotFoundException e) {
+            synchronized (this) {
+                try {
+                    remove(entry.key);
+                } catch (IOException e2) {
+                    Log.w(TAG, "Unable to remove entry: " + e2);
+                }
+            }
+            return null;
+        }
+    }
+
+    private synchronized void put(Entry entry, File body) throws IOException {
+        open();
+        writeMeta(entry);
+        commit(entry, body.length());
+    }
+
+    /**
+     * Record an entry whose metadata has been written, replacing any
+     * earlier one, and trim the cache to size.
+     */
+    private void commit(Entry entry, long bodyLength) throws IOException {
+        long size = bodyLength + getMetaFile(entry.key).length();
+        Record previous = mIndex.put(entry.key, new Record(size, entry.body));
+        if (previous != null) {
+            mSize -= previous.size;
+            if (!previous.body.equals(entry.body)) {
+                new File(mDirectory, previous.body).delete();
+            }
+        }
+        mSize += size;
+        journal(CLEAN + " " + entry.key + " " + size + " " + entry.body);
+        trim();
+    }
+
+    private Entry get(String key) {
+        try {
+            open();
+            if (!mIndex.containsKey(key)) {
+                return null;
+            }
+            Entry entry = readMeta(key);
+            journal(READ + " " + key);
+            return entry;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read entry: " + e);
+            try {
+                remove(key);
+            } catch (IOException e2) {
+                // nothing more to do
+            }
+            return null;
+        }
+    }
+
+    private void remove(String key) throws IOException {
+        Record record = mIndex.remove(key);
+        if (record == null) {
+            return;
+        }
+        mSize -= record.size;
+        getMetaFile(key).delete();
+        new File(mDirectory, record.body).delete();
+        journal(REMOVE + " " + key);
+    }
+
+    private void trim() throws IOException {
+        while (mSize > mMaxSize && !mIndex.isEmpty()) {
+            remove(mIndex.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Read the journal, the first time the cache is used, and drop any file
+     * it doesn't account for.
+     */
+    private void open() throws IOException {
+        if (mJournal != null) {
+            return;
+        }
+        mDirectory.mkdirs();
+        File journal = new File(mDirectory, JOURNAL);
+        if (journal.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(journal));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    mJournalLines++;
+                    if (parts.length == 4 && CLEAN.equals(parts[0])) {
+                        mIndex.put(parts[1], new Record(Long.parseLong(parts[2]),
+                                parts[3]));
+                    } else if (parts.length == 2 && READ.equals(parts[0])) {
+                        mIndex.get(parts[1]);
+                    } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+                        mIndex.remove(parts[1]);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Corrupt cache journal, ignoring the rest");
+            } finally {
+                reader.close();
+            }
+        }
+
+        Set<String> files = new HashSet<String>();
+        files.add(JOURNAL);
+        Iterator<Map.Entry<String, Record>> records = mIndex.entrySet().iterator();
+        while (records.hasNext()) {
+            Map.Entry<String, Record> record = records.next();
+            if (!getMetaFile(record.getKey()).exists()
+                    || !new File(mDirectory, record.getValue().body).exists()) {
+                records.remove();
+                continue;
+            }
+            files.add(record.getKey() + META_SUFFIX);
+            files.add(record.getValue().body);
+            mSize += record.getValue().size;
+        }
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!files.contains(name)) {
+                    new File(mDirectory, name).delete();
+                }
+            }
+        }
+        compactJournal();
+        trim();
+    }
+
+    private void journal(String line) throws IOException {
+        mJournal.write(line);
+        mJournal.write('\n');
+        mJournal.flush();
+        mJournalLines++;
+        if (mJournalLines > MIN_JOURNAL_COMPACTION
+                && mJournalLines > 2 * mIndex.size()) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Rewrite the journal with one line per entry, in LRU order.
+     */
+    private void compactJournal() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        File journal = new File(mDirectory, JOURNAL);
+        File tmp = new File(mDirectory, JOURNAL + TMP_SUFFIX);
+        Writer writer = new BufferedWriter(new FileWriter(tmp));
+        try {
+            for (Map.Entry<String, Record> record : mIndex.entrySet()) {
+                writer.write(CLEAN + " " + record.getKey() + " "
+                        + record.getValue().size + " "
+                        + record.getValue().body + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("Unable to rename [" + tmp + "]");
+        }
+        mJournalLines = mIndex.size();
+        mJournal = new BufferedWriter(new FileWriter(journal, true));
+    }
+
+    private File getMetaFile(String key) {
+        return new File(mDirectory, key + META_SUFFIX);
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("url", entry.url);
+        meta.setProperty("status", String.valueOf(entry.status));
+        meta.setProperty("sent", String.valueOf(entry.sentAt));
+        meta.setProperty("received", String.valueOf(entry.receivedAt));
+        meta.setProperty("body", entry.body);
+        int i = 0;
+        for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+            for (String value : header.getValue()) {
+                meta.setProperty("header." + i + ".name", header.getKey());
+                meta.setProperty("header." + i + ".value", value);
+                i++;
+            }
+        }
+        meta.setProperty("headers", String.valueOf(i));
+        for (Map.Entry<String, String> varied : entry.vary.entrySet()) {
+            meta.setProperty("vary." + varied.getKey(),
+                    varied.getValue() != null ? "=" + varied.getValue() : "");
+        }
+
+        File file = getMetaFile(entry.key);
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            meta.store(os, null);
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename [" + tmp + "]");
+        }
+    }
+
+    private Entry readMeta(String key) throws IOException {
+        Properties meta = new Properties();
+        InputStream is = new FileInputStream(getMetaFile(key));
+        try {
+            meta.load(is);
+        } finally {
+            is.close();
+        }
+        try {
+            Entry entry = new Entry();
+            entry.key = key;
+            entry.url = meta.getProperty("url");
+            entry.status = Integer.parseInt(meta.getProperty("status"));
+            entry.sentAt = Long.parseLong(meta.getProperty("sent"));
+            entry.receivedAt = Long.parseLong(meta.getProperty("received"));
+            entry.body = meta.getProperty("body");
+            int count = Integer.parseInt(meta.getProperty("headers"));
+            for (int i = 0; i < count; i++) {
+                String name = meta.getProperty("header." + i + ".name");
+                List<String> values = entry.headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    entry.headers.put(name, values);
+                }
+                values.add(meta.getProperty("header." + i + ".value"));
+            }
+            for (String name : meta.stringPropertyNames()) {
+                if (name.startsWith("vary.")) {
+                    String value = meta.getProperty(name);
+                    entry.vary.put(name.substring(5),
+                            value.length() > 0 ? value.substring(1) : null);
+                }
+            }
+            if (entry.url == null || entry.body == null) {
+                throw new IOException("Incomplete entry");
+            }
+            return entry;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt entry: " + e);
+        }
+    }
+
+    private static String getKey(HootRequest request) {
+        return getKey(request.getOperation().name(), request.buildUri()
+                .toString());
+    }
+
+    private static String getKey(String method, String url) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest((method + " " + url).getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    /**
+     * @return the headers the request was sent with, for matching Vary.
+     */
+    private static Map<String, String> getRequestHeaders(HootRequest request) {
+        HootTransportRequest sent = request.getTransportRequest();
+        return sent != null ? sent.getHeaders() : new HootTransportRequest(
+                request).getHeaders();
+    }
+
+    private static void copyHeaders(Map<String, List<String>> from,
+            Map<String, List<String>> to) {
+        if (from == null) {
+            return;
+        }
+        for (Map.Entry<String, List<String>> header : from.entrySet()) {
+            // HttpURLConnection files the status line under null
+            if (header.getKey() != null) {
+                to.put(header.getKey(), new ArrayList<String>(header.getValue()));
+            }
+        }
+    }
+
+    private static List<String> getVaryNames(Map<String, List<String>> headers) {
+        List<String> names = new ArrayList<String>();
+        if (headers == null) {
+            return names;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if ("Vary".equalsIgnoreCase(header.getKey())) {
+                for (String value : header.getValue()) {
+                    for (String name : value.split(",")) {
+                        if (name.trim().length() > 0) {
+                            names.add(name.trim());
+                        }
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    private static String getValue(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the Cache-Control directives, lower-cased, mapped to their
+     *         values or to null if they have none.
+     */
+    static Map<String, String> parseCacheControl(Map<String, ?> headers) {
+        Map<String, String> directives = new HashMap<String, String>();
+        if (headers == null) {
+            return directives;
+        }
+        for (Map.Entry<String, ?> header : headers.entrySet()) {
+            if (!"Cache-Control".equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            List<?> values = header.getValue() instanceof List ? (List<?>) header
+                    .getValue() : Collections.singletonList(header.getValue());
+            for (Object value : values) {
+                for (String directive : String.valueOf(value).split(",")) {
+                    int equals = directive.indexOf('=');
+                    String name = (equals < 0 ? directive : directive.substring(
+                            0, equals)).trim().toLowerCase(Locale.US);
+                    String argument = equals < 0 ? null : directive.substring(
+                            equals + 1).trim().replace("\"", "");
+                    if (name.length() > 0) {
+                        directives.put(name, argument);
+                    }
+                }
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * @return the delta-seconds value in milliseconds, or -1 if absent or
+     *         invalid.
+     */
+    static long parseSeconds(String seconds) {
+        if (seconds == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(seconds.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the HTTP-date in milliseconds, or -1 if absent or invalid.
+     */
+    static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+}
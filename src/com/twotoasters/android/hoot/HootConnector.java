@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Connects to dual-stack hosts the RFC 8305 ("happy eyeballs") way. A host's
+ * addresses are interleaved by family, a new attempt starts every
+ * {@link #CONNECTION_ATTEMPT_DELAY} milliseconds (or as soon as the previous
+ * one fails) while the earlier ones keep going, and the first to connect
+ * wins. The winning family is remembered per host, so when one family is
+ * broken only the first connection pays for it.
+ */
+final class HootConnector {
+
+    /** How long an attempt runs on its own before the next one starts. */
+    static final int CONNECTION_ATTEMPT_DELAY = 250;
+    /** How long a host's winning family is tried first, in milliseconds. */
+    static final long FAMILY_TTL = 10 * 60 * 1000;
+
+    /**
+     * Record the family that connected, so it's tried first next time.
+     */
+    static void remember(String host, InetAddress address) {
+        synchronized (sFamilies) {
+            sFamilies.put(host, new Family(address instanceof Inet6Address,
+                    System.currentTimeMillis() + FAMILY_TTL));
+        }
+    }
+
+    /**
+     * Forget every remembered family, e.g. after a network change.
+     */
+    static void clearFamilies() {
+        synchronized (sFamilies) {
+            sFamilies.clear();
+        }
+    }
+
+    /**
+     * @return the addresses in the order to try them: the remembered family
+     *         (else the resolver's first) leads, then the families alternate.
+     */
+    static InetAddress[] sort(String host, InetAddress[] addresses) {
+        Boolean ipv6First = null;
+        synchronized (sFamilies) {
+            Family family = sFamilies.get(host);
+            if (family != null && family.expires > System.currentTimeMillis()) {
+                ipv6First = family.ipv6;
+            }
+        }
+
+        LinkedList<InetAddress> ipv6 = new LinkedList<InetAddress>();
+        LinkedList<InetAddress> ipv4 = new LinkedList<InetAddress>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? ipv6 : ipv4).add(address);
+        }
+        if (ipv6First == null) {
+            ipv6First = addresses[0] instanceof Inet6Address;
+        }
+        LinkedList<InetAddress> first = ipv6First ? ipv6 : ipv4;
+        LinkedList<InetAddress> second = ipv6First ? ipv4 : ipv6;
+
+        InetAddress[] sorted = new InetAddress[addresses.length];
+        for (int i = 0; i < sorted.length; i++) {
+            LinkedList<InetAddress> next = first.isEmpty()
+                    || (i % 2 == 1 && !second.isEmpty()) ? second : first;
+            sorted[i] = next.removeFirst();
+        }
+        return sorted;
+    }
+
+    HootConnector(HootResolver resolver, int timeout) {
+        mResolver = resolver;
+        mTimeout = timeout;
+    }
+
+    /**
+     * @return the host's addresses in the order they should be tried.
+     */
+    InetAddress[] resolve(String host) throws IOException {
+        return sort(host, mResolver.resolve(host));
+    }
+
+    Socket connect(String host, int port) throws IOException {
+        return connect(host, port, null, false);
+    }
+
+    /**
+     * @param localAddress the address to bind to, or null for any.
+     */
+    Socket connect(String host, int port, InetAddress localAddress)
+            throws IOException {
+        return connect(host, port, localAddress, false);
+    }
+
+    /**
+     * @return a connected channel, still in blocking mode.
+     */
+    SocketChannel connectChannel(String host, int port) throws IOException {
+        return connect(host, port, null, true).getChannel();
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final Map<String, Family> sFamilies = new HashMap<String, Family>();
+    private static ExecutorService sExecutor;
+
+    private final HootResolver mResolver;
+    private final int mTimeout;
+
+    private static class Family {
+        final boolean ipv6;
+        final long expires;
+
+        Family(boolean ipv6, long expires) {
+            this.ipv6 = ipv6;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The attempts for one connection. Guarded by its own lock; attempts
+     * report back to it and the connecting thread waits on it.
+     */
+    private static class Race {
+        final List<Socket> sockets = new ArrayList<Socket>();
+        int running;
+        boolean finished;
+        Socket winner;
+        IOException failure;
+
+        synchronized boolean add(Socket socket) {
+            if (finished) {
+                return false;
+            }
+            sockets.add(socket);
+            return true;
+        }
+
+        synchronized void connected(Socket socket) {
+            running--;
+            if (winner == null && !finished) {
+                winner = socket;
+            } else {
+                close(socket);
+            }
+            notifyAll();
+        }
+
+        synchronized void failed(Socket socket, IOException e) {
+            running--;
+            if (failure == null) {
+                failure = e;
+            }
+            close(socket);
+            notifyAll();
+        }
+
+        /**
+         * Closing a connecting socket aborts the connect, so this also stops
+         * the attempts that are still running.
+         */
+        synchronized void finish() {
+            finished = true;
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    close(socket);
+                }
+            }
+        }
+    }
+
+    private Socket connect(String host, int port, InetAddress localAddress,
+            boolean channel) throws IOException {
+        InetAddress[] addresses = resolve(host);
+        if (addresses.length == 1) {
+            Socket socket = open(localAddress, channel);
+            try {
+                socket.connect(new InetSocketAddress(addresses[0], port),
+                        mTimeout);
+            } catch (IOException e) {
+                close(socket);
+                throw e;
+            }
+            return socket;
+        }
+
+        Race race = new Race();
+        try {
+            Socket socket = race(race, addresses, port, localAddress, channel);
+            remember(host, socket.getInetAddress());
+            return socket;
+        } finally {
+            race.finish();
+        }
+    }
+
+    private Socket race(Race race, InetAddress[] addresses, int port,
+            InetAddress localAddress, boolean channel) throws IOException {
+        long deadline = System.currentTimeMillis() + mTimeout;
+        int next = 0;
+        synchronized (race) {
+            while (race.winner == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("connect timed out");
+                }
+                long wait = remaining;
+                if (next < addresses.length) {
+                    Socket socket = open(localAddress, channel);
+                    race.add(socket);
+                    race.running++;
+                    start(race, socket, new InetSocketAddress(
+                            addresses[next++], port), (int) remaining);
+                    wait = Math.min(remaining, CONNECTION_ATTEMPT_DELAY);
+                } else if (race.running == 0) {
+                    throw race.failure;
+                }
+                try {
+                    race.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("connect interrupted");
+                }
+            }
+            return race.winner;
+        }
+    }
+
+    private static void start(final Race race, final Socket socket,
+            final InetSocketAddress address, final int timeout) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.connect(address, timeout);
+                    race.connected(socket);
+                } catch (IOException e) {
+                    race.failed(socket, e);
+                }
+            }
+        });
+    }
+
+    private static Socket open(InetAddress localAddress, boolean channel)
+            throws IOException {
+        Socket socket = channel ? SocketChannel.open().socket() : new Socket();
+        if (localAddress != null) {
+            try {
+                socket.bind(new InetSocketAddress(localAddress, 0));
+            } catch (IOException e) {
+                close(socket);
+                throw e;
+            }
+        }
+        return socket;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing more we can do
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-connect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+}
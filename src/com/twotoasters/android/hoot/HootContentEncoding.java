@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content codings for response bodies. Unless a request opts out, or sets an
+ * Accept-Encoding of its own, Hoot asks for gzip or deflate and decodes the
+ * body as it's read, so it's never held in memory in both forms.
+ */
+final class HootContentEncoding {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * @return true if Hoot negotiates the coding for this request, and so
+     *         decodes its response. Never for downloads, whose ranges count
+     *         bytes as sent.
+     */
+    static boolean isNegotiated(HootRequest request) {
+        if (!request.isAcceptCompressedResponse()
+                || request.getDownload() != null) {
+            return false;
+        }
+        Properties headers = request.getHeaders();
+        if (headers != null) {
+            for (Object name : headers.keySet()) {
+                if ("Accept-Encoding".equalsIgnoreCase((String) name)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a stream decoding the body, or null if it isn't in a coding we
+     *         know and should be passed through untouched.
+     */
+    static InputStream decode(String contentEncoding, InputStream body) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        String coding = contentEncoding.trim();
+        if ("gzip".equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+            return new DecodingInputStream(body, true);
+        }
+        if ("deflate".equalsIgnoreCase(coding)) {
+            return new DecodingInputStream(body, false);
+        }
+        return null;
+    }
+
+    /**
+     * @return the headers without the ones that describe the encoded body,
+     *         which no longer apply once it's decoded.
+     */
+    static Map<String, List<String>> removeEncodingHeaders(
+            Map<String, List<String>> headers) {
+        Map<String, List<String>> decoded = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (!"Content-Encoding".equalsIgnoreCase(name)
+                    && !"Content-Length".equalsIgnoreCase(name)) {
+                decoded.put(name, header.getValue());
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private volatile long mCount;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+    private HootContentEncoding() {
+    }
+
+    /**
+     * Sets up the decoder on the first read. HEAD, 204 and 304 responses can
+     * carry a Content-Encoding with no body, and the gzip reader would fail
+     * on the missing header if it were created up front.
+     */
+    private static class DecodingInputStream extends FilterInputStream {
+
+        DecodingInputStream(InputStream body, boolean gzip) {
+            super(null);
+            mBody = new PushbackInputStream(body, 2);
+            mGzip = gzip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return decoder().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            return decoder().read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return decoder().skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in != null ? in.available() : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // the gzip reader ends the inflater it made for itself
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                try {
+                    mBody.close();
+                } finally {
+                    if (mInflater != null) {
+                        mInflater.end();
+                    }
+                }
+            }
+        }
+
+        private InputStream decoder() throws IOException {
+            if (in != null) {
+                return in;
+            }
+            byte[] head = new byte[2];
+            int length = 0;
+            int read;
+            while (length < head.length
+                    && (read = mBody.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+            if (length == 0) {
+                in = EMPTY;
+            } else {
+                mBody.unread(head, 0, length);
+                if (mGzip) {
+                    in = new GZIPInputStream(mBody);
+                } else {
+                    // "deflate" is meant to be zlib-wrapped, but some servers
+                    // send raw deflate data
+                    mInflater = new Inflater(!isZlibHeader(head, length));
+                    in = new InflaterInputStream(mBody, mInflater);
+                }
+            }
+            return in;
+        }
+
+        private static boolean isZlibHeader(byte[] head, int length) {
+            if (length < 2) {
+                return false;
+            }
+            int cmf = head[0] & 0xff;
+            int flg = head[1] & 0xff;
+            return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        }
+
+        private final PushbackInputStream mBody;
+        private final boolean mGzip;
+        private Inflater mInflater;
+    }
+
+}
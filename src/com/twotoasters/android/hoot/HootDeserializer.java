@@ -46,6 +46,11 @@ public abstract class HootDeserializer<T> {
         return mDeserializedStorage;
     }
 
+    @SuppressWarnings("unchecked")
+    void setDeserializedResult(Object deserializedResult) {
+        mDeserializedStorage = (T) deserializedResult;
+    }
+
     T performDeserialize(InputStream responseStream) {
         mDeserializedStorage = deserialize(responseStream);
         return mDeserializedStorage;
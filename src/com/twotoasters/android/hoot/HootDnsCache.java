@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A caching {@link HootResolver}. Successful lookups are kept for the
+ * positive TTL and failures for the negative TTL. Hosts marked with
+ * {@link #refreshAhead(String)}, and any cached host looked up late in its
+ * TTL, are re-resolved in the background so callers rarely wait on the
+ * network. A marked host that goes unused for the hot host timeout is no
+ * longer refreshed.
+ * <p>
+ * All Hoot instances share {@link #getDefault()} unless given their own
+ * resolver.
+ */
+public class HootDnsCache implements HootResolver {
+
+    public static final long DEFAULT_POSITIVE_TTL = 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+    public static final long DEFAULT_HOT_HOST_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * @return the process-wide cache in front of the platform resolver.
+     */
+    public static HootDnsCache getDefault() {
+        return sDefault;
+    }
+
+    public HootDnsCache(HootResolver delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * @param ttl how long a successful lookup is cached, in milliseconds.
+     */
+    public HootDnsCache setPositiveTtl(long ttl) {
+        mPositiveTtl = ttl;
+        return this;
+    }
+
+    /**
+     * @param ttl how long a failed lookup is cached, in milliseconds. Zero
+     *            disables negative caching.
+     */
+    public HootDnsCache setNegativeTtl(long ttl) {
+        mNegativeTtl = ttl;
+        return this;
+    }
+
+    /**
+     * @param timeout how long a host marked with {@link #refreshAhead(String)}
+     *            keeps being refreshed after its last lookup, in
+     *            milliseconds.
+     */
+    public HootDnsCache setHotHostTimeout(long timeout) {
+        mHotHostTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param refreshAhead false to only ever resolve hosts when they're looked
+     *            up and missing or expired. Defaults to true.
+     */
+    public HootDnsCache setRefreshAhead(boolean refreshAhead) {
+        mRefreshAhead = refreshAhead;
+        if (!refreshAhead) {
+            synchronized (mHotHosts) {
+                mHotHosts.clear();
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        synchronized (mHotHosts) {
+            if (mHotHosts.containsKey(host)) {
+                mHotHosts.put(host, now);
+            }
+        }
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(host);
+        }
+        if (entry != null && now < entry.expires) {
+            if (entry.addresses == null) {
+                mNegativeHitCount.incrementAndGet();
+                throw new UnknownHostException(host);
+            }
+            mHitCount.incrementAndGet();
+            if (mRefreshAhead && now >= entry.refreshAt) {
+                scheduleRefresh(host, 0);
+            }
+            return entry.addresses;
+        }
+
+        mMissCount.incrementAndGet();
+        return lookup(host, true);
+    }
+
+    /**
+     * Resolve the host in the background now and keep it fresh while it's in
+     * use, so lookups for it are served from the cache. It stops being
+     * refreshed once it hasn't been looked up for the hot host timeout.
+     */
+    public void refreshAhead(String host) {
+        if (!mRefreshAhead || host == null || host.length() == 0) {
+            return;
+        }
+        synchronized (mHotHosts) {
+            if (mHotHosts.put(host, System.currentTimeMillis()) != null) {
+                return;
+            }
+        }
+        scheduleRefresh(host, 0);
+    }
+
+    /**
+     * Stop keeping a host marked with {@link #refreshAhead(String)} fresh.
+     */
+    public void stopRefreshAhead(String host) {
+        synchronized (mHotHosts) {
+            mHotHosts.remove(host);
+        }
+    }
+
+    /**
+     * Forget every cached lookup and every host marked with
+     * {@link #refreshAhead(String)}, e.g. after a network change.
+     */
+    public void clear() {
+        synchronized (mHotHosts) {
+            mHotHosts.clear();
+        }
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getNegativeHitCount() {
+        return mNegativeHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getRefreshCount() {
+        return mRefreshCount.get();
+    }
+
+    /**
+     * @return how many lookups went to the underlying resolver, whether for a
+     *         miss or a background refresh.
+     */
+    public long getLookupCount() {
+        return mLookupCount.get();
+    }
+
+    /**
+     * @return total time spent in the underlying resolver, in milliseconds.
+     */
+    public long getLookupTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mLookupNanos.get());
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootDnsCache.class.getSimpleName();
+
+    /**
+     * Fraction of the positive TTL after which a hit triggers a background
+     * refresh.
+     */
+    private static final float REFRESH_AHEAD_FRACTION = 0.75f;
+
+    private static final HootDnsCache sDefault = new HootDnsCache(
+            HootResolver.SYSTEM);
+
+    private static ScheduledExecutorService sRefresher;
+
+    private final HootResolver mDelegate;
+    private long mPositiveTtl = DEFAULT_POSITIVE_TTL;
+    private long mNegativeTtl = DEFAULT_NEGATIVE_TTL;
+    private long mHotHostTimeout = DEFAULT_HOT_HOST_TIMEOUT;
+    private volatile boolean mRefreshAhead = true;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // host to when it was last looked up
+    private final Map<String, Long> mHotHosts = new HashMap<String, Long>();
+    private final Set<String> mRefreshing = new HashSet<String>();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mNegativeHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mRefreshCount = new AtomicLong();
+    private final AtomicLong mLookupCount = new AtomicLong();
+    private final AtomicLong mLookupNanos = new AtomicLong();
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expires;
+        final long refreshAt;
+
+        Entry(InetAddress[] addresses, long expires, long refreshAt) {
+            this.addresses = addresses;
+            this.expires = expires;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /**
+     * @param miss true if nothing usable is cached, so a failure is cached as
+     *            negative. A failed refresh leaves the entry it was refreshing
+     *            alone.
+     */
+    private InetAddress[] lookup(String host, boolean miss)
+            throws UnknownHostException {
+        long start = System.nanoTime();
+        mLookupCount.incrementAndGet();
+        try {
+            InetAddress[] addresses = mDelegate.resolve(host);
+            long now = System.currentTimeMillis();
+            synchronized (mEntries) {
+                mEntries.put(host, new Entry(addresses, now + mPositiveTtl,
+                        now + (long) (mPositiveTtl * REFRESH_AHEAD_FRACTION)));
+            }
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (miss && mNegativeTtl > 0) {
+                long now = System.currentTimeMillis();
+                synchronized (mEntries) {
+                    mEntries.put(host, new Entry(null, now + mNegativeTtl,
+                            Long.MAX_VALUE));
+                }
+            }
+            throw e;
+        } finally {
+            mLookupNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void scheduleRefresh(final String host, long delay) {
+        synchronized (mRefreshing) {
+            if (!mRefreshing.add(host)) {
+                return;
+            }
+        }
+        getRefresher().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRefreshing) {
+                    mRefreshing.remove(host);
+                }
+                refresh(host);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh(String host) {
+        mRefreshCount.incrementAndGet();
+        long delay = (long) (mPositiveTtl * REFRESH_AHEAD_FRACTION);
+        try {
+            lookup(host, false);
+        } catch (UnknownHostException e) {
+            Log.v(TAG, "Unable to refresh [" + host + "]");
+            long retry = deferRefresh(host);
+            if (retry >= 0) {
+                delay = retry;
+            }
+        }
+
+        boolean hot = false;
+        synchronized (mHotHosts) {
+            Long lastUsed = mHotHosts.get(host);
+            if (lastUsed != null) {
+                hot = System.currentTimeMillis() - lastUsed < mHotHostTimeout;
+                if (!hot) {
+                    mHotHosts.remove(host);
+                }
+            }
+        }
+        if (hot) {
+            scheduleRefresh(host, delay);
+        }
+    }
+
+    /**
+     * Keeps serving a host's addresses after a refresh fails, for as long as
+     * they're still valid, and tries again halfway to their expiry.
+     *
+     * @return how long until the next refresh, or -1 if there's no valid
+     *         entry to keep.
+     */
+    private long deferRefresh(String host) {
+        long now = System.currentTimeMillis();
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(host);
+            if (entry == null || entry.addresses == null
+                    || now >= entry.expires) {
+                return -1;
+            }
+            long retry = (entry.expires - now) / 2;
+            mEntries.put(host, new Entry(entry.addresses, entry.expires, now
+                    + retry));
+            return retry;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getRefresher() {
+        if (sRefresher == null) {
+            sRefresher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-DNS-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sRefresher;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import android.util.Log;
+
+/**
+ * Downloads a response body to a file, resuming an interrupted download
+ * instead of starting over. The body is written to "&lt;file&gt;.partial" and
+ * only renamed to the file once it's complete; the validators needed to
+ * resume it, its ETag or Last-Modified, are kept alongside in
+ * "&lt;file&gt;.partial.properties".
+ * <p>
+ * A request for a file with a partial download asks for the rest with
+ * <code>Range: bytes=N-</code> and <code>If-Range</code>, so the server sends
+ * 206 and the remainder if the resource is unchanged, or 200 and all of it if
+ * it has changed.
+ */
+final class HootDownload {
+
+    HootDownload(File file) {
+        mFile = file;
+        mPartial = new File(file.getPath() + PARTIAL_SUFFIX);
+        mState = new File(mPartial.getPath() + STATE_SUFFIX);
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Add what's needed to resume the download, if there's a partial one.
+     * Ranges count bytes as sent, so the body mustn't be compressed.
+     */
+    void addHeaders(Map<String, String> headers) {
+        if (!containsIgnoreCase(headers, "Accept-Encoding")) {
+            headers.put("Accept-Encoding", "identity");
+        }
+        long length = mPartial.length();
+        String validator = readState().getProperty(KEY_VALIDATOR);
+        if (length > 0 && validator != null) {
+            headers.put("Range", "bytes=" + length + "-");
+            headers.put("If-Range", validator);
+            Log.v(TAG, "Resuming download of [" + mFile + "] at " + length);
+        }
+    }
+
+    /**
+     * Write the body to the file if the response is the resource, whole or in
+     * part. On failure, or cancellation, what was written is kept to resume
+     * from.
+     * 
+     * @return the number of bytes written, or -1 if the body isn't the
+     *         download but something else, e.g. an error page, to be read as
+     *         usual.
+     */
+    long write(HootRequest request, int status,
+            Map<String, List<String>> headers, InputStream body)
+            throws IOException {
+        long start;
+        long total;
+        if (status == 206) {
+            long[] range = parseContentRange(HootHttpResponseParser.getHeader(
+                    headers, "Content-Range"));
+            if (range == null || range[0] != mPartial.length()) {
+                discard();
+                throw new IOException("Unexpected Content-Range, restarting download");
+            }
+            start = range[0];
+            total = range[1];
+        } else if (status == 200) {
+            // a fresh copy, either asked for or because the resource changed
+            start = 0;
+            total = parseLong(HootHttpResponseParser.getHeader(headers,
+                    "Content-Length"));
+            saveState(headers, total);
+        } else if (status == 416) {
+            // the partial file may already be all of it
+            Properties state = readState();
+            if (mPartial.exists()
+                    && String.valueOf(mPartial.length()).equals(
+                            state.getProperty(KEY_LENGTH))) {
+                complete();
+                return 0;
+            }
+            discard();
+            return -1;
+        } else {
+            return -1;
+        }
+
+        FileChannel channel = new FileOutputStream(mPartial, start > 0)
+                .getChannel();
+        long written;
+        try {
+            written = HootResponseSink.copy(request, body, channel);
+        } finally {
+            channel.close();
+        }
+        if (total >= 0 && mPartial.length() != total) {
+            throw new IOException("Download ended at " + mPartial.length()
+                    + " of " + total + " bytes");
+        }
+        complete();
+        return written;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootDownload.class.getSimpleName();
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String STATE_SUFFIX = ".properties";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_LENGTH = "length";
+
+    private final File mFile;
+    private final File mPartial;
+    private final File mState;
+
+    /**
+     * Keep what's needed to resume before any of the body is written. A weak
+     * ETag can't be used with If-Range, so fall back to Last-Modified; with
+     * neither the download can only start over.
+     */
+    private void saveState(Map<String, List<String>> headers, long length)
+            throws IOException {
+        String validator = HootHttpResponseParser.getHeader(headers, "ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = HootHttpResponseParser.getHeader(headers, "Last-Modified");
+        }
+        Properties state = new Properties();
+        if (validator != null) {
+            state.setProperty(KEY_VALIDATOR, validator);
+        }
+        state.setProperty(KEY_LENGTH, String.valueOf(length));
+        OutputStream os = new FileOutputStream(mState);
+        try {
+            state.store(os, null);
+        } finally {
+            os.close();
+        }
+    }
+
+    private Properties readState() {
+        Properties state = new Properties();
+        if (mState.exists()) {
+            try {
+                InputStream in = new FileInputStream(mState);
+                try {
+                    state.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read download state", e);
+            }
+        }
+        return state;
+    }
+
+    private void complete() throws IOException {
+        mFile.delete();
+        if (!mPartial.renameTo(mFile)) {
+            throw new IOException("Unable to rename " + mPartial + " to " + mFile);
+        }
+        mState.delete();
+    }
+
+    private void discard() {
+        mPartial.delete();
+        mState.delete();
+    }
+
+    /**
+     * @return the first byte and the total length from
+     *         "bytes first-last/total", the total -1 if it's "*", or null if
+     *         it can't be parsed.
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash == -1 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(contentRange.substring(6, dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[] { first, "*".equals(total) ? -1 : Long.parseLong(total) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean containsIgnoreCase(Map<String, String> headers,
+            String name) {
+        for (String key : headers.keySet()) {
+            if (name.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The threads a {@link Hoot} runs blocking requests on, kept apart from
+ * AsyncTask's pool and the rest of the app. Set one with
+ * {@link Hoot#setExecutor(HootExecutor)}; by default Hoots share one.
+ * <p>
+ * Up to the core number of threads run requests, and the rest wait in the
+ * queue. Once the queue is full, more threads are started up to the maximum,
+ * and once they're all busy too the rejection policy decides which request
+ * fails. Idle threads stop after a while.
+ * <p>
+ * A free thread takes the queued request with the highest
+ * {@link HootRequest#setPriority(int) priority}, the oldest first among
+ * equals. Requests gain a level of priority for each aging interval they
+ * wait, so a busy queue of urgent requests can't starve the rest. An
+ * IMMEDIATE request doesn't wait for the queue to fill before a thread is
+ * started for it.
+ * <p>
+ * Nothing here depends on Android, so the engine can be measured on its own.
+ */
+public class HootExecutor {
+
+    /** When full, fail the request being executed. */
+    public static final int REJECT_NEWEST = 0;
+    /** When full, fail the request that has waited longest to make room. */
+    public static final int REJECT_OLDEST = 1;
+    /**
+     * When full, fail the queued request of lowest priority to make room, or
+     * the one being executed if none is lower.
+     */
+    public static final int REJECT_LOWEST = 2;
+
+    public static final int DEFAULT_CORE_THREADS = 4;
+    public static final int DEFAULT_MAX_THREADS = 16;
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+    public static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+    public static final long DEFAULT_AGING = 5 * 1000;
+
+    /**
+     * Work that has a priority, and wants to know if it's rejected rather
+     * than having {@link HootExecutor#execute(Runnable)} throw.
+     */
+    public interface Job extends Runnable {
+        /**
+         * @return one of the HootRequest.PRIORITY_ constants. Read each time
+         *         a thread is free, so it may change while the job waits.
+         */
+        public int getPriority();
+
+        public void onRejected(RejectedExecutionException e);
+    }
+
+    public HootExecutor() {
+        this(DEFAULT_CORE_THREADS, DEFAULT_MAX_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public HootExecutor(int coreThreads, int maxThreads, int queueCapacity) {
+        if (coreThreads < 1 || maxThreads < coreThreads || queueCapacity < 1) {
+            throw new IllegalArgumentException("Need 1 <= core <= max threads and a queue");
+        }
+        mCoreThreads = coreThreads;
+        mMaxThreads = maxThreads;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param policy one of the REJECT_ constants.
+     */
+    public HootExecutor setRejectionPolicy(int policy) {
+        mRejectionPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Name the threads, e.g. for traces.
+     */
+    public HootExecutor setThreadName(String name) {
+        mThreadName = name;
+        return this;
+    }
+
+    /**
+     * How long a thread may sit idle before it stops.
+     */
+    public HootExecutor setKeepAlive(long millis) {
+        mKeepAlive = millis;
+        return this;
+    }
+
+    /**
+     * How long a request waits for each level its priority is raised by, or
+     * 0 for no aging.
+     */
+    public HootExecutor setAging(long millis) {
+        mAging = millis;
+        return this;
+    }
+
+    /**
+     * Run the work on one of the threads.
+     * 
+     * @throws RejectedExecutionException if it's rejected and isn't a
+     *             {@link Job}.
+     */
+    public void execute(Runnable work) {
+        Queued queued = new Queued(work);
+        Queued rejected = null;
+        synchronized (mLock) {
+            if (mShutdown) {
+                rejected = queued;
+            } else if (mThreads < mCoreThreads
+                    || (mThreads < mMaxThreads && mIdle == 0 && (mQueue.size() >= mQueueCapacity
+                            || queued.getPriority() >= HootRequest.PRIORITY_IMMEDIATE))) {
+                startThread(queued);
+            } else if (mQueue.size() < mQueueCapacity) {
+                mQueue.add(queued);
+            } else {
+                rejected = makeRoom(queued);
+            }
+            mLock.notify();
+        }
+        if (rejected != null) {
+            reject(rejected, rejected == queued);
+        }
+    }
+
+    /**
+     * Stop the threads once the work already executed is done.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public int getQueueSize() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    public int getActiveCount() {
+        synchronized (mLock) {
+            return mThreads - mIdle;
+        }
+    }
+
+    public int getPoolSize() {
+        synchronized (mLock) {
+            return mThreads;
+        }
+    }
+
+    /**
+     * @return how much work has been started.
+     */
+    public synchronized long getStartedCount() {
+        return mStartedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * @return the mean time work has waited in the queue before starting.
+     */
+    public synchronized long getAverageQueueWaitMillis() {
+        return mStartedCount > 0 ? mTotalWaitNanos / mStartedCount / 1000000 : 0;
+    }
+
+    public synchronized long getMaxQueueWaitMillis() {
+        return mMaxWaitNanos / 1000000;
+    }
+
+    /**
+     * Start counting again.
+     */
+    public synchronized void resetStats() {
+        mStartedCount = 0;
+        mRejectedCount = 0;
+        mTotalWaitNanos = 0;
+        mMaxWaitNanos = 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private final int mCoreThreads;
+    private final int mMaxThreads;
+    private final int mQueueCapacity;
+    private volatile int mRejectionPolicy = REJECT_NEWEST;
+    private volatile String mThreadName = "Hoot";
+    private volatile long mKeepAlive = DEFAULT_KEEP_ALIVE;
+    private volatile long mAging = DEFAULT_AGING;
+
+    // guarded by mLock, in the order the work was executed
+    private final Object mLock = new Object();
+    private final LinkedList<Queued> mQueue = new LinkedList<Queued>();
+    private int mThreads;
+    private int mIdle;
+    private int mThreadCount;
+    private boolean mShutdown;
+
+    // guarded by this
+    private long mStartedCount;
+    private long mRejectedCount;
+    private long mTotalWaitNanos;
+    private long mMaxWaitNanos;
+
+    /**
+     * Work as queued, stamped with when it was executed.
+     */
+    private static class Queued {
+        final Runnable work;
+        final long queuedAt = System.nanoTime();
+
+        Queued(Runnable work) {
+            this.work = work;
+        }
+
+        int getPriority() {
+            return work instanceof Job ? ((Job) work).getPriority()
+                    : HootRequest.PRIORITY_NORMAL;
+        }
+
+        /**
+         * @return the priority, raised a level for each aging interval waited,
+         *         in thousandths of a level.
+         */
+        long getEffectivePriority(long now, long aging) {
+            long priority = getPriority() * 1000L;
+            if (aging > 0) {
+                priority += (now - queuedAt) / 1000000 * 1000 / aging;
+            }
+            return priority;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private Queued mFirst;
+
+        Worker(Queued first) {
+            mFirst = first;
+        }
+
+        @Override
+        public void run() {
+            boolean retired = false;
+            try {
+                while (true) {
+                    Queued next = mFirst != null ? mFirst : take();
+                    mFirst = null;
+                    if (next == null) {
+                        // take() has already stopped counting this thread
+                        retired = true;
+                        return;
+                    }
+                    onStarted(System.nanoTime() - next.queuedAt);
+                    try {
+                        next.work.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    // don't let a cancelled request's interrupt reach the next
+                    Thread.interrupted();
+                }
+            } finally {
+                if (!retired) {
+                    // an Error got out of the work and is ending the thread
+                    synchronized (mLock) {
+                        mThreads--;
+                        if (!mShutdown && !mQueue.isEmpty()
+                                && mThreads < mCoreThreads) {
+                            startThread(null);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a thread for the work, which then takes its turn at the queue.
+     */
+    // call with mLock held
+    private void startThread(Queued first) {
+        mThreads++;
+        Thread thread = new Thread(new Worker(first), mThreadName + "-"
+                + ++mThreadCount);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for the best work in the queue.
+     * 
+     * @return the work, or null if the thread has been idle too long and
+     *         should stop.
+     */
+    private Queued take() {
+        synchronized (mLock) {
+            long deadline = System.currentTimeMillis() + mKeepAlive;
+            while (mQueue.isEmpty()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (mShutdown || wait <= 0) {
+                    mThreads--;
+                    return null;
+                }
+                mIdle++;
+                try {
+                    mLock.wait(wait);
+                } catch (InterruptedException e) {
+                    // a cancelled request's interrupt; keep waiting
+                } finally {
+                    mIdle--;
+                }
+            }
+            return pollBest();
+        }
+    }
+
+    // call with mLock held
+    private Queued pollBest() {
+        long now = System.nanoTime();
+        long aging = mAging;
+        Queued best = null;
+        long bestPriority = Long.MIN_VALUE;
+        for (Queued queued : mQueue) {
+            long priority = queued.getEffectivePriority(now, aging);
+            if (priority > bestPriority) {
+                best = queued;
+                bestPriority = priority;
+            }
+        }
+        mQueue.remove(best);
+        return best;
+    }
+
+    /**
+     * Apply the rejection policy to a full queue.
+     * 
+     * @return the work to reject, which may be the work being executed.
+     */
+    // call with mLock held
+    private Queued makeRoom(Queued queued) {
+        Queued victim = queued;
+        if (mRejectionPolicy == REJECT_OLDEST) {
+            victim = mQueue.getFirst();
+        } else if (mRejectionPolicy == REJECT_LOWEST) {
+            long now = System.nanoTime();
+            long lowest = queued.getEffectivePriority(now, mAging);
+            for (Queued candidate : mQueue) {
+                long priority = candidate.getEffectivePriority(now, mAging);
+                if (priority < lowest) {
+                    victim = candidate;
+                    lowest = priority;
+                }
+            }
+        }
+        if (victim != queued) {
+            mQueue.remove(victim);
+            mQueue.add(queued);
+        }
+        return victim;
+    }
+
+    private synchronized void onStarted(long waitNanos) {
+        mStartedCount++;
+        mTotalWaitNanos += waitNanos;
+        mMaxWaitNanos = Math.max(mMaxWaitNanos, waitNanos);
+    }
+
+    /**
+     * @param newest true if the work is being executed, so an exception can
+     *            be thrown back to the caller.
+     */
+    private void reject(Queued queued, boolean newest) {
+        synchronized (this) {
+            mRejectedCount++;
+        }
+        RejectedExecutionException e = new RejectedExecutionException(
+                "Too many requests for " + mThreadName + ": " + mMaxThreads
+                        + " threads and " + mQueueCapacity + " queued");
+        if (queued.work instanceof Job) {
+            ((Job) queued.work).onRejected(e);
+        } else if (newest) {
+            throw e;
+        }
+    }
+
+    /**
+     * Take work that hasn't started out of the queue, e.g. when it's
+     * cancelled.
+     */
+    boolean remove(Runnable work) {
+        synchronized (mLock) {
+            Iterator<Queued> queue = mQueue.iterator();
+            while (queue.hasNext()) {
+                if (queue.next().work == work) {
+                    queue.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
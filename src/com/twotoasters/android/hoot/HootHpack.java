@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541) header compression for the HTTP/2 transport. Each
+ * connection owns one {@link Encoder} and one {@link Decoder}; both are
+ * stateful and must see header blocks in the order they go over the wire.
+ * <p>
+ * Header names and values are carried as ISO-8859-1 strings so that every
+ * octet survives the round trip unchanged.
+ */
+class HootHpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    static class Encoder {
+
+        /**
+         * Apply the peer's SETTINGS_HEADER_TABLE_SIZE. The change is
+         * signalled at the start of the next header block.
+         */
+        void setMaxTableSize(int maxTableSize) {
+            mTable.setMaxSize(maxTableSize);
+            mPendingSizeUpdate = true;
+        }
+
+        byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (mPendingSizeUpdate) {
+                writeInteger(out, 0x20, 5, mTable.getMaxSize());
+                mPendingSizeUpdate = false;
+            }
+            for (String[] header : headers) {
+                encodeHeader(out, header[0], header[1]);
+            }
+            return out.toByteArray();
+        }
+
+        // ---------------------------------------------------------------------
+        private final DynamicTable mTable = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private boolean mPendingSizeUpdate;
+
+        private void encodeHeader(ByteArrayOutputStream out, String name,
+                String value) {
+            int index = findIndex(name, value);
+            if (index > 0) {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+
+            int nameIndex = findNameIndex(name);
+            if (SENSITIVE_HEADERS.contains(name)) {
+                // never indexed, so credentials don't linger in the table
+                writeInteger(out, 0x10, 4, nameIndex);
+            } else {
+                writeInteger(out, 0x40, 6, nameIndex);
+                mTable.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        private int findIndex(String name, String value) {
+            Integer index = STATIC_INDEX.get(name + '\0' + value);
+            if (index != null) {
+                return index;
+            }
+            int dynamic = mTable.indexOf(name, value);
+            return dynamic > 0 ? STATIC_TABLE.length + dynamic : 0;
+        }
+
+        private int findNameIndex(String name) {
+            Integer index = STATIC_NAME_INDEX.get(name);
+            if (index != null) {
+                return index;
+            }
+            int dynamic = mTable.indexOfName(name);
+            return dynamic > 0 ? STATIC_TABLE.length + dynamic : 0;
+        }
+    }
+
+    static class Decoder {
+
+        Decoder(int maxTableSize) {
+            mMaxAllowedTableSize = maxTableSize;
+            mTable = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * @return the header fields in the block, as name/value pairs.
+         */
+        List<String[]> decode(byte[] block) throws IOException {
+            List<String[]> headers = new ArrayList<String[]>();
+            int[] position = new int[] { 0 };
+            while (position[0] < block.length) {
+                int b = block[position[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(block, position, 7);
+                    headers.add(lookup(index));
+                } else if ((b & 0x40) != 0) {
+                    String[] header = readLiteral(block, position, 6);
+                    mTable.add(header[0], header[1]);
+                    headers.add(header);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInteger(block, position, 5);
+                    if (size > mMaxAllowedTableSize) {
+                        throw new ProtocolException("HPACK table size too large");
+                    }
+                    mTable.setMaxSize(size);
+                } else {
+                    // literal without indexing / never indexed
+                    headers.add(readLiteral(block, position, 4));
+                }
+            }
+            return headers;
+        }
+
+        // ---------------------------------------------------------------------
+        private final int mMaxAllowedTableSize;
+        private final DynamicTable mTable;
+
+        private String[] lookup(int index) throws IOException {
+            if (index <= 0) {
+                throw new ProtocolException("Bad HPACK index " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            String[] entry = mTable.get(index - STATIC_TABLE.length);
+            if (entry == null) {
+                throw new ProtocolException("Bad HPACK index " + index);
+            }
+            return entry;
+        }
+
+        private String[] readLiteral(byte[] block, int[] position, int prefix)
+                throws IOException {
+            int nameIndex = readInteger(block, position, prefix);
+            String name = nameIndex == 0 ? readString(block, position)
+                    : lookup(nameIndex)[0];
+            String value = readString(block, position);
+            return new String[] { name, value };
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" }
+    };
+
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<String, Integer>();
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+    private static final List<String> SENSITIVE_HEADERS = new ArrayList<String>();
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+        }
+        SENSITIVE_HEADERS.add("authorization");
+        SENSITIVE_HEADERS.add("cookie");
+        SENSITIVE_HEADERS.add("proxy-authorization");
+    }
+
+    private static class DynamicTable {
+        private final LinkedList<String[]> mEntries = new LinkedList<String[]>();
+        private int mSize;
+        private int mMaxSize;
+
+        DynamicTable(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        int getMaxSize() {
+            return mMaxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evict(0);
+        }
+
+        void add(String name, String value) {
+            int size = entrySize(name, value);
+            evict(size);
+            if (size <= mMaxSize) {
+                mEntries.addFirst(new String[] { name, value });
+                mSize += size;
+            }
+        }
+
+        /** @param index 1-based, newest first */
+        String[] get(int index) {
+            return index <= mEntries.size() ? mEntries.get(index - 1) : null;
+        }
+
+        int indexOf(String name, String value) {
+            int i = 1;
+            for (String[] entry : mEntries) {
+                if (entry[0].equals(name) && entry[1].equals(value)) {
+                    return i;
+                }
+                i++;
+            }
+            return 0;
+        }
+
+        int indexOfName(String name) {
+            int i = 1;
+            for (String[] entry : mEntries) {
+                if (entry[0].equals(name)) {
+                    return i;
+                }
+                i++;
+            }
+            return 0;
+        }
+
+        private void evict(int needed) {
+            while (!mEntries.isEmpty() && mSize + needed > mMaxSize) {
+                String[] entry = mEntries.removeLast();
+                mSize -= entrySize(entry[0], entry[1]);
+            }
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags,
+            int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readInteger(byte[] block, int[] position, int prefix)
+            throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = block[position[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (position[0] >= block.length || shift > 28) {
+                throw new ProtocolException("Bad HPACK integer");
+            }
+            b = block[position[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        byte[] bytes = toBytes(string);
+        int huffmanLength = huffmanLength(bytes);
+        if (huffmanLength < bytes.length) {
+            writeInteger(out, 0x80, 7, huffmanLength);
+            huffmanEncode(out, bytes);
+        } else {
+            writeInteger(out, 0, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static String readString(byte[] block, int[] position)
+            throws IOException {
+        if (position[0] >= block.length) {
+            throw new ProtocolException("Truncated HPACK string");
+        }
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int length = readInteger(block, position, 7);
+        if (length < 0 || position[0] + length > block.length) {
+            throw new ProtocolException("Truncated HPACK string");
+        }
+        int offset = position[0];
+        position[0] += length;
+        if (huffman) {
+            return huffmanDecode(block, offset, length);
+        }
+        return new String(block, offset, length, "ISO-8859-1");
+    }
+
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Huffman coding, RFC 7541 Appendix B
+    // -------------------------------------------------------------------------
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+            0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+            0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+            0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+            0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+            0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+            0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+            0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+            0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+            0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+            0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+            0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+            0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+            0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+            0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+            0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+            0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+            0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+            0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+            0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+    };
+
+    private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int EOS = 256;
+
+    /** Decoding trie: pairs of child slots; negative values are symbols. */
+    private static final int[] TRIE = buildTrie();
+
+    private static int[] buildTrie() {
+        int[] trie = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int node = 0;
+            int code = CODES[symbol];
+            int length = CODE_LENGTHS[symbol];
+            for (int bit = length - 1; bit >= 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (bit == 0) {
+                    trie[slot] = -(symbol + 1);
+                } else {
+                    if (trie[slot] == 0) {
+                        trie[slot] = nodes++;
+                    }
+                    node = trie[slot];
+                }
+            }
+        }
+        return trie;
+    }
+
+    private static int huffmanLength(byte[] bytes) {
+        long bits = 0;
+        for (byte b : bytes) {
+            bits += CODE_LENGTHS[b & 0xff];
+        }
+        return (int) ((bits + 7) >> 3);
+    }
+
+    private static void huffmanEncode(ByteArrayOutputStream out, byte[] bytes) {
+        long current = 0;
+        int n = 0;
+        for (byte b : bytes) {
+            int symbol = b & 0xff;
+            current = (current << CODE_LENGTHS[symbol]) | CODES[symbol];
+            n += CODE_LENGTHS[symbol];
+            while (n >= 8) {
+                n -= 8;
+                out.write((int) (current >> n));
+            }
+        }
+        if (n > 0) {
+            // pad with the high bits of EOS, which are all ones
+            current = (current << (8 - n)) | (0xff >>> n);
+            out.write((int) current);
+        }
+    }
+
+    private static String huffmanDecode(byte[] block, int offset, int length)
+            throws IOException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = block[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int next = TRIE[node * 2 + value];
+                depth++;
+                allOnes &= value == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new ProtocolException("EOS in Huffman string");
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new ProtocolException("Bad Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (depth > 7 || !allOnes) {
+            throw new ProtocolException("Bad Huffman padding");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,1015 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * A single HTTP/2 connection (RFC 7540) carrying any number of concurrent
+ * streams. One reader thread demultiplexes incoming frames; request bodies
+ * are written on the supplied executor so they can wait for flow-control
+ * credit without holding anyone else up.
+ * <p>
+ * Responses are handed over as soon as their headers arrive, and the server
+ * is only given more receive window as their bodies are read, so a slow
+ * reader holds the server back rather than filling memory.
+ */
+class HootHttp2Connection {
+
+    interface StreamListener {
+        /**
+         * Called on the reader thread once the response headers arrive. The
+         * body is read as the server sends it, and closing it early resets
+         * the stream.
+         */
+        public void onResponse(int statusCode, Map<String, List<String>> headers,
+                InputStream body);
+
+        /**
+         * Called if the stream fails before its response arrives; a failure
+         * after that is thrown from reads of the body.
+         */
+        public void onFailure(IOException e, boolean retryable);
+    }
+
+    class Stream {
+        final List<String[]> mRequestHeaders;
+        final byte[] mRequestBody;
+        final StreamListener mListener;
+        int mId;
+        int mSendWindow;
+        int mReceiveWindow = RECEIVE_WINDOW;
+        int mReceiveUnacknowledged;
+        int mStatusCode;
+        final Map<String, List<String>> mResponseHeaders = new LinkedHashMap<String, List<String>>();
+        // body data received but not yet read
+        final LinkedList<ByteBuffer> mResponseBody = new LinkedList<ByteBuffer>();
+        boolean mResponseDelivered;
+        IOException mFailure;
+        boolean mDone;
+        long mLastActivity;
+
+        Stream(List<String[]> headers, byte[] body, StreamListener listener) {
+            mRequestHeaders = headers;
+            mRequestBody = body;
+            mListener = listener;
+            mLastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Reset just this stream; the connection and its other streams carry
+         * on untouched.
+         */
+        void cancel() {
+            reset(this, ERROR_CANCEL, new IOException("Request cancelled"));
+        }
+    }
+
+    HootHttp2Connection(Socket socket, Executor bodyWriter, int timeout) {
+        mSocket = socket;
+        mBodyWriter = bodyWriter;
+        mTimeout = timeout;
+    }
+
+    /**
+     * Send the connection preface and our settings, start reading, and wait
+     * for the server's settings, so the first streams already respect its
+     * concurrency limit and window.
+     */
+    void start() throws IOException {
+        mSocket.setSoTimeout(0);
+        mSocket.setTcpNoDelay(true);
+        mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream(), 16 * 1024));
+        mOut = new BufferedOutputStream(mSocket.getOutputStream(), 16 * 1024);
+
+        synchronized (mWriteLock) {
+            mOut.write(PREFACE);
+            ByteArrayOutputStream settings = new ByteArrayOutputStream();
+            writeSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+            writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+            writeFrame(TYPE_SETTINGS, 0, 0, settings.toByteArray());
+            // grow the connection window to match our stream window
+            writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+            mOut.flush();
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "Hoot-HTTP2-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        boolean ready;
+        long deadline = System.currentTimeMillis() + mTimeout;
+        synchronized (this) {
+            while (!mSettingsReceived && !mShutdown) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            ready = mSettingsReceived && !mShutdown;
+        }
+        if (!ready) {
+            IOException e = new SocketTimeoutException("No SETTINGS from server");
+            close(e, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Open a new stream, or queue it if the server's concurrent stream limit
+     * has been reached.
+     */
+    Stream newStream(List<String[]> headers, byte[] body,
+            StreamListener listener) throws IOException {
+        Stream stream = new Stream(headers, body, listener);
+        synchronized (this) {
+            if (mShutdown) {
+                throw new IOException("Connection is shut down");
+            }
+            if (mStreams.size() >= mMaxConcurrentStreams) {
+                mQueuedStreams.add(stream);
+                return stream;
+            }
+        }
+        open(stream);
+        return stream;
+    }
+
+    /**
+     * @return true if new streams can be started on this connection.
+     */
+    synchronized boolean isUsable() {
+        return !mShutdown && !mSocket.isClosed();
+    }
+
+    synchronized boolean isIdle() {
+        return mStreams.isEmpty() && mQueuedStreams.isEmpty();
+    }
+
+    synchronized long getIdleSince() {
+        return mIdleSince;
+    }
+
+    /**
+     * Fail any stream that hasn't heard from the server within the timeout.
+     */
+    void checkTimeouts(long now) {
+        List<Stream> expired = new ArrayList<Stream>();
+        synchronized (this) {
+            for (Stream stream : mStreams.values()) {
+                // a stream with unread data is waiting on its reader, not
+                // on the server
+                if (stream.mResponseBody.isEmpty()
+                        && now - stream.mLastActivity > mTimeout) {
+                    expired.add(stream);
+                }
+            }
+        }
+        for (Stream stream : expired) {
+            reset(stream, ERROR_CANCEL, new SocketTimeoutException(
+                    "Request timed out"));
+        }
+    }
+
+    /**
+     * Politely tell the server we're going away and close the socket.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        goAway(ERROR_NO_ERROR);
+        close(new IOException("Connection shut down"), true);
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootHttp2Connection.class.getSimpleName();
+
+    private static final byte[] PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0',
+            '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_FLOW_CONTROL = 0x3;
+    private static final int ERROR_FRAME_SIZE = 0x6;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    private final Socket mSocket;
+    private final Executor mBodyWriter;
+    private final int mTimeout;
+    private DataInputStream mIn;
+    private OutputStream mOut;
+    private final Object mWriteLock = new Object();
+
+    private final HootHpack.Encoder mEncoder = new HootHpack.Encoder();
+    private final HootHpack.Decoder mDecoder = new HootHpack.Decoder(
+            HootHpack.DEFAULT_TABLE_SIZE);
+
+    // guarded by this
+    private final Map<Integer, Stream> mStreams = new HashMap<Integer, Stream>();
+    private final LinkedList<Stream> mQueuedStreams = new LinkedList<Stream>();
+    private int mNextStreamId = 1;
+    private int mLastRemoteStreamId;
+    private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int mInitialSendWindow = DEFAULT_WINDOW;
+    private int mConnectionSendWindow = DEFAULT_WINDOW;
+    private int mConnectionReceiveWindow = RECEIVE_WINDOW;
+    private int mConnectionReceiveUnacknowledged;
+    private int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean mShutdown;
+    private boolean mSettingsReceived;
+    private long mIdleSince = System.currentTimeMillis();
+
+    private void open(final Stream stream) throws IOException {
+        boolean hasBody = stream.mRequestBody != null
+                && stream.mRequestBody.length > 0;
+        synchronized (mWriteLock) {
+            // stream ids and HPACK state both have to follow wire order, so
+            // allocate and encode under the write lock
+            synchronized (this) {
+                if (mShutdown || mNextStreamId < 0) {
+                    throw new IOException("Connection is shut down");
+                }
+                stream.mId = mNextStreamId;
+                mNextStreamId += 2;
+                stream.mSendWindow = mInitialSendWindow;
+                mStreams.put(stream.mId, stream);
+            }
+            byte[] block = mEncoder.encode(stream.mRequestHeaders);
+            int flags = hasBody ? 0 : FLAG_END_STREAM;
+            int length = Math.min(block.length, mMaxFrameSize);
+            writeFrame(TYPE_HEADERS, flags
+                    | (length == block.length ? FLAG_END_HEADERS : 0),
+                    stream.mId, block, 0, length);
+            for (int offset = length; offset < block.length; offset += length) {
+                length = Math.min(block.length - offset, mMaxFrameSize);
+                writeFrame(TYPE_CONTINUATION,
+                        offset + length == block.length ? FLAG_END_HEADERS : 0,
+                        stream.mId, block, offset, length);
+            }
+            mOut.flush();
+        }
+
+        if (hasBody) {
+            mBodyWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeBody(stream);
+                    } catch (IOException e) {
+                        reset(stream, ERROR_CANCEL, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private void writeBody(Stream stream) throws IOException {
+        byte[] body = stream.mRequestBody;
+        int offset = 0;
+        while (offset < body.length) {
+            int length;
+            synchronized (this) {
+                while (!stream.mDone && !mShutdown
+                        && (stream.mSendWindow <= 0 || mConnectionSendWindow <= 0)) {
+                    try {
+                        wait(mTimeout);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                    if (System.currentTimeMillis() - stream.mLastActivity > mTimeout) {
+                        throw new SocketTimeoutException("Timed out waiting for flow control");
+                    }
+                }
+                if (stream.mDone || mShutdown) {
+                    return;
+                }
+                length = Math.min(body.length - offset, mMaxFrameSize);
+                length = Math.min(length, stream.mSendWindow);
+                length = Math.min(length, mConnectionSendWindow);
+                stream.mSendWindow -= length;
+                mConnectionSendWindow -= length;
+            }
+            boolean last = offset + length == body.length;
+            synchronized (mWriteLock) {
+                writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.mId,
+                        body, offset, length);
+                mOut.flush();
+            }
+            offset += length;
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int length = (mIn.readUnsignedByte() << 16)
+                        | mIn.readUnsignedShort();
+                int type = mIn.readUnsignedByte();
+                int flags = mIn.readUnsignedByte();
+                int streamId = mIn.readInt() & 0x7fffffff;
+                // we never raise SETTINGS_MAX_FRAME_SIZE, so the default is
+                // the most the server may send
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ConnectionError(ERROR_FRAME_SIZE, "Frame too large");
+                }
+                byte[] payload = new byte[length];
+                mIn.readFully(payload);
+                onFrame(type, flags, streamId, payload);
+            }
+        } catch (ConnectionError e) {
+            goAway(e.mErrorCode);
+            close(e, false);
+        } catch (IOException e) {
+            close(e, false);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "HTTP/2 reader failed", e);
+            close(new IOException(e.toString()), false);
+        }
+    }
+
+    /**
+     * A connection error (RFC 7540 section 5.4.1), which tells the server
+     * why in a GOAWAY before the connection closes.
+     */
+    private static class ConnectionError extends ProtocolException {
+        final int mErrorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            mErrorCode = errorCode;
+        }
+    }
+
+    private ByteArrayOutputStream mHeaderBlock;
+    private int mHeaderBlockStream;
+    private int mHeaderBlockFlags;
+
+    private void onFrame(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        if (mHeaderBlock != null && type != TYPE_CONTINUATION) {
+            throw new ProtocolException("Expected CONTINUATION");
+        }
+        switch (type) {
+            case TYPE_DATA:
+                onData(flags, streamId, payload);
+                break;
+            case TYPE_HEADERS:
+                int offset = 0;
+                int end = payload.length;
+                if ((flags & FLAG_PADDED) != 0) {
+                    end -= payload[offset++] & 0xff;
+                }
+                if ((flags & FLAG_PRIORITY) != 0) {
+                    offset += 5;
+                }
+                if (offset > end) {
+                    throw new ProtocolException("Bad HEADERS padding");
+                }
+                mHeaderBlock = new ByteArrayOutputStream();
+                mHeaderBlock.write(payload, offset, end - offset);
+                mHeaderBlockStream = streamId;
+                mHeaderBlockFlags = flags;
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+                break;
+            case TYPE_CONTINUATION:
+                if (mHeaderBlock == null || streamId != mHeaderBlockStream) {
+                    throw new ProtocolException("Unexpected CONTINUATION");
+                }
+                mHeaderBlock.write(payload, 0, payload.length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+                break;
+            case TYPE_RST_STREAM:
+                Stream reset;
+                synchronized (this) {
+                    reset = mStreams.get(streamId);
+                }
+                if (reset != null) {
+                    int code = payload.length >= 4 ? readInt(payload, 0) : 0;
+                    finish(reset, new IOException("Stream reset by server, error "
+                            + code), code == ERROR_REFUSED_STREAM);
+                }
+                break;
+            case TYPE_SETTINGS:
+                if ((flags & FLAG_ACK) == 0) {
+                    onSettings(payload);
+                }
+                break;
+            case TYPE_PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (mWriteLock) {
+                        writeFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                        mOut.flush();
+                    }
+                }
+                break;
+            case TYPE_GOAWAY:
+                onGoAway(readInt(payload, 0) & 0x7fffffff);
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+                break;
+            case TYPE_PUSH_PROMISE:
+                // we disabled push in our settings
+                throw new ProtocolException("Unexpected PUSH_PROMISE");
+            case TYPE_PRIORITY:
+            default:
+                // ignore
+                break;
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        // always decode so HPACK state stays in sync, even for streams we've
+        // already reset
+        List<String[]> headers = mDecoder.decode(mHeaderBlock.toByteArray());
+        int streamId = mHeaderBlockStream;
+        boolean endStream = (mHeaderBlockFlags & FLAG_END_STREAM) != 0;
+        mHeaderBlock = null;
+
+        Stream stream;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+        }
+        if (stream == null) {
+            return;
+        }
+        stream.mLastActivity = System.currentTimeMillis();
+        if (stream.mResponseDelivered) {
+            // trailers, which we don't surface
+            if (endStream) {
+                finish(stream, null, false);
+            }
+            return;
+        }
+        for (String[] header : headers) {
+            if (header[0].equals(":status")) {
+                int status = Integer.parseInt(header[1]);
+                if (status >= 100 && status < 200) {
+                    // interim response
+                    return;
+                }
+                stream.mStatusCode = status;
+            } else if (!header[0].startsWith(":")) {
+                List<String> values = stream.mResponseHeaders.get(header[0]);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    stream.mResponseHeaders.put(header[0], values);
+                }
+                values.add(header[1]);
+            }
+        }
+        if (endStream) {
+            finish(stream, null, false);
+            return;
+        }
+        boolean deliver;
+        synchronized (this) {
+            deliver = !stream.mDone;
+            stream.mResponseDelivered = true;
+        }
+        if (deliver) {
+            stream.mListener.onResponse(stream.mStatusCode,
+                    stream.mResponseHeaders, new ResponseBody(stream));
+        }
+    }
+
+    private void onData(int flags, int streamId, byte[] payload)
+            throws IOException {
+        int offset = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload[offset++] & 0xff;
+        }
+        if (offset > end) {
+            throw new ProtocolException("Bad DATA padding");
+        }
+
+        int length = end - offset;
+        Stream stream;
+        boolean overflow = false;
+        synchronized (this) {
+            // flow control counts the whole frame, padding included
+            mConnectionReceiveWindow -= payload.length;
+            if (mConnectionReceiveWindow < 0) {
+                throw new ConnectionError(ERROR_FLOW_CONTROL,
+                        "Connection receive window exceeded");
+            }
+            stream = mStreams.get(streamId);
+            if (stream != null) {
+                stream.mReceiveWindow -= payload.length;
+                if (stream.mReceiveWindow < 0) {
+                    overflow = true;
+                } else if (length > 0) {
+                    stream.mResponseBody.add(ByteBuffer.wrap(payload, offset,
+                            length));
+                    stream.mLastActivity = System.currentTimeMillis();
+                    notifyAll();
+                }
+            }
+        }
+
+        if (stream == null || overflow) {
+            // nobody will read this, so hand the window straight back
+            acknowledge(null, payload.length);
+            if (overflow) {
+                reset(stream, ERROR_FLOW_CONTROL, new ProtocolException(
+                        "Stream receive window exceeded"));
+            }
+            return;
+        }
+        // the padding is never read either
+        acknowledge(stream, payload.length - length);
+        if ((flags & FLAG_END_STREAM) != 0) {
+            finish(stream, null, false);
+        }
+    }
+
+    /**
+     * Gives back receive window for bytes that have been read or thrown
+     * away, once enough has built up to be worth a WINDOW_UPDATE.
+     * 
+     * @param stream the stream the bytes were read from, or null to only
+     *            credit the connection.
+     */
+    private void acknowledge(Stream stream, int length) {
+        if (length <= 0) {
+            return;
+        }
+        int connectionUpdate = 0;
+        int streamUpdate = 0;
+        synchronized (this) {
+            mConnectionReceiveUnacknowledged += length;
+            if (mConnectionReceiveUnacknowledged >= RECEIVE_WINDOW / 2) {
+                connectionUpdate = mConnectionReceiveUnacknowledged;
+                mConnectionReceiveUnacknowledged = 0;
+                mConnectionReceiveWindow += connectionUpdate;
+            }
+            // once the server has ended the stream it can't send more
+            if (stream != null && !stream.mDone) {
+                stream.mReceiveUnacknowledged += length;
+                if (stream.mReceiveUnacknowledged >= RECEIVE_WINDOW / 2) {
+                    streamUpdate = stream.mReceiveUnacknowledged;
+                    stream.mReceiveUnacknowledged = 0;
+                    stream.mReceiveWindow += streamUpdate;
+                }
+            }
+        }
+        if (connectionUpdate == 0 && streamUpdate == 0) {
+            return;
+        }
+        try {
+            synchronized (mWriteLock) {
+                if (connectionUpdate > 0) {
+                    writeWindowUpdate(0, connectionUpdate);
+                }
+                if (streamUpdate > 0) {
+                    writeWindowUpdate(stream.mId, streamUpdate);
+                }
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            // the reader will see the connection fail
+        }
+    }
+
+    /**
+     * Throws away a stream's unread body. Caller must hold this.
+     * 
+     * @return the number of bytes thrown away.
+     */
+    private int discardResponseBody(Stream stream) {
+        int discarded = 0;
+        for (ByteBuffer buffer : stream.mResponseBody) {
+            discarded += buffer.remaining();
+        }
+        stream.mResponseBody.clear();
+        return discarded;
+    }
+
+    private void onSettings(byte[] payload) throws IOException {
+        if (payload.length % 6 != 0) {
+            throw new ProtocolException("Bad SETTINGS length");
+        }
+        List<Stream> startable = new ArrayList<Stream>();
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                for (int i = 0; i < payload.length; i += 6) {
+                    int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                    int value = readInt(payload, i + 2);
+                    switch (id) {
+                        case SETTINGS_HEADER_TABLE_SIZE:
+                            mEncoder.setMaxTableSize(Math.min(value,
+                                    HootHpack.DEFAULT_TABLE_SIZE));
+                            break;
+                        case SETTINGS_MAX_CONCURRENT_STREAMS:
+                            mMaxConcurrentStreams = value;
+                            break;
+                        case SETTINGS_INITIAL_WINDOW_SIZE:
+                            if (value < 0) {
+                                throw new ProtocolException("Bad initial window size");
+                            }
+                            int delta = value - mInitialSendWindow;
+                            mInitialSendWindow = value;
+                            for (Stream stream : mStreams.values()) {
+                                stream.mSendWindow += delta;
+                            }
+                            break;
+                        case SETTINGS_MAX_FRAME_SIZE:
+                            mMaxFrameSize = value;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                mSettingsReceived = true;
+                notifyAll();
+                while (!mQueuedStreams.isEmpty()
+                        && mStreams.size() + startable.size() < mMaxConcurrentStreams) {
+                    startable.add(mQueuedStreams.removeFirst());
+                }
+            }
+            writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+            mOut.flush();
+        }
+        for (Stream stream : startable) {
+            startQueued(stream);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (this) {
+            if (streamId == 0) {
+                mConnectionSendWindow += increment;
+                if (mConnectionSendWindow < 0) {
+                    throw new ProtocolException("Connection window overflow");
+                }
+            } else {
+                Stream stream = mStreams.get(streamId);
+                if (stream != null) {
+                    stream.mSendWindow += increment;
+                    stream.mLastActivity = System.currentTimeMillis();
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private void onGoAway(int lastStreamId) {
+        List<Stream> refused = new ArrayList<Stream>();
+        synchronized (this) {
+            mShutdown = true;
+            for (Stream stream : mStreams.values()) {
+                if (stream.mId > lastStreamId) {
+                    refused.add(stream);
+                }
+            }
+            refused.addAll(mQueuedStreams);
+            mQueuedStreams.clear();
+            notifyAll();
+        }
+        // the server never processed these, so they're safe to retry
+        for (Stream stream : refused) {
+            finish(stream, new IOException("Connection going away"), true);
+        }
+    }
+
+    private void reset(Stream stream, int errorCode, IOException e) {
+        boolean wasOpen;
+        synchronized (this) {
+            wasOpen = mStreams.containsKey(stream.mId) && stream.mId != 0;
+            if (mQueuedStreams.remove(stream)) {
+                wasOpen = false;
+            }
+        }
+        if (wasOpen) {
+            byte[] payload = new byte[4];
+            writeInt(payload, 0, errorCode);
+            try {
+                synchronized (mWriteLock) {
+                    writeFrame(TYPE_RST_STREAM, 0, stream.mId, payload);
+                    mOut.flush();
+                }
+            } catch (IOException ignored) {
+                // the connection is going down anyway
+            }
+        }
+        finish(stream, e, false);
+    }
+
+    /**
+     * Complete a stream exactly once, and start anything that was queued
+     * behind it.
+     */
+    private void finish(Stream stream, IOException e, boolean retryable) {
+        Stream next = null;
+        boolean delivered;
+        int discarded = 0;
+        synchronized (this) {
+            if (stream.mDone) {
+                return;
+            }
+            stream.mDone = true;
+            delivered = stream.mResponseDelivered;
+            stream.mResponseDelivered = true;
+            if (e != null) {
+                stream.mFailure = e;
+                discarded = discardResponseBody(stream);
+            }
+            mStreams.remove(stream.mId);
+            mQueuedStreams.remove(stream);
+            if (!mShutdown && !mQueuedStreams.isEmpty()
+                    && mStreams.size() < mMaxConcurrentStreams) {
+                next = mQueuedStreams.removeFirst();
+            }
+            if (mStreams.isEmpty()) {
+                mIdleSince = System.currentTimeMillis();
+            }
+            notifyAll();
+        }
+        if (!delivered) {
+            if (e != null) {
+                stream.mListener.onFailure(e, retryable);
+            } else {
+                stream.mListener.onResponse(stream.mStatusCode,
+                        stream.mResponseHeaders, new ResponseBody(stream));
+            }
+        }
+        acknowledge(null, discarded);
+        if (next != null) {
+            startQueued(next);
+        }
+    }
+
+    private void startQueued(Stream stream) {
+        try {
+            open(stream);
+        } catch (IOException e) {
+            finish(stream, e, true);
+        }
+    }
+
+    /**
+     * A stream's response body, read as the server sends it. Reading is what
+     * gives the server more window to send into.
+     */
+    private class ResponseBody extends InputStream {
+
+        ResponseBody(Stream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            int read = 0;
+            synchronized (HootHttp2Connection.this) {
+                while (mStream.mResponseBody.isEmpty()) {
+                    if (mClosed) {
+                        throw new IOException("Response body closed");
+                    }
+                    if (mStream.mFailure != null) {
+                        throw mStream.mFailure;
+                    }
+                    if (mStream.mDone) {
+                        return -1;
+                    }
+                    try {
+                        HootHttp2Connection.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                while (read < count && !mStream.mResponseBody.isEmpty()) {
+                    ByteBuffer chunk = mStream.mResponseBody.getFirst();
+                    int length = Math.min(count - read, chunk.remaining());
+                    chunk.get(buffer, offset + read, length);
+                    read += length;
+                    if (!chunk.hasRemaining()) {
+                        mStream.mResponseBody.removeFirst();
+                    }
+                }
+                mStream.mLastActivity = System.currentTimeMillis();
+            }
+            acknowledge(mStream, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            synchronized (HootHttp2Connection.this) {
+                int available = 0;
+                for (ByteBuffer chunk : mStream.mResponseBody) {
+                    available += chunk.remaining();
+                }
+                return available;
+            }
+        }
+
+        /**
+         * Closing before the end of the body resets the stream, so the
+         * server stops sending what nobody will read.
+         */
+        @Override
+        public void close() {
+            int discarded;
+            boolean open;
+            synchronized (HootHttp2Connection.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                discarded = discardResponseBody(mStream);
+                open = !mStream.mDone;
+            }
+            acknowledge(null, discarded);
+            if (open) {
+                HootHttp2Connection.this.reset(mStream, ERROR_CANCEL,
+                        new IOException("Response body closed"));
+            }
+        }
+
+        private final Stream mStream;
+        // guarded by HootHttp2Connection.this
+        private boolean mClosed;
+    }
+
+    private void close(IOException e, boolean retryable) {
+        List<Stream> streams;
+        List<Stream> queued;
+        synchronized (this) {
+            mShutdown = true;
+            streams = new ArrayList<Stream>(mStreams.values());
+            queued = new ArrayList<Stream>(mQueuedStreams);
+            mQueuedStreams.clear();
+            notifyAll();
+        }
+        try {
+            mSocket.close();
+        } catch (IOException ignored) {
+            // already closing
+        }
+        for (Stream stream : streams) {
+            finish(stream, e, retryable);
+        }
+        // queued streams never reached the server
+        for (Stream stream : queued) {
+            finish(stream, e, true);
+        }
+    }
+
+    private void goAway(int errorCode) {
+        byte[] payload = new byte[8];
+        synchronized (this) {
+            writeInt(payload, 0, mLastRemoteStreamId);
+        }
+        writeInt(payload, 4, errorCode);
+        try {
+            synchronized (mWriteLock) {
+                writeFrame(TYPE_GOAWAY, 0, 0, payload);
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    /** Caller must hold mWriteLock. */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload,
+            int offset, int length) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId & 0x7fffffff);
+        mOut.write(header);
+        mOut.write(payload, offset, length);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment)
+            throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        byte[] bytes = new byte[4];
+        writeInt(bytes, 0, value);
+        out.write(bytes, 0, 4);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) throws IOException {
+        if (bytes.length < offset + 4) {
+            throw new ProtocolException("Frame too short");
+        }
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+}
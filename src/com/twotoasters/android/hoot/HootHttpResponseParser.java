@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental HTTP/1.1 response parser. Bytes are fed in as they arrive off
+ * the wire, so a single thread can parse many responses at once without ever
+ * blocking on a read.
+ */
+class HootHttpResponseParser {
+
+    HootHttpResponseParser(boolean isHeadRequest) {
+        mIsHeadRequest = isHeadRequest;
+    }
+
+    /**
+     * Consume as much of the buffer as belongs to this response.
+     *
+     * @return true once the complete response has been parsed.
+     */
+    boolean feed(ByteBuffer buffer) throws IOException {
+        mBytesReceived += buffer.remaining();
+        while (buffer.hasRemaining() && mState != State.DONE) {
+            switch (mState) {
+                case STATUS_LINE:
+                case HEADERS:
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILERS:
+                    String line = readLine(buffer);
+                    if (line != null) {
+                        onLine(line);
+                    }
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    int count = (int) Math.min(buffer.remaining(), mRemaining);
+                    mBody.write(buffer.array(), buffer.arrayOffset()
+                            + buffer.position(), count);
+                    buffer.position(buffer.position() + count);
+                    mRemaining -= count;
+                    if (mRemaining == 0) {
+                        mState = mState == State.BODY ? State.DONE
+                                : State.CHUNK_END;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    mBody.write(buffer.array(), buffer.arrayOffset()
+                            + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return mState == State.DONE;
+    }
+
+    /**
+     * Called when the server closes the connection.
+     *
+     * @return true if the response was complete.
+     * @throws EOFException if the connection closed mid-response.
+     */
+    boolean finish() throws IOException {
+        if (mState == State.BODY_UNTIL_CLOSE) {
+            mState = State.DONE;
+            mKeepAlive = false;
+        }
+        if (mState != State.DONE) {
+            throw new EOFException("Connection closed before response completed");
+        }
+        return true;
+    }
+
+    boolean isComplete() {
+        return mState == State.DONE;
+    }
+
+    int getStatusCode() {
+        return mStatusCode;
+    }
+
+    Map<String, List<String>> getHeaders() {
+        return mHeaders;
+    }
+
+    byte[] getBody() {
+        return mBody.toByteArray();
+    }
+
+    long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * @return how much of the body has been received so far.
+     */
+    long getBodyBytesReceived() {
+        return mBody.size();
+    }
+
+    /**
+     * @return the body's Content-Length, or -1 if it's chunked, delimited by
+     *         the connection closing, or the headers haven't arrived yet.
+     */
+    long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * @return true if the connection can carry another request once this
+     *         response is done.
+     */
+    boolean isKeepAlive() {
+        return mKeepAlive && mState == State.DONE;
+    }
+
+    static String getHeader(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())
+                    && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private enum State {
+        STATUS_LINE, HEADERS, BODY, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA,
+        CHUNK_END, TRAILERS, DONE
+    }
+
+    private final boolean mIsHeadRequest;
+    private State mState = State.STATUS_LINE;
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+    private final Map<String, List<String>> mHeaders = new LinkedHashMap<String, List<String>>();
+    private int mStatusCode;
+    private boolean mKeepAlive;
+    private long mRemaining;
+    private long mBytesReceived;
+    private long mContentLength = -1;
+
+    private String readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                byte[] bytes = mLine.toByteArray();
+                mLine.reset();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(bytes, 0, length, "ISO-8859-1");
+            }
+            mLine.write(b);
+            if (mLine.size() > MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response line too long");
+            }
+        }
+        return null;
+    }
+
+    private void onLine(String line) throws IOException {
+        switch (mState) {
+            case STATUS_LINE:
+                parseStatusLine(line);
+                break;
+            case HEADERS:
+                if (line.length() == 0) {
+                    onHeadersComplete();
+                } else {
+                    addHeader(line);
+                }
+                break;
+            case CHUNK_SIZE:
+                int extension = line.indexOf(';');
+                String size = (extension >= 0 ? line.substring(0, extension)
+                        : line).trim();
+                try {
+                    mRemaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Bad chunk size [" + line + "]");
+                }
+                mState = mRemaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                mState = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (line.length() == 0) {
+                    mState = State.DONE;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void parseStatusLine(String line) throws IOException {
+        // HTTP/1.1 200 OK
+        if (!line.startsWith("HTTP/") || line.length() < 12) {
+            throw new ProtocolException("Bad status line [" + line + "]");
+        }
+        try {
+            mStatusCode = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad status line [" + line + "]");
+        }
+        mKeepAlive = line.startsWith("HTTP/1.1");
+        mState = State.HEADERS;
+    }
+
+    private void addHeader(String line) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        List<String> values = mHeaders.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            mHeaders.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private void onHeadersComplete() throws IOException {
+        if (mStatusCode >= 100 && mStatusCode < 200) {
+            // interim response, the real one follows
+            mHeaders.clear();
+            mState = State.STATUS_LINE;
+            return;
+        }
+
+        String connection = getHeader(mHeaders, "Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) {
+                mKeepAlive = false;
+            } else if (connection.equalsIgnoreCase("keep-alive")) {
+                mKeepAlive = true;
+            }
+        }
+
+        if (mIsHeadRequest || mStatusCode == 204 || mStatusCode == 304) {
+            mState = State.DONE;
+            return;
+        }
+
+        String transferEncoding = getHeader(mHeaders, "Transfer-Encoding");
+        String contentLength = getHeader(mHeaders, "Content-Length");
+        if (transferEncoding != null
+                && transferEncoding.toLowerCase().contains("chunked")) {
+            mState = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                mRemaining = Long.parseLong(contentLength);
+                mContentLength = mRemaining;
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad Content-Length ["
+                        + contentLength + "]");
+            }
+            mState = mRemaining == 0 ? State.DONE : State.BODY;
+        } else {
+            mState = State.BODY_UNTIL_CLOSE;
+            mKeepAlive = false;
+        }
+    }
+
+}
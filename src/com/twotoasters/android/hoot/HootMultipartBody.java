@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A multipart/form-data body. Part headers are encoded as parts are added,
+ * so the exact length is known before anything is sent and the body can go
+ * out with a fixed length; each part is then streamed from its own
+ * {@link HootBody}, so a file part never has to fit in memory.
+ * 
+ * <pre>
+ * request.post(new HootMultipartBody()
+ *         .addField(&quot;title&quot;, title)
+ *         .addFile(&quot;video&quot;, file, &quot;video/mp4&quot;));
+ * </pre>
+ */
+public class HootMultipartBody extends HootBody {
+
+    public HootMultipartBody() {
+        this(generateBoundary());
+    }
+
+    public HootMultipartBody(String boundary) {
+        mBoundary = boundary;
+        setContentType("multipart/form-data; boundary=" + boundary);
+    }
+
+    public String getBoundary() {
+        return mBoundary;
+    }
+
+    /**
+     * Add a text field, sent as UTF-8.
+     */
+    public HootMultipartBody addField(String name, String value) {
+        return addPart(name, null, HootBody.create(value));
+    }
+
+    /**
+     * Add a file part named after the file.
+     * 
+     * @param contentType the file's type, or null for
+     *            "application/octet-stream".
+     */
+    public HootMultipartBody addFile(String name, File file, String contentType) {
+        return addPart(name, file.getName(), HootBody.create(file)
+                .setContentType(contentType != null ? contentType
+                        : DEFAULT_PART_CONTENT_TYPE));
+    }
+
+    /**
+     * Add a part with the given body; its content type, if any, is sent as
+     * the part's "Content-Type".
+     * 
+     * @param fileName the file name to report, or null for a plain field.
+     */
+    public HootMultipartBody addPart(String name, String fileName, HootBody body) {
+        StringBuilder head = new StringBuilder();
+        head.append("--").append(mBoundary).append(CRLF);
+        head.append("Content-Disposition: form-data; name=\"")
+                .append(escape(name)).append('"');
+        if (fileName != null) {
+            head.append("; filename=\"").append(escape(fileName)).append('"');
+        }
+        head.append(CRLF);
+        if (body.getContentType() != null) {
+            head.append("Content-Type: ").append(body.getContentType())
+                    .append(CRLF);
+        }
+        head.append(CRLF);
+        mParts.add(new Part(getBytes(head.toString()), body));
+        return this;
+    }
+
+    /**
+     * @return the exact length, or -1 if a part's length isn't known, in
+     *         which case the body is sent chunked.
+     */
+    @Override
+    public long getContentLength() {
+        long length = getBytes("--" + mBoundary + "--" + CRLF).length;
+        for (Part part : mParts) {
+            long partLength = part.body.getContentLength();
+            if (partLength < 0) {
+                return -1;
+            }
+            length += part.head.length + partLength + 2;
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isReplayable() {
+        for (Part part : mParts) {
+            if (!part.body.isReplayable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        byte[] crlf = getBytes(CRLF);
+        for (Part part : mParts) {
+            os.write(part.head);
+            part.body.writeTo(os);
+            os.write(crlf);
+        }
+        os.write(getBytes("--" + mBoundary + "--" + CRLF));
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String CRLF = "\r\n";
+    private static final String DEFAULT_PART_CONTENT_TYPE = "application/octet-stream";
+    private static final char[] BOUNDARY_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            .toCharArray();
+
+    private final String mBoundary;
+    private final List<Part> mParts = new ArrayList<Part>();
+
+    private static class Part {
+        final byte[] head;
+        final HootBody body;
+
+        Part(byte[] head, HootBody body) {
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    private static String generateBoundary() {
+        Random random = new Random();
+        StringBuilder boundary = new StringBuilder("HootBoundary");
+        for (int i = 0; i < 24; i++) {
+            boundary.append(BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)]);
+        }
+        return boundary.toString();
+    }
+
+    /**
+     * Quotes and line breaks can't appear in a quoted header value; encode
+     * them the way browsers do.
+     */
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D")
+                .replace("\n", "%0A");
+    }
+
+    private static byte[] getBytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+
+import android.net.Uri;
+
+/**
+ * A transport that pools connections and can open them ahead of time, see
+ * {@link Hoot#prewarm(int)}.
+ */
+public interface HootPooledTransport extends HootTransport {
+
+    /**
+     * Resolve the host, connect and complete any TLS handshake for up to
+     * <code>connections</code> connections to the URI's host, and park them
+     * in the pool for the next requests. Called off the main thread; may
+     * block.
+     */
+    public void prewarm(Uri uri, int connections) throws IOException;
+
+}
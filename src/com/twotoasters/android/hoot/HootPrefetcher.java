@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * A Hoot's prefetch lane: requests passed to {@link Hoot#prefetch} are sent
+ * one at a time, on a low priority thread, only while none of the Hoot's
+ * other requests are queued or in flight. One in flight when another request
+ * is executed is cancelled, and the lane is emptied once its byte budget is
+ * spent.
+ */
+class HootPrefetcher {
+
+    HootPrefetcher(Hoot hoot) {
+        mHoot = hoot;
+    }
+
+    synchronized void add(HootRequest... requests) {
+        for (HootRequest request : requests) {
+            request.setPrefetch(true);
+            mQueue.add(request);
+        }
+        schedule();
+    }
+
+    synchronized void setBudget(long bytes) {
+        mBudget = bytes;
+    }
+
+    synchronized long getBudget() {
+        return mBudget;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized int getQueueSize() {
+        return mQueue.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    /**
+     * Drop the queued prefetches and cancel the one in flight.
+     */
+    synchronized void cancelAll() {
+        mQueue.clear();
+        if (mCurrent != null) {
+            mCurrent.cancel();
+        }
+    }
+
+    /**
+     * Called as a request other than a prefetch is executed. Cancels the
+     * prefetch in flight, and holds the rest back until it's done.
+     * 
+     * @return true if the request wasn't already being tracked.
+     */
+    synchronized boolean onForegroundStarted(HootRequest request) {
+        if (request.isPrefetch() || !mForeground.add(request)) {
+            return false;
+        }
+        if (mCurrent != null && !mCurrent.isCancelled()) {
+            Log.v(TAG, "Cancelling prefetch of [" + mCurrent.buildUri()
+                    + "] for a request");
+            mCurrent.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Called as a request other than a prefetch completes or is cancelled.
+     */
+    synchronized void onForegroundFinished(HootRequest request) {
+        if (mForeground.remove(request)) {
+            schedule();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootPrefetcher.class.getSimpleName();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static ExecutorService sExecutor;
+
+    private final Hoot mHoot;
+
+    // guarded by this
+    private final LinkedList<HootRequest> mQueue = new LinkedList<HootRequest>();
+    private final Set<HootRequest> mForeground = Collections
+            .newSetFromMap(new IdentityHashMap<HootRequest, Boolean>());
+    private HootRequest mCurrent;
+    private long mBudget = -1;
+    private long mBytes;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Send the next prefetch if the lane is idle.
+     */
+    private void schedule() {
+        if (mCurrent != null || !mForeground.isEmpty() || mQueue.isEmpty()) {
+            return;
+        }
+        if (mBudget >= 0 && mBytes >= mBudget) {
+            Log.v(TAG, "Prefetch budget of " + mBudget + " bytes spent, dropping "
+                    + mQueue.size() + " requests");
+            mQueue.clear();
+            return;
+        }
+        final HootRequest request = mQueue.removeFirst();
+        mCurrent = request;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                HootResult result = mHoot.executeRequestSynchronously(request);
+                onPrefetched(request, result);
+            }
+        });
+    }
+
+    private void onPrefetched(final HootRequest request, HootResult result) {
+        synchronized (this) {
+            mCurrent = null;
+            mBytes += result.getCompressedByteCount();
+            schedule();
+        }
+        if (request.isCancelled()) {
+            Log.v(TAG, "Prefetch of [" + request.buildUri() + "] cancelled");
+            return;
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    request.handleCompletion();
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.twotoasters.android.hoot.HootRequest.HootProgressListener;
+
+/**
+ * Tracks how far one direction of a request's transfer has got and passes it
+ * on to a {@link HootProgressListener} on the UI thread. Updates come from the
+ * transports' copy loops, as often as every buffer; they're dropped until the
+ * request's progress interval and percent have both passed, and any that
+ * arrive while one is waiting to be delivered are folded into it, so a fast
+ * transfer posts at most one message per interval.
+ */
+class HootProgress {
+
+    HootProgress(HootRequest request, boolean upload) {
+        mRequest = request;
+        mUpload = upload;
+    }
+
+    /**
+     * Start over for a new attempt.
+     */
+    synchronized void reset() {
+        mSeen = -1;
+        mLastBytes = 0;
+        mLastTime = 0;
+    }
+
+    /**
+     * @param bytes how many bytes of the body have been sent or received.
+     * @param total the body length, or -1 if unknown.
+     */
+    void update(long bytes, long total) {
+        if (!(mRequest.getListener() instanceof HootProgressListener)) {
+            return;
+        }
+        synchronized (this) {
+            // a transport that buffers the body reports it as it arrives,
+            // then again as it's read; only the first pass counts
+            if (bytes <= mSeen) {
+                return;
+            }
+            mSeen = bytes;
+            long now = System.currentTimeMillis();
+            boolean finished = total >= 0 && bytes >= total;
+            if (!finished) {
+                if (now - mLastTime < mRequest.getProgressInterval()) {
+                    return;
+                }
+                if (total > 0 && (bytes - mLastBytes) * 100
+                        < total * mRequest.getProgressPercent()) {
+                    return;
+                }
+            }
+            mLastTime = now;
+            mLastBytes = bytes;
+            mPendingBytes = bytes;
+            mPendingTotal = total;
+            if (mPosted) {
+                return;
+            }
+            mPosted = true;
+        }
+        sMainHandler.post(mDeliver);
+    }
+
+    /**
+     * Reports the bytes written through it.
+     */
+    OutputStream track(OutputStream os, final long total) {
+        return new FilterOutputStream(os) {
+            private long mCount;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                update(++mCount, total);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                mCount += len;
+                update(mCount, total);
+            }
+        };
+    }
+
+    /**
+     * Reports the bytes read through it.
+     */
+    InputStream track(InputStream is, final long total) {
+        return new FilterInputStream(is) {
+            private long mCount;
+
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1) {
+                    update(++mCount, total);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    mCount += read;
+                    update(mCount, total);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(n);
+                mCount += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final HootRequest mRequest;
+    private final boolean mUpload;
+    private long mSeen = -1;
+    private long mLastBytes;
+    private long mLastTime;
+    private long mPendingBytes;
+    private long mPendingTotal;
+    private boolean mPosted;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            long bytes;
+            long total;
+            synchronized (HootProgress.this) {
+                mPosted = false;
+                bytes = mPendingBytes;
+                total = mPendingTotal;
+            }
+            if (mRequest.isCancelled()
+                    || !(mRequest.getListener() instanceof HootProgressListener)) {
+                return;
+            }
+            HootProgressListener listener = (HootProgressListener) mRequest
+                    .getListener();
+            if (mUpload) {
+                listener.onUploadProgress(mRequest, bytes, total);
+            } else {
+                listener.onDownloadProgress(mRequest, bytes, total);
+            }
+        }
+    };
+
+}
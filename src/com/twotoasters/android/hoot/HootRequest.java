@@ -16,25 +16,59 @@
 
 package com.twotoasters.android.hoot;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.entity.mime.MultipartEntity;
 
+import com.twotoasters.android.hoot.HootContentEncoding.CountingInputStream;
+
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 public class HootRequest {
 
     public static final int STREAMING_MODE_CHUNKED = 1;
     public static final int STREAMING_MODE_FIXED = 2;
 
+    /**
+     * Taken after everything else that's waiting. {@link Hoot#prefetch}
+     * doesn't go through the executor; its lane waits for every request.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+    public static final int PRIORITY_LOW = 1;
+    public static final int PRIORITY_NORMAL = 2;
+    public static final int PRIORITY_HIGH = 3;
+    /** Given a thread of its own if none is free, up to the maximum. */
+    public static final int PRIORITY_IMMEDIATE = 4;
+
+    /** Bodies smaller than this aren't worth compressing, in bytes. */
+    public static final int DEFAULT_REQUEST_COMPRESSION_THRESHOLD = 1024;
+
+    /** Progress is reported at most this often, in milliseconds. */
+    public static final int DEFAULT_PROGRESS_INTERVAL = 100;
+
+    /** Progress is reported after at least this much of a known total. */
+    public static final int DEFAULT_PROGRESS_PERCENT = 1;
+
     /**
      * The interface for request listeners to implement to be notified of events
      * in the request lifecycle. All callbacks are guaranteed to be called from
@@ -89,6 +123,42 @@ public class HootRequest {
         public void onCancelled(HootRequest request);
     }
 
+    /**
+     * Implemented by a {@link HootRequestListener} that wants to know how far
+     * a transfer has got. Calls are made from the UI thread, no more often
+     * than {@link HootRequest#setProgressInterval(int, int)} allows, and the
+     * last one for a body of known length reports all of it.
+     */
+    public interface HootProgressListener {
+        /**
+         * @param bytes how much of the request body has been sent.
+         * @param total the body length, or -1 if unknown.
+         */
+        public void onUploadProgress(HootRequest request, long bytes, long total);
+
+        /**
+         * @param bytes how much of the response body has been received.
+         * @param total the body length, or -1 if unknown.
+         */
+        public void onDownloadProgress(HootRequest request, long bytes, long total);
+    }
+
+    /**
+     * Implemented by a {@link HootRequestListener} that wants to hear about
+     * revalidations made with
+     * {@link HootRequest#setStaleWhileRevalidate(boolean)} separately from
+     * the first result. Other listeners get the new result in a second call
+     * to onSuccess.
+     */
+    public interface HootRefreshListener {
+        /**
+         * Called from the UI thread once the request is complete, if the
+         * response from the network differs from the cached result already
+         * passed to onSuccess.
+         */
+        public void onRefreshed(HootRequest request, HootResult result);
+    }
+
     /**
      * @return the result
      */
@@ -131,12 +201,90 @@ public class HootRequest {
         return this;
     }
 
+    /**
+     * The stream's length isn't known, so it's sent chunked and can't be
+     * retried once sent. Use {@link #post(HootBody)} with a sized body to
+     * do better.
+     */
     public HootRequest post(InputStream postData) {
+        return post(HootBody.create(postData));
+    }
+
+    public HootRequest post(HootBody body) {
         mOperation = Operation.POST;
-        mData = postData;
+        mBody = body;
         return this;
     }
 
+    /**
+     * GET the resource into a file rather than the result, so it never has to
+     * fit in memory. An interrupted or cancelled download is kept, and a
+     * later request for the same file resumes it with a range request if the
+     * resource hasn't changed. The partial download lives in
+     * "&lt;file&gt;.partial" and "&lt;file&gt;.partial.properties" until it
+     * completes.
+     * <p>
+     * Other responses, e.g. errors, are read into the result as usual.
+     * Transports that don't stream response bodies only see whole ones, so
+     * with those an interrupted download starts over.
+     * 
+     * @see HootResult#getDownloadedFile()
+     */
+    public HootRequest downloadTo(File file) {
+        mOperation = Operation.GET;
+        mDownload = new HootDownload(file);
+        mSegmentedDownload = null;
+        mResult.addSuccessfulResponseCode(HttpURLConnection.HTTP_PARTIAL);
+        return this;
+    }
+
+    /**
+     * Download a large file as up to maxSegments range requests at once, each
+     * written straight into its place in the file; see
+     * {@link HootSegmentedDownload}. Worth it for big static files on
+     * high-latency links, where one connection can't fill the link. Servers
+     * that don't support ranges send the file whole. Unlike
+     * {@link #downloadTo(File)}, a failed download isn't resumed.
+     * 
+     * @see HootResult#getDownloadedFile()
+     */
+    public HootRequest downloadTo(File file, int maxSegments) {
+        if (maxSegments <= 1) {
+            return downloadTo(file);
+        }
+        mOperation = Operation.GET;
+        mDownload = null;
+        mSegmentedDownload = new HootSegmentedDownload(file, maxSegments);
+        mResult.addSuccessfulResponseCode(HttpURLConnection.HTTP_PARTIAL);
+        return this;
+    }
+
+    /**
+     * Send a successful response body to the sink rather than reading it
+     * into the result.
+     */
+    public HootRequest setResponseSink(HootResponseSink sink) {
+        mResponseSink = sink;
+        return this;
+    }
+
+    public HootResponseSink getResponseSink() {
+        return mResponseSink;
+    }
+
+    public HootRequest post(File file) {
+        return post(file, DEFAULT_FILE_CONTENT_TYPE);
+    }
+
+    /**
+     * Send the file with a fixed length. Transports that write to a socket
+     * channel hand it over with {@link java.nio.channels.FileChannel#transferTo},
+     * without copying it through the heap.
+     */
+    public HootRequest post(File file, String contentType) {
+        return post(HootBody.create(file).setContentType(contentType));
+    }
+
     public HootRequest post(String string) {
         try {
             post(string, "UTF-8");
@@ -147,22 +295,20 @@ public class HootRequest {
         return this;
     }
 
+    /**
+     * @see HootMultipartBody, which streams the same way without httpmime.
+     */
     public HootRequest post(MultipartEntity multipartEntity) {
-        mOperation = Operation.POST;
         mMultipartEntity = multipartEntity;
-        return this;
+        return post(HootBody.create(multipartEntity));
     }
 
     public HootRequest post(String string, String encoding) throws UnsupportedEncodingException {
-        mOperation = Operation.POST;
-        mData = new ByteArrayInputStream(string.getBytes(encoding));
-        return this;
+        return post(HootBody.create(string, encoding));
     }
 
     public HootRequest post(Map<String, String> queryParameters) {
-        mOperation = Operation.POST;
-        mData = getPostDataStream(queryParameters);
-        return this;
+        return post(HootBody.create(getPostData(queryParameters)));
     }
 
     public HootRequest post() {
@@ -185,15 +331,55 @@ public class HootRequest {
         return this;
     }
 
+    public HootRequest patch(HootBody body) {
+        mOperation = Operation.PATCH;
+        mBody = body;
+        return this;
+    }
+
     public HootRequest put(String string, String encoding) throws UnsupportedEncodingException {
-        mOperation = Operation.PUT;
-        mData = new ByteArrayInputStream(string.getBytes("UTF-8"));
+        return put(HootBody.create(string, encoding));
+    }
+
+    /**
+     * Upload a file in chunks that survive failures; see
+     * {@link HootResumableUpload}. The request's URL is where uploads are
+     * created, and its headers are sent with every step.
+     */
+    public HootRequest upload(HootResumableUpload upload) {
+        mOperation = Operation.POST;
+        mBody = null;
+        mResumableUpload = upload;
+        // tus acknowledges the last chunk with 204 No Content
+        mResult.addSuccessfulResponseCode(HttpURLConnection.HTTP_NO_CONTENT);
         return this;
     }
 
+    public HootResumableUpload getResumableUpload() {
+        return mResumableUpload;
+    }
+
+    public HootRequest put(File file) {
+        return put(file, DEFAULT_FILE_CONTENT_TYPE);
+    }
+
+    /**
+     * @see #post(File, String)
+     */
+    public HootRequest put(File file, String contentType) {
+        return put(HootBody.create(file).setContentType(contentType));
+    }
+
+    /**
+     * See {@link #post(InputStream)}.
+     */
     public HootRequest put(InputStream postData) {
+        return put(HootBody.create(postData));
+    }
+
+    public HootRequest put(HootBody body) {
         mOperation = Operation.PUT;
-        mData = postData;
+        mBody = body;
         return this;
     }
 
@@ -217,6 +403,23 @@ public class HootRequest {
         return this;
     }
 
+    /**
+     * Order the request among those waiting for one of the
+     * {@link HootExecutor}'s threads. May be changed while it waits, e.g.
+     * when the item it's for scrolls into view. Requests sent without a
+     * thread, by the non-blocking transports, aren't queued.
+     * 
+     * @param priority one of the PRIORITY_ constants; NORMAL by default.
+     */
+    public HootRequest setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
     public HootRequest setTag(Object opaque) {
         mOpaqueTag = opaque;
         return this;
@@ -227,27 +430,124 @@ public class HootRequest {
         return this;
     }
 
+    /**
+     * How long the Hoot's {@link HootResultCache} keeps this request's
+     * result, in milliseconds, in place of the cache's own time to live. 0
+     * keeps it out of the cache altogether, and stops it being answered from
+     * there.
+     */
+    public HootRequest setResultTimeToLive(long millis) {
+        mResultTimeToLive = millis;
+        return this;
+    }
+
+    public long getResultTimeToLive() {
+        return mResultTimeToLive;
+    }
+
+    /**
+     * Pass the response in the Hoot's {@link HootCache} to onSuccess straight
+     * away, fresh or not, and go to the network at the same time, conditional
+     * on it if possible. If the server's response differs, the listener gets
+     * it as well, through {@link HootRefreshListener#onRefreshed} or a second
+     * onSuccess; if it's the same, or the request fails, the listener is only
+     * told the request has completed. Without a cached response the request
+     * runs as usual.
+     */
+    public HootRequest setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        mStaleWhileRevalidate = staleWhileRevalidate;
+        return this;
+    }
+
+    public boolean isStaleWhileRevalidate() {
+        return mStaleWhileRevalidate;
+    }
+
+    /**
+     * Tag the result in the Hoot's {@link HootResultCache}, so it can be
+     * dropped with {@link HootResultCache#invalidateTag(String)}.
+     */
+    public HootRequest setResultTags(String... tags) {
+        mResultTags = tags;
+        return this;
+    }
+
+    public String[] getResultTags() {
+        return mResultTags;
+    }
+
     public HootRequest setStreamingMode(int streamingMode) {
         this.streamingMode = streamingMode;
         return this;
     }
 
-    public InputStream getPostDataStream(Map<String, String> queryParameters) {
-        boolean isFirst = true;
-        StringBuffer sb = new StringBuffer();
-        for (String key : queryParameters.keySet()) {
-            appendIfNotNullOrEmpty(sb, isFirst ? null : "&");
-            sb.append(key).append('=').append(queryParameters.get(key));
-            isFirst = false;
-        }
+    /**
+     * By default Hoot sends <code>Accept-Encoding: gzip, deflate</code> and
+     * decodes compressed responses as they're read, removing the
+     * Content-Encoding and Content-Length headers that described the
+     * compressed body. Turn this off to get the body exactly as the server
+     * sent it. Setting an Accept-Encoding header yourself has the same
+     * effect.
+     */
+    public HootRequest setAcceptCompressedResponse(boolean accept) {
+        mAcceptCompressedResponse = accept;
+        return this;
+    }
 
-        try {
-            return new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
-        }
-        catch (UnsupportedEncodingException e) {
+    public boolean isAcceptCompressedResponse() {
+        return mAcceptCompressedResponse;
+    }
 
-        }
-        return null;
+    /**
+     * Gzip the request body as it's sent, with
+     * <code>Content-Encoding: gzip</code>. Off by default, since the server
+     * has to support it. A compressed body's length isn't known up front, so
+     * it goes out chunked unless the streaming mode is fixed.
+     */
+    public HootRequest setCompressRequestBody(boolean compress) {
+        mCompressRequestBody = compress;
+        return this;
+    }
+
+    public boolean isCompressRequestBody() {
+        return mCompressRequestBody;
+    }
+
+    /**
+     * @param threshold bodies shorter than this many bytes are sent
+     *            uncompressed even with {@link #setCompressRequestBody(boolean)}
+     *            on. Up to this much of a stream body is read ahead to decide.
+     */
+    public HootRequest setRequestCompressionThreshold(int threshold) {
+        mRequestCompressionThreshold = threshold;
+        return this;
+    }
+
+    public int getRequestCompressionThreshold() {
+        return mRequestCompressionThreshold;
+    }
+
+    /**
+     * Throttle the calls to a {@link HootProgressListener}: one is made only
+     * once both the interval has passed and the percent of the total been
+     * transferred since the last.
+     */
+    public HootRequest setProgressInterval(int millis, int percent) {
+        mProgressInterval = millis;
+        mProgressPercent = percent;
+        return this;
+    }
+
+    public int getProgressInterval() {
+        return mProgressInterval;
+    }
+
+    public int getProgressPercent() {
+        return mProgressPercent;
+    }
+
+    public InputStream getPostDataStream(Map<String, String> queryParameters) {
+        return new ByteArrayInputStream(getPostData(queryParameters));
     }
 
     public void appendIfNotNullOrEmpty(StringBuffer sb, String s) {
@@ -257,9 +557,20 @@ public class HootRequest {
     }
 
     public HootRequest execute() throws IllegalStateException {
-        if (mTask == null && !isComplete()) {
-            mTask = new HootTask();
-            mTask.executeOnThreadPoolExecutor(this);
+        if (mTask == null && mAsyncExecution == null && !isComplete()
+                && !mServedFromResultCache && mFlightKey == null) {
+            mHoot.getPrefetcher().onForegroundStarted(this);
+            if (serveFromResultCache()) {
+                postResultCacheHit();
+                return this;
+            }
+            if (mHoot.joinFlight(this)) {
+                Log.v(TAG, "Coalescing with the request in flight to ["
+                        + buildUri() + "]");
+                postStarted();
+                return this;
+            }
+            send();
         }
         else {
             throw new IllegalStateException("Can't execute the same request more than once");
@@ -273,8 +584,16 @@ public class HootRequest {
             mTask.cancel();
             mTask = null;
         }
+        mAsyncExecution = null;
 
         getHoot().cancelRequest(this);
+        if (mFlightKey != null) {
+            HootRequest next = mHoot.leaveFlight(this);
+            if (next != null) {
+                next.send();
+            }
+        }
+        mHoot.getPrefetcher().onForegroundFinished(this);
     }
 
     /**
@@ -309,15 +628,28 @@ public class HootRequest {
     // -------------------------------------------------------------------------
     // END OF PUBLIC INTERFACE
     // -------------------------------------------------------------------------
+    private static final String TAG = HootRequest.class.getSimpleName();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
     private static final int DEFAULT_NUM_RETRIES = 0;
+    private static final String DEFAULT_FILE_CONTENT_TYPE = "application/octet-stream";
     private Operation mOperation;
     private int mNumRetries = DEFAULT_NUM_RETRIES;
     private HootTask mTask;
+    private HootAsyncExecution mAsyncExecution;
+    private volatile HootTransportRequest mTransportRequest;
     private HootResult mResult = new HootResult();
     private Map<String, String> mQueryParameters;
     private Properties mHeaders;
     private MultipartEntity mMultipartEntity;
-    private InputStream mData;
+    private HootBody mBody;
+    private volatile boolean mBodyConsumed;
+    private HootResumableUpload mResumableUpload;
+    private HootDownload mDownload;
+    private HootSegmentedDownload mSegmentedDownload;
+    private HootCache.Entry mCacheEntry;
+    private long mCacheRequestTime;
+    private HootResponseSink mResponseSink;
+    private Uri mUri;
     private HootRequestListener mListener;
     private String mResource;
     private Hoot mHoot;
@@ -325,7 +657,24 @@ public class HootRequest {
     private Object mOpaqueTag;
     private boolean mCancelled;
     private Class<?> mExpectedType;
+    private long mResultTimeToLive = -1;
+    private String[] mResultTags;
+    private boolean mResultCacheLookedUp;
+    private boolean mServedFromResultCache;
+    private String mFlightKey;
+    private boolean mStaleWhileRevalidate;
+    private volatile boolean mPrefetch;
+    private volatile int mPriority = PRIORITY_NORMAL;
+    private HootResult mStaleResult;
+    private boolean mStarted;
     private int streamingMode;
+    private boolean mAcceptCompressedResponse = true;
+    private boolean mCompressRequestBody;
+    private int mRequestCompressionThreshold = DEFAULT_REQUEST_COMPRESSION_THRESHOLD;
+    private int mProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private int mProgressPercent = DEFAULT_PROGRESS_PERCENT;
+    private final HootProgress mUploadProgress = new HootProgress(this, true);
+    private final HootProgress mDownloadProgress = new HootProgress(this, false);
 
     HootRequest(Hoot hoot) {
         mHoot = hoot;
@@ -373,16 +722,45 @@ public class HootRequest {
     }
 
     /**
-     * @return the mPostData
+     * @return the body, or null if there isn't one.
      */
-    InputStream getData() {
-        return mData;
+    public HootBody getBody() {
+        return mBody;
+    }
+
+    /**
+     * Called as a body that can't be replayed is read, after which the
+     * request can't be retried.
+     */
+    void onBodyConsumed() {
+        mBodyConsumed = true;
     }
 
     boolean shouldRetry() {
+        if (mBodyConsumed) {
+            Log.v(TAG, "Not retrying, the body can't be sent again");
+            return false;
+        }
         return mNumRetries-- > 0;
     }
 
+    private byte[] getPostData(Map<String, String> queryParameters) {
+        boolean isFirst = true;
+        StringBuffer sb = new StringBuffer();
+        for (String key : queryParameters.keySet()) {
+            appendIfNotNullOrEmpty(sb, isFirst ? null : "&");
+            sb.append(key).append('=').append(queryParameters.get(key));
+            isFirst = false;
+        }
+
+        try {
+            return sb.toString().getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
     /**
      * @param mResult the mResult to set
      */
@@ -393,9 +771,232 @@ public class HootRequest {
     void setComplete(boolean isComplete) {
         mComplete = isComplete;
         mTask = null;
+        mAsyncExecution = null;
+    }
+
+    HootProgress getUploadProgress() {
+        return mUploadProgress;
+    }
+
+    HootProgress getDownloadProgress() {
+        return mDownloadProgress;
+    }
+
+    HootDownload getDownload() {
+        return mDownload;
+    }
+
+    HootSegmentedDownload getSegmentedDownload() {
+        return mSegmentedDownload;
+    }
+
+    /**
+     * @param entry a stale cache entry to revalidate, or null.
+     * @param requestTime when the request is being sent, for working out the
+     *            age of its response.
+     */
+    void setCacheEntry(HootCache.Entry entry, long requestTime) {
+        mCacheEntry = entry;
+        mCacheRequestTime = requestTime;
+    }
+
+    HootCache.Entry getCacheEntry() {
+        return mCacheEntry;
+    }
+
+    long getCacheRequestTime() {
+        return mCacheRequestTime;
+    }
+
+    Class<?> getExpectedType() {
+        return mExpectedType;
+    }
+
+    /**
+     * Answer the request from the Hoot's {@link HootResultCache} if it holds
+     * a live result for it. It's only looked up the first time this is
+     * called, since execute() does it before the request goes to a thread.
+     * 
+     * @return true if the request was answered from the result cache.
+     */
+    boolean serveFromResultCache() {
+        HootResultCache cache = mHoot.getResultCache();
+        if (cache == null || !HootResultCache.isCacheable(this)
+                || mStaleWhileRevalidate || mResultCacheLookedUp) {
+            return mServedFromResultCache;
+        }
+        mResultCacheLookedUp = true;
+        mServedFromResultCache = cache.serve(this);
+        return mServedFromResultCache;
+    }
+
+    /**
+     * Report a result cache hit on the UI thread, as if it had been a task.
+     */
+    private void postResultCacheHit() {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled()) {
+                    return;
+                }
+                notifyStarted();
+                handleCompletion();
+            }
+        });
+    }
+
+    private void postStarted() {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled()) {
+                    notifyStarted();
+                }
+            }
+        });
+    }
+
+    /**
+     * Tell the listener the request has started, once, however many times
+     * it's sent.
+     */
+    void notifyStarted() {
+        if (!mStarted && getListener() != null) {
+            mStarted = true;
+            getListener().onRequestStarted(this);
+        }
+    }
+
+    /**
+     * Send the request on its transport, with a task if it needs a thread.
+     */
+    private void send() {
+        HootAsyncTransport asyncTransport = mHoot.getAsyncTransport(this);
+        if (asyncTransport != null) {
+            mAsyncExecution = new HootAsyncExecution(asyncTransport);
+            mAsyncExecution.execute(this);
+        } else {
+            mTask = new HootTask(this);
+            mHoot.getExecutor().execute(mTask);
+        }
+    }
+
+    void setPrefetch(boolean prefetch) {
+        mPrefetch = prefetch;
+    }
+
+    /**
+     * @return true if the request was passed to {@link Hoot#prefetch}.
+     */
+    boolean isPrefetch() {
+        return mPrefetch;
+    }
+
+    void setFlightKey(String key) {
+        mFlightKey = key;
+    }
+
+    String getFlightKey() {
+        return mFlightKey;
+    }
+
+    /**
+     * Answer the request from the Hoot's cache if it has a fresh response,
+     * otherwise leave it ready to go to the network, conditional on a stale
+     * one if there is one.
+     * 
+     * @return true if the request was answered from the cache.
+     */
+    boolean serveFromCache() {
+        HootCache cache = mHoot.getCache();
+        if (cache == null || !HootCache.isCacheable(this)) {
+            return false;
+        }
+        if (mStaleWhileRevalidate) {
+            serveStale(cache);
+            return false;
+        }
+        HootTransportResponse cached = cache.lookup(this);
+        if (cached == null) {
+            return false;
+        }
+        try {
+            readResponse(cached);
+        } catch (Exception e) {
+            mResult.setException(e);
+            e.printStackTrace();
+        } finally {
+            cached.close();
+        }
+        return true;
+    }
+
+    /**
+     * Post the cached response, if there's a usable one, to the listener
+     * before the request goes to the network, which fills in a new result.
+     */
+    private void serveStale(HootCache cache) {
+        if (mStaleResult != null) {
+            // a retry
+            return;
+        }
+        HootTransportResponse cached = cache.lookupStale(this);
+        if (cached == null) {
+            return;
+        }
+        HootResult revalidated = mResult.newAttempt();
+        try {
+            readResponse(cached);
+        } catch (Exception e) {
+            mResult.setException(e);
+            e.printStackTrace();
+        } finally {
+            cached.close();
+        }
+        if (!mResult.isSuccess()) {
+            mResult = revalidated;
+            return;
+        }
+        mStaleResult = mResult;
+        mResult = revalidated;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled() && !isComplete()) {
+                    notifyStarted();
+                    if (getListener() != null) {
+                        getListener().onSuccess(HootRequest.this, mStaleResult);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the result of a revalidation has nothing new to tell a
+     *         listener that was given the cached result.
+     */
+    private boolean isUnchanged(HootResult result) {
+        return result.isFromCache()
+                || Arrays.equals(result.getBodyDigest(),
+                        mStaleResult.getBodyDigest());
+    }
+
+    /**
+     * Send the request to this URL rather than one built from the base URL
+     * and resource.
+     */
+    HootRequest setUri(Uri uri) {
+        mUri = uri;
+        return this;
     }
 
     Uri buildUri() {
+        if (mUri != null) {
+            return mUri;
+        }
+
         // fix the "double-slash" issue with base URLs ending in slash and
         // resource beginning with slash
         if (mHoot.getBaseUrl().endsWith("/") && mResource != null && mResource.startsWith("/")) {
@@ -417,8 +1018,133 @@ public class HootRequest {
         return builder.build();
     }
 
+    /**
+     * @return a transport view of this request for the next attempt. It
+     *         stays current, and cancellable, until
+     *         {@link #clearTransportRequest(HootTransportRequest)}.
+     */
+    HootTransportRequest newTransportRequest() {
+        mUploadProgress.reset();
+        mDownloadProgress.reset();
+        mTransportRequest = new HootTransportRequest(this);
+        return mTransportRequest;
+    }
+
+    HootTransportRequest getTransportRequest() {
+        return mTransportRequest;
+    }
+
+    /**
+     * Make another request's transport request this one's, so cancelling
+     * this request cancels it, e.g. a step of a resumable upload.
+     */
+    void setTransportRequest(HootTransportRequest transportRequest) {
+        mTransportRequest = transportRequest;
+    }
+
+    void clearTransportRequest(HootTransportRequest transportRequest) {
+        if (mTransportRequest == transportRequest) {
+            mTransportRequest = null;
+        }
+    }
+
+    /**
+     * Copy what the transport received into the result and deserialize it.
+     */
+    void processResponse(HootTransportResponse response) throws IOException {
+        Log.v(TAG, "Received response code " + response.getStatusCode());
+        HootCache cache = mHoot.getCache();
+        if (cache != null) {
+            HootTransportResponse cached = cache.onResponse(this, response);
+            if (cached != response) {
+                try {
+                    readResponse(cached);
+                } finally {
+                    cached.close();
+                }
+                return;
+            }
+        }
+        readResponse(response);
+    }
+
+    private void readResponse(HootTransportResponse response)
+            throws IOException {
+        mResult.setResponseCode(response.getStatusCode());
+        mResult.setFromCache(response.isFromCache());
+        Map<String, List<String>> headers = response.getHeaders();
+        if (headers == null) {
+            headers = Collections.emptyMap();
+        }
+        InputStream body = response.getBody();
+        if (body == null) {
+            body = new ByteArrayInputStream(new byte[0]);
+        }
+        body = mDownloadProgress.track(body, HootDownload.parseLong(
+                HootHttpResponseParser.getHeader(headers, "Content-Length")));
+        CountingInputStream received = new CountingInputStream(body);
+        CountingInputStream content = received;
+        if (HootContentEncoding.isNegotiated(this)) {
+            InputStream decoded = HootContentEncoding.decode(
+                    HootHttpResponseParser.getHeader(headers, "Content-Encoding"),
+                    received);
+            if (decoded != null) {
+                content = new CountingInputStream(decoded);
+                headers = HootContentEncoding.removeEncodingHeaders(headers);
+            }
+        }
+        mResult.setHeaders(headers);
+        mResult.setByteCounts(received, content);
+        if (mDownload != null) {
+            long written = mDownload.write(this, response.getStatusCode(),
+                    headers, content);
+            if (written >= 0) {
+                mResult.setDownloadedFile(mDownload.getFile());
+                mResult.setBytesWritten(written);
+                return;
+            }
+        } else if (mResponseSink != null && mResult.isSuccess()) {
+            mResult.setBytesWritten(mResponseSink.write(this, content));
+            return;
+        }
+        if (mStaleWhileRevalidate) {
+            MessageDigest digest = newBodyDigest();
+            mResult.setResponseStream(new BufferedInputStream(
+                    new DigestInputStream(content, digest)));
+            deserializeResult();
+            try {
+                // whatever the deserializer left counts towards the digest
+                IOUtils.skip(mResult.getResponseStream(), Long.MAX_VALUE);
+            } catch (IOException e) {
+                Log.v(TAG, "Digesting only what the deserializer read: " + e);
+            }
+            mResult.setBodyDigest(digest.digest());
+            return;
+        }
+        mResult.setResponseStream(new BufferedInputStream(content));
+        deserializeResult();
+    }
+
+    private static MessageDigest newBodyDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always supported", e);
+        }
+    }
+
     void deserializeResult() throws IOException {
         mResult.deserializeResult(mHoot.getGlobalDeserializer(), mExpectedType);
+
+        HootResultCache cache = mHoot.getResultCache();
+        if (cache != null && mResult.isSuccess()) {
+            if (HootResultCache.isCacheable(this)) {
+                cache.put(this);
+            } else if (mOperation != Operation.GET
+                    && mOperation != Operation.HEAD) {
+                cache.invalidateUrl(buildUri().toString());
+            }
+        }
     }
 
     /**
@@ -426,10 +1152,26 @@ public class HootRequest {
      */
     void handleCompletion() {
         setComplete(true);
+        mHoot.getPrefetcher().onForegroundFinished(this);
+        List<HootRequest> followers = mFlightKey != null ? mHoot
+                .landFlight(this) : Collections.<HootRequest> emptyList();
+        for (HootRequest follower : followers) {
+            follower.getResult().copyFrom(mResult);
+        }
         if (getListener() != null) {
             getListener().onRequestCompleted(this);
             HootResult result = getResult();
-            if (result != null && result.isSuccess()) {
+            if (mStaleResult != null) {
+                if (result.isSuccess() && !isUnchanged(result)) {
+                    if (getListener() instanceof HootRefreshListener) {
+                        ((HootRefreshListener) getListener()).onRefreshed(
+                                this, result);
+                    } else {
+                        getListener().onSuccess(this, result);
+                    }
+                }
+            }
+            else if (result != null && result.isSuccess()) {
                 getListener().onSuccess(this, result);
             }
             else {
@@ -439,6 +1181,12 @@ public class HootRequest {
             // unbind to remove the reference 
             unbindListener(false);
         }
+        for (HootRequest follower : followers) {
+            if (!follower.isCancelled()) {
+                follower.notifyStarted();
+                follower.handleCompletion();
+            }
+        }
     }
 
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns host names into addresses for the transports. Swap in your own with
+ * {@link Hoot#setResolver(HootResolver)}, e.g. to point test host names at a
+ * local server.
+ */
+public interface HootResolver {
+
+    /**
+     * Resolves through the platform, i.e. {@link InetAddress#getAllByName}.
+     */
+    public static final HootResolver SYSTEM = new HootResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * @return the host's addresses, at least one, in preference order.
+     * @throws UnknownHostException if the host can't be resolved.
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException;
+
+}
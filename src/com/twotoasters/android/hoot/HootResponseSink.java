@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+
+/**
+ * Where a successful response body goes instead of the result, so a large
+ * body never has to fit in memory. The body is copied through a pooled
+ * buffer; the result reports how many bytes were written, see
+ * {@link HootResult#getBytesWritten()}. Error responses are still read into
+ * the result.
+ * <p>
+ * Subclass it to send bodies elsewhere.
+ */
+public abstract class HootResponseSink {
+
+    /**
+     * Write the body to the file, replacing it. If the body doesn't arrive in
+     * full, e.g. the request is cancelled, the file is deleted.
+     */
+    public static HootResponseSink create(File file) {
+        return new FileSink(file);
+    }
+
+    /**
+     * Write the body to the stream. The stream is flushed but not closed.
+     */
+    public static HootResponseSink create(OutputStream os) {
+        return new ChannelSink(Channels.newChannel(os), os);
+    }
+
+    /**
+     * Write the body to the channel, which is left open.
+     */
+    public static HootResponseSink create(WritableByteChannel channel) {
+        return new ChannelSink(channel, null);
+    }
+
+    /**
+     * @return the channel to write a body to.
+     */
+    protected abstract WritableByteChannel open() throws IOException;
+
+    /**
+     * Called once a body has been written, or when writing it failed or the
+     * request was cancelled.
+     * 
+     * @param complete true if the whole body was written.
+     */
+    protected abstract void close(WritableByteChannel channel, boolean complete)
+            throws IOException;
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final LinkedList<byte[]> sBufferPool = new LinkedList<byte[]>();
+
+    /**
+     * Write the body to the sink, closing it either way.
+     * 
+     * @return the number of bytes written.
+     */
+    long write(HootRequest request, InputStream body) throws IOException {
+        WritableByteChannel channel = open();
+        boolean complete = false;
+        try {
+            long written = copy(request, body, channel);
+            complete = true;
+            return written;
+        } finally {
+            close(channel, complete);
+        }
+    }
+
+    /**
+     * Copy the stream to the channel through a pooled buffer, checking
+     * between reads whether the request has been cancelled. Bodies arrive as
+     * streams, so a heap buffer is read straight into and only wrapped for
+     * the channel; a direct one would cost a copy on the way in.
+     * 
+     * @return the number of bytes copied.
+     */
+    static long copy(HootRequest request, InputStream in,
+            WritableByteChannel channel) throws IOException {
+        byte[] buffer = takeBuffer();
+        long copied = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (request.isCancelled()) {
+                    throw new IOException("Request cancelled");
+                }
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+                while (wrapped.hasRemaining()) {
+                    copied += channel.write(wrapped);
+                }
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+        return copied;
+    }
+
+    /**
+     * Same as {@link #copy(HootRequest, InputStream, WritableByteChannel)},
+     * for a sink that's a stream.
+     */
+    static long copy(HootRequest request, InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buffer = takeBuffer();
+        long copied = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (request.isCancelled()) {
+                    throw new IOException("Request cancelled");
+                }
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+        return copied;
+    }
+
+    /**
+     * Copy exactly length bytes of the stream into the file at the position,
+     * leaving the file's own position alone, so several copies can write
+     * their own regions of it at once.
+     * 
+     * @throws IOException if the stream is shorter or longer than length.
+     */
+    static void copy(HootRequest request, InputStream in, FileChannel file,
+            long position, long length) throws IOException {
+        byte[] buffer = takeBuffer();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Body ended " + remaining
+                            + " bytes short");
+                }
+                if (request.isCancelled()) {
+                    throw new IOException("Request cancelled");
+                }
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+                while (wrapped.hasRemaining()) {
+                    position += file.write(wrapped, position);
+                }
+                remaining -= read;
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+        if (in.read() != -1) {
+            throw new IOException("Body is longer than " + length + " bytes");
+        }
+    }
+
+    private static byte[] takeBuffer() {
+        synchronized (sBufferPool) {
+            if (!sBufferPool.isEmpty()) {
+                return sBufferPool.removeFirst();
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void returnBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.addFirst(buffer);
+            }
+        }
+    }
+
+    private static class FileSink extends HootResponseSink {
+
+        FileSink(File file) {
+            mFile = file;
+        }
+
+        @Override
+        protected WritableByteChannel open() throws IOException {
+            return new FileOutputStream(mFile).getChannel();
+        }
+
+        @Override
+        protected void close(WritableByteChannel channel, boolean complete)
+                throws IOException {
+            channel.close();
+            if (!complete) {
+                mFile.delete();
+            }
+        }
+
+        private final File mFile;
+    }
+
+    private static class ChannelSink extends HootResponseSink {
+
+        ChannelSink(WritableByteChannel channel, OutputStream os) {
+            mChannel = channel;
+            mStream = os;
+        }
+
+        @Override
+        protected WritableByteChannel open() {
+            return mChannel;
+        }
+
+        @Override
+        long write(HootRequest request, InputStream body) throws IOException {
+            if (mStream == null) {
+                return super.write(request, body);
+            }
+            // skip the channel wrapper, which would copy every chunk again
+            try {
+                return copy(request, body, mStream);
+            } finally {
+                mStream.flush();
+            }
+        }
+
+        @Override
+        protected void close(WritableByteChannel channel, boolean complete)
+                throws IOException {
+            if (mStream != null) {
+                mStream.flush();
+            }
+        }
+
+        private final WritableByteChannel mChannel;
+        private final OutputStream mStream;
+    }
+
+}
@@ -16,6 +16,7 @@
 
 package com.twotoasters.android.hoot;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -27,6 +28,8 @@ import org.apache.commons.io.IOUtils;
 
 import android.util.Log;
 
+import com.twotoasters.android.hoot.HootContentEncoding.CountingInputStream;
+
 public class HootResult {
 
     private static final String TAG = HootResult.class.getSimpleName();
@@ -57,6 +60,50 @@ public class HootResult {
         return mDeserializedResult;
     }
 
+    /**
+     * @return the file the body was downloaded to, once it's complete, or
+     *         null if the response wasn't downloaded.
+     * @see HootRequest#downloadTo(File)
+     */
+    public File getDownloadedFile() {
+        return mDownloadedFile;
+    }
+
+    /**
+     * @return true if the response came from the Hoot's {@link HootCache},
+     *         whether it was fresh or the server said it hadn't changed, or
+     *         the result from its {@link HootResultCache}.
+     */
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    /**
+     * @return how many bytes of body were written to the request's response
+     *         sink or download file.
+     * @see HootRequest#setResponseSink(HootResponseSink)
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return how many bytes of body were read off the wire, compressed if
+     *         the server compressed them. Counts only what's been read, so
+     *         check after deserialization.
+     */
+    public long getCompressedByteCount() {
+        return mReceived != null ? mReceived.getCount() : 0;
+    }
+
+    /**
+     * @return how many bytes the body came to once decompressed. The same as
+     *         {@link #getCompressedByteCount()} for uncompressed responses.
+     */
+    public long getDecompressedByteCount() {
+        return mContent != null ? mContent.getCount() : 0;
+    }
+
     // -------------------------------------------------------------------------
     // END OF PUBLIC INTERFACE
     // -------------------------------------------------------------------------
@@ -74,15 +121,85 @@ public class HootResult {
     private InputStream mResponseStream;
     private HootDeserializer<?> mDeserializer;
     private Object mDeserializedResult;
+    private CountingInputStream mReceived;
+    private CountingInputStream mContent;
+    private File mDownloadedFile;
+    private long mBytesWritten;
+    private boolean mFromCache;
+    private byte[] mBodyDigest;
 
     <T> void setDeserializer(HootDeserializer<T> deserializer) {
         mDeserializer = deserializer;
     }
 
+    HootDeserializer<?> getDeserializer() {
+        return mDeserializer;
+    }
+
+    /**
+     * Use a result deserialized earlier, e.g. by a request with the same
+     * result cache key.
+     */
+    void setDeserializedResult(Object deserializedResult) {
+        mDeserializedResult = deserializedResult;
+        if (mDeserializer != null) {
+            mDeserializer.setDeserializedResult(deserializedResult);
+        }
+    }
+
+    /**
+     * @return a new result for another go at the same request, with the same
+     *         deserializer and successful response codes.
+     */
+    HootResult newAttempt() {
+        HootResult result = new HootResult();
+        result.mDeserializer = mDeserializer;
+        result.mSuccessfulResponseCodes = mSuccessfulResponseCodes;
+        return result;
+    }
+
+    void setBodyDigest(byte[] bodyDigest) {
+        mBodyDigest = bodyDigest;
+    }
+
+    /**
+     * @return a digest of the body, if the request asked for one to be kept,
+     *         otherwise null.
+     */
+    byte[] getBodyDigest() {
+        return mBodyDigest;
+    }
+
+    /**
+     * Take on everything another request received, e.g. the one this
+     * request's was coalesced with.
+     */
+    void copyFrom(HootResult result) {
+        mResponseCode = result.mResponseCode;
+        mHeaders = result.mHeaders;
+        mResponse = result.mResponse;
+        mException = result.mException;
+        mReceived = result.mReceived;
+        mContent = result.mContent;
+        mFromCache = result.mFromCache;
+        mBodyDigest = result.mBodyDigest;
+        setDeserializedResult(result.mDeserializedResult);
+    }
+
     void setSuccessfulResponseCodes(List<Integer> codes) {
         mSuccessfulResponseCodes = codes;
     }
 
+    void addSuccessfulResponseCode(int code) {
+        List<Integer> codes = new ArrayList<Integer>(
+                mSuccessfulResponseCodes != null ? mSuccessfulResponseCodes
+                        : sDefaultSuccessfulCodes);
+        if (!codes.contains(code)) {
+            codes.add(code);
+        }
+        mSuccessfulResponseCodes = codes;
+    }
+
     void setResponse(String response) {
         mResponse = response;
     }
@@ -99,6 +216,24 @@ public class HootResult {
         mHeaders = headerFields;
     }
 
+    void setByteCounts(CountingInputStream received,
+            CountingInputStream content) {
+        mReceived = received;
+        mContent = content;
+    }
+
+    void setDownloadedFile(File file) {
+        mDownloadedFile = file;
+    }
+
+    void setBytesWritten(long bytesWritten) {
+        mBytesWritten = bytesWritten;
+    }
+
+    void setFromCache(boolean fromCache) {
+        mFromCache = fromCache;
+    }
+
     void setResponseStream(InputStream responseStream) {
         mResponseStream = responseStream;
     }
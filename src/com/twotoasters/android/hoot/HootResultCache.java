@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/**
+ * Keeps the deserialized results of successful GET requests in memory, so a
+ * repeat of a request is answered without going to the network or
+ * deserializing again. Set it on a {@link Hoot} with
+ * {@link Hoot#setResultCache(HootResultCache)}.
+ * <p>
+ * Results are keyed by URL, request headers, expected type and deserializer,
+ * so requests that would be deserialized differently don't share them. Each
+ * lives for the cache's time to live, or the request's
+ * {@link HootRequest#setResultTimeToLive(long)}, and may be invalidated
+ * sooner by URL prefix or by one of the tags its request was given with
+ * {@link HootRequest#setResultTags(String...)}; a successful POST, PUT, PATCH
+ * or DELETE invalidates its own URL. Once the results outweigh the cache, the
+ * least recently used go first.
+ * <p>
+ * A result is shared by every request it answers, so treat deserialized
+ * objects as immutable.
+ */
+public class HootResultCache {
+
+    /** How long results live unless told otherwise, in milliseconds. */
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    /**
+     * Works out how much a result counts against the cache's maximum weight.
+     */
+    public interface Weigher {
+        public long weigh(HootResult result);
+    }
+
+    /**
+     * @param maxWeight the most the results may weigh together; by default a
+     *            result weighs as many bytes as its decompressed body.
+     */
+    public HootResultCache(long maxWeight) {
+        mMaxWeight = maxWeight;
+    }
+
+    public HootResultCache setTimeToLive(long millis) {
+        mTimeToLive = millis;
+        return this;
+    }
+
+    public long getTimeToLive() {
+        return mTimeToLive;
+    }
+
+    public HootResultCache setWeigher(Weigher weigher) {
+        mWeigher = weigher;
+        return this;
+    }
+
+    public long getMaxWeight() {
+        return mMaxWeight;
+    }
+
+    public synchronized long getWeight() {
+        return mWeight;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return how many results were dropped to make room.
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Drop the results of requests to URLs that start with the prefix.
+     */
+    public synchronized void invalidate(String urlPrefix) {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.url.startsWith(urlPrefix)) {
+                entries.remove();
+                mWeight -= entry.weight;
+            }
+        }
+    }
+
+    /**
+     * Drop the results of requests given this tag.
+     */
+    public synchronized void invalidateTag(String tag) {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.tags.contains(tag)) {
+                entries.remove();
+                mWeight -= entry.weight;
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+        mWeight = 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootResultCache.class.getSimpleName();
+
+    private static final Weigher BODY_WEIGHER = new Weigher() {
+        @Override
+        public long weigh(HootResult result) {
+            return Math.max(1, result.getDecompressedByteCount());
+        }
+    };
+
+    private final long mMaxWeight;
+    private long mTimeToLive = DEFAULT_TIME_TO_LIVE;
+    private Weigher mWeigher = BODY_WEIGHER;
+
+    // guarded by this
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(
+            0, 0.75f, true);
+    private long mWeight;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private static class Entry {
+        String url;
+        int responseCode;
+        Map<String, List<String>> headers;
+        String response;
+        Object deserializedResult;
+        long weight;
+        long expiresAt;
+        Set<String> tags;
+    }
+
+    /**
+     * @return true if the request's result can be cached: a GET whose body
+     *         is read into the result, and not told not to be.
+     */
+    static boolean isCacheable(HootRequest request) {
+        return HootCache.isCacheable(request)
+                && request.getResultTimeToLive() != 0;
+    }
+
+    /**
+     * Fill in the request's result from the cache, counting the lookup.
+     * 
+     * @return true if there was a live result to use.
+     */
+    boolean serve(HootRequest request) {
+        String key = getKey(request);
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                mEntries.remove(key);
+                mWeight -= entry.weight;
+                entry = null;
+            }
+            if (entry == null) {
+                mMissCount++;
+                return false;
+            }
+            mHitCount++;
+        }
+        HootResult result = request.getResult();
+        result.setResponseCode(entry.responseCode);
+        result.setHeaders(entry.headers);
+        result.setResponse(entry.response);
+        result.setDeserializedResult(entry.deserializedResult);
+        result.setFromCache(true);
+        return true;
+    }
+
+    /**
+     * Keep the request's result, if it was successful.
+     */
+    void put(HootRequest request) {
+        HootResult result = request.getResult();
+        if (!result.isSuccess()) {
+            return;
+        }
+        long ttl = request.getResultTimeToLive() > 0 ? request
+                .getResultTimeToLive() : mTimeToLive;
+        Entry entry = new Entry();
+        entry.url = request.buildUri().toString();
+        entry.responseCode = result.getResponseCode();
+        entry.headers = result.getHeaders();
+        entry.response = result.getResponseString();
+        entry.deserializedResult = result.getDeserializedResult();
+        entry.weight = mWeigher.weigh(result);
+        entry.expiresAt = System.currentTimeMillis() + ttl;
+        entry.tags = request.getResultTags() != null ? new HashSet<String>(
+                Arrays.asList(request.getResultTags()))
+                : Collections.<String> emptySet();
+        if (entry.weight > mMaxWeight) {
+            Log.v(TAG, "Not caching result of " + entry.weight + " for ["
+                    + entry.url + "]");
+            return;
+        }
+
+        synchronized (this) {
+            Entry previous = mEntries.put(getKey(request), entry);
+            if (previous != null) {
+                mWeight -= previous.weight;
+            }
+            mWeight += entry.weight;
+            Iterator<Entry> eldest = mEntries.values().iterator();
+            while (mWeight > mMaxWeight && eldest.hasNext()) {
+                mWeight -= eldest.next().weight;
+                eldest.remove();
+                mEvictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Drop the results for exactly this URL, e.g. after a request that
+     * changed it.
+     */
+    synchronized void invalidateUrl(String url) {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.url.equals(url)) {
+                entries.remove();
+                mWeight -= entry.weight;
+            }
+        }
+    }
+
+    /**
+     * @return what identifies the request's result: its URL, the headers it
+     *         was given, its authorization, and how its response would be
+     *         deserialized.
+     */
+    static String getKey(HootRequest request) {
+        StringBuilder key = new StringBuilder(request.buildUri().toString());
+        Map<String, String> headers = new TreeMap<String, String>(
+                String.CASE_INSENSITIVE_ORDER);
+        if (request.getHeaders() != null) {
+            for (String name : request.getHeaders().stringPropertyNames()) {
+                headers.put(name, request.getHeaders().getProperty(name));
+            }
+        }
+        if (request.getHoot().isBasicAuth()) {
+            headers.put("Authorization",
+                    request.getHoot().calculateBasicAuthHeader());
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            key.append('\n').append(header.getKey().toLowerCase())
+                    .append(": ").append(header.getValue());
+        }
+        key.append("\ntype: ").append(request.getExpectedType() != null
+                ? request.getExpectedType().getName() : "");
+        HootDeserializer<?> deserializer = request.getResult().getDeserializer();
+        key.append("\ndeserializer: ").append(deserializer != null
+                ? deserializer.getClass().getName() : "");
+        return key.toString();
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A file upload that survives failures, using the tus resumable upload
+ * protocol (http://tus.io/protocols/resumable-upload.html). The upload is
+ * created on the server, then the file is sent in chunks, each tagged with
+ * its offset. After a failure the server is asked how much it has and the
+ * upload carries on from there instead of from the start.
+ * <p>
+ * Progress is kept in a small journal file, so a new upload of the same file
+ * to the same URL, e.g. after the process was killed, picks up the server's
+ * upload where the last one left off. Entries are removed once an upload
+ * completes. Uploads can share a journal.
+ * 
+ * <pre>
+ * hoot.createRequest().setResource(&quot;files&quot;)
+ *         .upload(new HootResumableUpload(file, journal)).execute();
+ * </pre>
+ * 
+ * A chunk that fails after progress has been made is resumed straight away;
+ * a failure without progress in between ends the attempt, and the request's
+ * retries resume it again.
+ */
+public class HootResumableUpload {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * @param journal where progress is kept between attempts and processes.
+     */
+    public HootResumableUpload(File file, File journal) {
+        mFile = file;
+        mLength = file.length();
+        mJournal = journal;
+        mMetadata.put("filename", file.getName());
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @param chunkSize the most bytes to send in one request. Smaller chunks
+     *            lose less to a failure on servers that drop partial chunks,
+     *            larger ones cost fewer round trips.
+     */
+    public HootResumableUpload setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Add a value to the upload's "Upload-Metadata", sent when it's created.
+     * The file name is sent as "filename".
+     */
+    public HootResumableUpload setMetadata(String key, String value) {
+        mMetadata.put(key, value);
+        return this;
+    }
+
+    /**
+     * @return the upload's URL on the server, or null until it's created.
+     */
+    public String getUploadUrl() {
+        return mUploadUrl;
+    }
+
+    /**
+     * @return how many bytes the server has acknowledged.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootResumableUpload.class.getSimpleName();
+    private static final String TUS_VERSION = "1.0.0";
+    private static final String CHUNK_CONTENT_TYPE = "application/offset+octet-stream";
+    private static final Object sJournalLock = new Object();
+
+    private final File mFile;
+    private final long mLength;
+    private final File mJournal;
+    private final Map<String, String> mMetadata = new LinkedHashMap<String, String>();
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile String mUploadUrl;
+    private volatile long mOffset;
+
+    /**
+     * Runs one attempt of the upload for the request, on the calling thread,
+     * leaving the outcome in the request's result: the response that
+     * completed the upload, or the one that stopped it.
+     */
+    void execute(HootRequest request, HootTransport transport)
+            throws IOException {
+        Uri endpoint = request.buildUri();
+        String key = getJournalKey(endpoint);
+        if (mUploadUrl == null) {
+            restore(key);
+        }
+
+        HootTransportResponse response = null;
+        if (mUploadUrl != null) {
+            response = head(request, transport);
+            if (isGone(response.getStatusCode())) {
+                Log.v(TAG, "Upload [" + mUploadUrl + "] is gone, starting over");
+                response.close();
+                response = null;
+                mUploadUrl = null;
+                mOffset = 0;
+            } else if (!isSuccessful(response.getStatusCode())) {
+                finish(request, response);
+                return;
+            }
+        }
+        if (mUploadUrl == null) {
+            response = create(request, transport, endpoint);
+            if (response.getStatusCode() != 201) {
+                finish(request, response);
+                return;
+            }
+            record(key, false);
+        }
+
+        long failedAt = -1;
+        while (mOffset < mLength) {
+            request.getUploadProgress().update(mOffset, mLength);
+            response.close();
+            try {
+                response = patch(request, transport);
+                int status = response.getStatusCode();
+                if (isSuccessful(status)) {
+                    long offset = getUploadOffset(response);
+                    if (offset <= mOffset) {
+                        throw new IOException("Upload made no progress at " + mOffset);
+                    }
+                    mOffset = offset;
+                    record(key, false);
+                    continue;
+                }
+                if (status == 409 || status >= 500) {
+                    // our offset is stale, or the server hiccupped
+                    response.close();
+                    throw new IOException("Chunk failed with status " + status);
+                }
+                if (isGone(status)) {
+                    mUploadUrl = null;
+                    mOffset = 0;
+                    record(key, true);
+                }
+                finish(request, response);
+                return;
+            } catch (IOException e) {
+                response.close();
+                if (request.isCancelled() || mOffset == failedAt) {
+                    throw e;
+                }
+                failedAt = mOffset;
+                Log.v(TAG, "Chunk at " + mOffset + " failed, resuming: " + e);
+                response = head(request, transport);
+                if (!isSuccessful(response.getStatusCode())) {
+                    finish(request, response);
+                    return;
+                }
+            }
+        }
+        request.getUploadProgress().update(mOffset, mLength);
+        record(key, true);
+        finish(request, response);
+    }
+
+    private HootTransportResponse create(HootRequest request,
+            HootTransport transport, Uri endpoint) throws IOException {
+        HootRequest step = newStep(request, endpoint);
+        step.getHeaders().setProperty("Upload-Length", String.valueOf(mLength));
+        step.getHeaders().setProperty("Upload-Metadata", encodeMetadata());
+        HootTransportResponse response = send(request, transport,
+                step.post(HootBody.create(new byte[0])));
+        if (response.getStatusCode() == 201) {
+            String location = getHeader(response, "Location");
+            if (location == null) {
+                response.close();
+                throw new IOException("Upload created without a Location");
+            }
+            mUploadUrl = URI.create(endpoint.toString()).resolve(location)
+                    .toString();
+            mOffset = 0;
+            Log.v(TAG, "Created upload [" + mUploadUrl + "]");
+        }
+        return response;
+    }
+
+    /**
+     * Ask the server how much of the upload it has; its offset may be ahead
+     * of ours if it kept part of a failed chunk.
+     */
+    private HootTransportResponse head(HootRequest request,
+            HootTransport transport) throws IOException {
+        HootTransportResponse response = send(request, transport,
+                newStep(request, Uri.parse(mUploadUrl)).head());
+        if (isSuccessful(response.getStatusCode())) {
+            try {
+                mOffset = getUploadOffset(response);
+            } catch (IOException e) {
+                response.close();
+                throw e;
+            }
+        }
+        return response;
+    }
+
+    private HootTransportResponse patch(HootRequest request,
+            HootTransport transport) throws IOException {
+        long length = Math.min(mChunkSize, mLength - mOffset);
+        HootRequest step = newStep(request, Uri.parse(mUploadUrl));
+        step.getHeaders().setProperty("Upload-Offset", String.valueOf(mOffset));
+        return send(request, transport, step.patch(HootBody.create(mFile,
+                mOffset, length).setContentType(CHUNK_CONTENT_TYPE)));
+    }
+
+    private HootRequest newStep(HootRequest request, Uri uri) {
+        Properties headers = new Properties();
+        if (request.getHeaders() != null) {
+            headers.putAll(request.getHeaders());
+        }
+        headers.setProperty("Tus-Resumable", TUS_VERSION);
+        return new HootRequest(request.getHoot()).setUri(uri)
+                .setHeaders(headers);
+    }
+
+    /**
+     * Runs a step as the request's current transport request, so cancelling
+     * the request cancels it.
+     */
+    private HootTransportResponse send(HootRequest request,
+            HootTransport transport, HootRequest step) throws IOException {
+        if (request.isCancelled()) {
+            throw new IOException("Request cancelled");
+        }
+        HootTransportRequest transportRequest = step.newTransportRequest();
+        HootTransportResponse response = new HootTransportResponse();
+        request.setTransportRequest(transportRequest);
+        try {
+            transport.execute(transportRequest, response);
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        } finally {
+            request.clearTransportRequest(transportRequest);
+        }
+        return response;
+    }
+
+    private void finish(HootRequest request, HootTransportResponse response)
+            throws IOException {
+        try {
+            request.processResponse(response);
+        } finally {
+            response.close();
+        }
+    }
+
+    private String encodeMetadata() throws UnsupportedEncodingException {
+        StringBuilder metadata = new StringBuilder();
+        for (Map.Entry<String, String> entry : mMetadata.entrySet()) {
+            if (metadata.length() > 0) {
+                metadata.append(',');
+            }
+            metadata.append(entry.getKey()).append(' ').append(Base64
+                    .encodeToString(entry.getValue().getBytes("UTF-8"),
+                            Base64.NO_WRAP));
+        }
+        return metadata.toString();
+    }
+
+    private String getJournalKey(Uri endpoint) {
+        return endpoint + " " + mFile.getAbsolutePath() + " " + mLength + " "
+                + mFile.lastModified();
+    }
+
+    private void restore(String key) {
+        synchronized (sJournalLock) {
+            String entry = readJournal().getProperty(key);
+            if (entry == null) {
+                return;
+            }
+            int space = entry.indexOf(' ');
+            try {
+                mOffset = Long.parseLong(entry.substring(0, space));
+                mUploadUrl = entry.substring(space + 1);
+                Log.v(TAG, "Resuming upload [" + mUploadUrl + "] at " + mOffset);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Ignoring bad journal entry: " + entry);
+            }
+        }
+    }
+
+    /**
+     * Save the upload's progress, or forget it once it's done. The journal
+     * only saves a restart from zero, so failing to write it isn't fatal.
+     */
+    private void record(String key, boolean done) {
+        synchronized (sJournalLock) {
+            Properties entries = readJournal();
+            if (done) {
+                entries.remove(key);
+            } else {
+                entries.setProperty(key, mOffset + " " + mUploadUrl);
+            }
+            File temp = new File(mJournal.getPath() + ".tmp");
+            try {
+                OutputStream os = new FileOutputStream(temp);
+                try {
+                    entries.store(os, null);
+                } finally {
+                    os.close();
+                }
+                if (!temp.renameTo(mJournal)) {
+                    throw new IOException("Unable to replace " + mJournal);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write upload journal", e);
+            }
+        }
+    }
+
+    private Properties readJournal() {
+        Properties entries = new Properties();
+        if (mJournal.exists()) {
+            try {
+                InputStream in = new FileInputStream(mJournal);
+                try {
+                    entries.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read upload journal", e);
+            }
+        }
+        return entries;
+    }
+
+    private static long getUploadOffset(HootTransportResponse response)
+            throws IOException {
+        String offset = getHeader(response, "Upload-Offset");
+        try {
+            return Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Upload-Offset: " + offset);
+        }
+    }
+
+    private static String getHeader(HootTransportResponse response, String name) {
+        if (response.getHeaders() == null) {
+            return null;
+        }
+        return HootHttpResponseParser.getHeader(response.getHeaders(), name);
+    }
+
+    private static boolean isSuccessful(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * tus servers answer for expired or unknown uploads with any of these.
+     */
+    private static boolean isGone(int status) {
+        return status == 403 || status == 404 || status == 410;
+    }
+
+}
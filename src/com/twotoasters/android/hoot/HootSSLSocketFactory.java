@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.util.Log;
+
+/**
+ * The socket factory every transport uses for https. Sockets come from one
+ * SSLContext, so they share its client session cache and reconnects can
+ * resume a session instead of doing a full handshake. Each handshake is
+ * recorded in the factory's {@link HootTlsStats}.
+ */
+class HootSSLSocketFactory extends SSLSocketFactory {
+
+    /** Sessions kept for resumption, across all hosts. */
+    static final int SESSION_CACHE_SIZE = 32;
+    /** How long a cached session may be resumed, in seconds. */
+    static final int SESSION_TIMEOUT = 60 * 60;
+
+    /**
+     * @return the context shared by every Hoot that doesn't set its own, so
+     *         sessions are reused across instances as well as transports.
+     */
+    static synchronized SSLContext getDefaultContext() {
+        if (sDefaultContext == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                SSLSessionContext sessions = context.getClientSessionContext();
+                sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(SESSION_TIMEOUT);
+                sDefaultContext = context;
+            } catch (GeneralSecurityException e) {
+                Log.w(TAG, "Unable to create SSL context", e);
+            }
+        }
+        return sDefaultContext;
+    }
+
+    /**
+     * Starts the handshake on a socket, timing it from here if the socket
+     * came from a HootSSLSocketFactory and wasn't connected when it was
+     * created. Hoot's own transports handshake through this rather than
+     * calling {@link SSLSocket#startHandshake()} directly.
+     */
+    static void startHandshake(SSLSocket socket) throws IOException {
+        HandshakeTimer timer = sTimers.remove(socket);
+        if (timer != null) {
+            timer.start();
+        }
+        socket.startHandshake();
+    }
+
+    HootSSLSocketFactory(SSLContext context, HootTlsStats stats) {
+        mDelegate = context != null ? context.getSocketFactory()
+                : HttpsURLConnection.getDefaultSSLSocketFactory();
+        mStats = stats;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return instrument(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port,
+            boolean autoClose) throws IOException {
+        return instrument(mDelegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return instrument(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+            int localPort) throws IOException {
+        return instrument(mDelegate.createSocket(host, port, localHost,
+                localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return instrument(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+            InetAddress localAddress, int localPort) throws IOException {
+        return instrument(mDelegate.createSocket(address, port, localAddress,
+                localPort));
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootSSLSocketFactory.class.getSimpleName();
+
+    private static SSLContext sDefaultContext;
+    /** Timers of sockets that haven't been handshaken through us yet. */
+    private static final Map<SSLSocket, HandshakeTimer> sTimers = Collections
+            .synchronizedMap(new WeakHashMap<SSLSocket, HandshakeTimer>());
+
+    private final SSLSocketFactory mDelegate;
+    private final HootTlsStats mStats;
+
+    private Socket instrument(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+        SSLSocket sslSocket = (SSLSocket) socket;
+        enableSessionTickets(sslSocket);
+
+        HandshakeTimer timer = new HandshakeTimer();
+        if (sslSocket.isConnected()) {
+            // layered over a connected socket, so the handshake is next
+            timer.start();
+        }
+        sTimers.put(sslSocket, timer);
+        sslSocket.addHandshakeCompletedListener(timer);
+        return sslSocket;
+    }
+
+    /**
+     * Times a socket's handshake from when it starts, which is only known
+     * once the socket is connected. The listener may be called on another
+     * thread after startHandshake() returns.
+     */
+    private class HandshakeTimer implements HandshakeCompletedListener {
+
+        void start() {
+            mStarted = System.currentTimeMillis();
+        }
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            // a resumed session keeps the creation time of the handshake that
+            // established it, even under TLS 1.3 where its id changes
+            boolean resumed = event.getSession().getCreationTime() < mCreated;
+            long started = mStarted;
+            mStats.onHandshake(resumed, started != 0
+                    ? System.currentTimeMillis() - started : -1);
+        }
+
+        private final long mCreated = System.currentTimeMillis();
+        private volatile long mStarted;
+    }
+
+    /**
+     * The platform sockets support tickets but leave them off; there's no
+     * public API to turn them on.
+     */
+    private static void enableSessionTickets(SSLSocket socket) {
+        try {
+            Method method = socket.getClass().getMethod("setUseSessionTickets",
+                    boolean.class);
+            method.invoke(socket, true);
+        } catch (NoSuchMethodException e) {
+            // not a platform socket, tickets are up to the provider
+        } catch (Exception e) {
+            Log.v(TAG, "Unable to enable session tickets: " + e);
+        }
+    }
+
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.twotoasters.android.hoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Downloads a file as several range requests at once, each writing its
+ * segment straight into place in a preallocated "&lt;file&gt;.partial" that's
+ * renamed to the file once every byte has arrived.
+ * <p>
+ * The first segment doubles as the probe. If the server answers it with 206
+ * and the resource's length, the rest is fetched in parallel, each request
+ * with <code>If-Range</code> so that a resource changing midway fails the
+ * download instead of mixing versions; every response must cover exactly the
+ * range asked for. A server that ignores the range gets its whole body
+ * written as it comes, and one without a validator gets one segment at a
+ * time.
+ * <p>
+ * A single connection on a high-latency link is limited by its window, not
+ * the link, so more connections go faster until the link is full. Two
+ * segments are in flight to begin with, and the count doubles, up to the
+ * maximum, for as long as each doubling raises the overall throughput by at
+ * least a tenth.
+ */
+final class HootSegmentedDownload {
+
+    HootSegmentedDownload(File file, int maxSegments) {
+        mFile = file;
+        mPartial = new File(file.getPath() + HootDownload.PARTIAL_SUFFIX);
+        mMaxSegments = maxSegments;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Download the file, leaving the outcome in the request's result: the
+     * probe's status and headers once the file is complete, or the response
+     * that stopped it.
+     */
+    void execute(HootRequest request, HootTransport transport)
+            throws IOException {
+        synchronized (this) {
+            // a retry starts over
+            mNext = 0;
+            mWritten = 0;
+            mRetries.clear();
+            mGrowing = true;
+            mFailure = null;
+        }
+        // a resumable download's state doesn't describe a preallocated file
+        new File(mPartial.getPath() + HootDownload.STATE_SUFFIX).delete();
+        RandomAccessFile file = new RandomAccessFile(mPartial, "rw");
+        boolean complete = false;
+        int status;
+        Map<String, List<String>> headers;
+        try {
+            file.setLength(0);
+            mChannel = file.getChannel();
+            long started = System.currentTimeMillis();
+            HootTransportRequest probe = register(request, newStep(request,
+                    0, MIN_SEGMENT_SIZE - 1, null));
+            HootTransportResponse response;
+            try {
+                response = send(request, transport, probe);
+            } catch (IOException e) {
+                unregister(request, probe);
+                throw e;
+            }
+            try {
+                status = response.getStatusCode();
+                headers = response.getHeaders();
+                if (status == 200) {
+                    // the server doesn't do ranges, so take all of it
+                    mTotal = HootResponseSink.copy(request, getBody(response),
+                            mChannel);
+                    long length = HootDownload.parseLong(getHeader(response,
+                            "Content-Length"));
+                    if (length >= 0 && length != mTotal) {
+                        throw new IOException("Download ended at " + mTotal
+                                + " of " + length + " bytes");
+                    }
+                } else if (status == 416 && "bytes */0".equals(getHeader(
+                        response, "Content-Range"))) {
+                    // no range of an empty resource can be satisfied, but
+                    // the empty file is all of it
+                    mTotal = 0;
+                    status = HttpURLConnection.HTTP_OK;
+                } else if (status == 206) {
+                    long[] range = HootDownload.parseContentRange(getHeader(
+                            response, "Content-Range"));
+                    if (range == null || range[0] != 0 || range[1] < 0) {
+                        throw new IOException("Unexpected Content-Range ["
+                                + getHeader(response, "Content-Range") + "]");
+                    }
+                    mTotal = range[1];
+                    file.setLength(mTotal);
+                    long length = Math.min(MIN_SEGMENT_SIZE, mTotal);
+                    HootResponseSink.copy(request, getBody(response), mChannel,
+                            0, length);
+                    mNext = length;
+                    mWritten = length;
+                    // enough segments for the count to grow a few times
+                    mSegmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(
+                            MAX_SEGMENT_SIZE, mTotal / (mMaxSegments * 4)));
+                    mValidator = getHeader(response, "ETag");
+                    if (mValidator == null || mValidator.startsWith("W/")) {
+                        mValidator = getHeader(response, "Last-Modified");
+                    }
+                    mRate = (double) length
+                            / Math.max(1, System.currentTimeMillis() - started);
+                } else {
+                    request.processResponse(response);
+                    return;
+                }
+            } finally {
+                response.close();
+                unregister(request, probe);
+            }
+
+            if (status == 206 && mNext < mTotal) {
+                fetchSegments(request, transport);
+            }
+            complete = true;
+        } finally {
+            file.close();
+            if (!complete) {
+                mPartial.delete();
+            }
+        }
+
+        mFile.delete();
+        if (!mPartial.renameTo(mFile)) {
+            throw new IOException("Unable to rename [" + mPartial + "] to ["
+                    + mFile + "]");
+        }
+        HootResult result = request.getResult();
+        result.setResponseCode(status);
+        result.setHeaders(headers);
+        result.setDownloadedFile(mFile);
+        result.setBytesWritten(mTotal);
+    }
+
+    /**
+     * Cancel every segment in flight. Each is sent as the request's current
+     * transport request, but only the last one sent is cancelled through
+     * that.
+     */
+    void cancel(HootTransport transport) {
+        if (transport.getCapabilities().getCancellation() == HootTransportCapabilities.Cancellation.NONE) {
+            return;
+        }
+        List<HootTransportRequest> inFlight;
+        synchronized (mInFlight) {
+            inFlight = new ArrayList<HootTransportRequest>(mInFlight);
+        }
+        for (HootTransportRequest transportRequest : inFlight) {
+            transport.cancel(transportRequest);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootSegmentedDownload.class.getSimpleName();
+    private static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int INITIAL_SEGMENTS = 2;
+    private static final double GROWTH_THRESHOLD = 1.1;
+    private static final int MAX_ATTEMPTS = 2;
+    private static ExecutorService sExecutor;
+
+    private final File mFile;
+    private final File mPartial;
+    private final int mMaxSegments;
+    private FileChannel mChannel;
+    private final List<HootTransportRequest> mInFlight = new ArrayList<HootTransportRequest>();
+    private String mValidator;
+    private long mTotal;
+    private long mSegmentSize;
+
+    // guarded by this
+    private long mNext;
+    private long mWritten;
+    private final LinkedList<Segment> mRetries = new LinkedList<Segment>();
+    private int mSegments;
+    private boolean mGrowing = true;
+    private double mRate;
+    private long mWindowStart;
+    private long mWindowBytes;
+    private int mWindowCount;
+    private IOException mFailure;
+
+    private static class Segment {
+        final long first;
+        final long last;
+        int attempts;
+
+        Segment(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private synchronized void fetchSegments(HootRequest request,
+            HootTransport transport) throws IOException {
+        int initial = mValidator != null ? Math.min(INITIAL_SEGMENTS,
+                mMaxSegments) : 1;
+        mWindowStart = System.currentTimeMillis();
+        mWindowBytes = 0;
+        mWindowCount = 0;
+        for (int i = 0; i < initial; i++) {
+            startSegment(request, transport);
+        }
+        // the workers write to the file until they stop, so it can't be
+        // closed before then, however the download ends
+        boolean interrupted = false;
+        while (mSegments > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                if (!interrupted) {
+                    interrupted = true;
+                    if (mFailure == null) {
+                        mFailure = new InterruptedIOException("Download interrupted");
+                    }
+                    cancel(transport);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+        if (request.isCancelled()) {
+            throw new IOException("Request cancelled");
+        }
+        if (mWritten != mTotal) {
+            throw new IOException("Download ended at " + mWritten + " of "
+                    + mTotal + " bytes");
+        }
+    }
+
+    /**
+     * Start a worker that fetches segments until there are none left.
+     */
+    private void startSegment(final HootRequest request,
+            final HootTransport transport) {
+        mSegments++;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Segment segment;
+                    while ((segment = nextSegment(request)) != null) {
+                        long started = System.currentTimeMillis();
+                        try {
+                            fetch(request, transport, segment);
+                        } catch (IOException e) {
+                            retry(segment, e);
+                            continue;
+                        }
+                        onSegmentDone(request, transport, segment,
+                                System.currentTimeMillis() - started);
+                    }
+                } finally {
+                    synchronized (HootSegmentedDownload.this) {
+                        mSegments--;
+                        HootSegmentedDownload.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized Segment nextSegment(HootRequest request) {
+        if (mFailure != null || request.isCancelled()) {
+            return null;
+        }
+        if (!mRetries.isEmpty()) {
+            return mRetries.removeFirst();
+        }
+        if (mNext >= mTotal) {
+            return null;
+        }
+        Segment segment = new Segment(mNext,
+                Math.min(mNext + mSegmentSize, mTotal) - 1);
+        mNext = segment.last + 1;
+        return segment;
+    }
+
+    private void fetch(HootRequest request, HootTransport transport,
+            Segment segment) throws IOException {
+        segment.attempts++;
+        HootTransportRequest transportRequest = register(request, newStep(
+                request, segment.first, segment.last, mValidator));
+        try {
+            fetch(request, transport, transportRequest, segment);
+        } finally {
+            unregister(request, transportRequest);
+        }
+    }
+
+    private void fetch(HootRequest request, HootTransport transport,
+            HootTransportRequest transportRequest, Segment segment)
+            throws IOException {
+        HootTransportResponse response = send(request, transport,
+                transportRequest);
+        try {
+            if (response.getStatusCode() != 206) {
+                // If-Range answers with the whole resource if it changed
+                throw new IOException("Segment at " + segment.first
+                        + " failed with status " + response.getStatusCode());
+            }
+            String contentRange = getHeader(response, "Content-Range");
+            long[] range = HootDownload.parseContentRange(contentRange);
+            if (range == null || range[0] != segment.first
+                    || range[1] != mTotal) {
+                throw new IOException("Unexpected Content-Range ["
+                        + contentRange + "] for segment at " + segment.first);
+            }
+            HootResponseSink.copy(request, getBody(response), mChannel,
+                    segment.first, segment.last - segment.first + 1);
+        } finally {
+            response.close();
+        }
+    }
+
+    private synchronized void retry(Segment segment, IOException e) {
+        if (segment.attempts >= MAX_ATTEMPTS) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+            return;
+        }
+        Log.v(TAG, "Segment at " + segment.first + " failed, retrying: " + e);
+        mRetries.add(segment);
+    }
+
+    /**
+     * Count the segment and, once each worker has had a turn since the count
+     * last grew, compare the throughput with before it did.
+     */
+    private synchronized void onSegmentDone(HootRequest request,
+            HootTransport transport, Segment segment, long elapsed) {
+        long length = segment.last - segment.first + 1;
+        mWritten += length;
+        request.getDownloadProgress().update(mWritten, mTotal);
+
+        mWindowBytes += length;
+        mWindowCount++;
+        if (!mGrowing || mValidator == null || mSegments >= mMaxSegments
+                || mWindowCount < mSegments || mNext >= mTotal) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        double rate = (double) mWindowBytes / Math.max(1, now - mWindowStart);
+        if (rate > mRate * GROWTH_THRESHOLD) {
+            mRate = rate;
+            mWindowStart = now;
+            mWindowBytes = 0;
+            mWindowCount = 0;
+            int added = Math.min(mSegments, mMaxSegments - mSegments);
+            for (int i = 0; i < added; i++) {
+                startSegment(request, transport);
+            }
+        } else {
+            mGrowing = false;
+            Log.v(TAG, "Throughput levelled off at " + mSegments + " segments");
+        }
+    }
+
+    private HootRequest newStep(HootRequest request, long first, long last,
+            String validator) {
+        Properties headers = new Properties();
+        if (request.getHeaders() != null) {
+            headers.putAll(request.getHeaders());
+        }
+        // ranges count bytes as sent, so the body mustn't be compressed
+        headers.setProperty("Accept-Encoding", "identity");
+        headers.setProperty("Range", "bytes=" + first + "-" + last);
+        if (validator != null) {
+            headers.setProperty("If-Range", validator);
+        }
+        return new HootRequest(request.getHoot()).setUri(request.buildUri())
+                .setHeaders(headers);
+    }
+
+    /**
+     * Make a step the request's current transport request, and one of the
+     * segments in flight, so cancelling the request cancels it. Transports
+     * can cancel a request until its response is closed, so it stays
+     * registered until then.
+     */
+    private HootTransportRequest register(HootRequest request, HootRequest step) {
+        HootTransportRequest transportRequest = step.newTransportRequest();
+        synchronized (mInFlight) {
+            mInFlight.add(transportRequest);
+        }
+        request.setTransportRequest(transportRequest);
+        return transportRequest;
+    }
+
+    private void unregister(HootRequest request,
+            HootTransportRequest transportRequest) {
+        request.clearTransportRequest(transportRequest);
+        synchronized (mInFlight) {
+            mInFlight.remove(transportRequest);
+        }
+    }
+
+    private HootTransportResponse send(HootRequest request,
+            HootTransport transport, HootTransportRequest transportRequest)
+            throws IOException {
+        // checked once registered, so a cancel can't fall in between
+        if (request.isCancelled()) {
+            throw new IOException("Request cancelled");
+        }
+        HootTransportResponse response = new HootTransportResponse();
+        try {
+            transport.execute(transportRequest, response);
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+        return response;
+    }
+
+    private static InputStream getBody(HootTransportResponse response)
+            throws IOException {
+        if (response.getBody() == null) {
+            throw new IOException("Response has no body");
+        }
+        return response.getBody();
+    }
+
+    private static String getHeader(HootTransportResponse response, String name) {
+        if (response.getHeaders() == null) {
+            return null;
+        }
+        return HootHttpResponseParser.getHeader(response.getHeaders(), name);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-segment");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+}
@@ -16,47 +16,99 @@
 
 package com.twotoasters.android.hoot;
 
+import java.util.concurrent.RejectedExecutionException;
 
-public class HootTask extends HootThreadPoolAsyncTask<HootRequest, HootRequest, HootRequest> {
+import android.os.Handler;
+import android.os.Looper;
 
-    @Override
-    protected HootRequest doInBackground(HootRequest... params) {
-        HootRequest request = params[0];
-        if (isCancelled()) {
-            return request;
-        }
+/**
+ * Runs a request, and any retries, on its Hoot's {@link HootExecutor}, and
+ * reports back on the UI thread.
+ */
+public class HootTask implements HootExecutor.Job {
 
-        // let the UI thread get an update so we know we've started the request
-        publishProgress(params);
+    HootTask(HootRequest request) {
+        mRequest = request;
+    }
 
-        do {
-            HootResult result = request.getHoot().executeRequestSynchronously(request);
-            if (result.isSuccess()) {
-                return request;
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
             }
+            mThread = Thread.currentThread();
         }
-        while (request.shouldRetry() && !isCancelled());
+        try {
+            // let the UI thread get an update so we know we've started the request
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mRequest.notifyStarted();
+                    }
+                }
+            });
 
-        return request;
+            do {
+                HootResult result = mRequest.getHoot()
+                        .executeRequestSynchronously(mRequest);
+                if (result.isSuccess()) {
+                    break;
+                }
+            }
+            while (mRequest.shouldRetry() && !isCancelled());
+        } finally {
+            synchronized (this) {
+                mThread = null;
+            }
+        }
+        postCompletion();
     }
 
     @Override
-    protected void onPostExecute(HootRequest request) {
-        if (request != null) {
-            request.handleCompletion();
-        }
+    public int getPriority() {
+        return mRequest.getPriority();
     }
 
     @Override
-    protected void onProgressUpdate(HootRequest... values) {
-        HootRequest request = values[0];
+    public void onRejected(RejectedExecutionException e) {
+        mRequest.getResult().setException(e);
+        postCompletion();
+    }
 
-        if (request != null && request.getListener() != null) {
-            request.getListener().onRequestStarted(request);
-        }
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private final HootRequest mRequest;
+
+    // guarded by this
+    private boolean mCancelled;
+    private Thread mThread;
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
     }
 
     void cancel() {
-        cancel(true);
+        synchronized (this) {
+            mCancelled = true;
+            if (mThread != null) {
+                mThread.interrupt();
+            }
+        }
+        mRequest.getHoot().getExecutor().remove(this);
+    }
+
+    private void postCompletion() {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled()) {
+                    mRequest.handleCompletion();
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts TLS handshakes made through a Hoot's socket factory, split into
+ * full handshakes and abbreviated ones that resumed a cached session.
+ */
+public class HootTlsStats {
+
+    public long getFullHandshakeCount() {
+        return mFullHandshakes.get();
+    }
+
+    public long getResumedHandshakeCount() {
+        return mResumedHandshakes.get();
+    }
+
+    /**
+     * @return mean full handshake time in milliseconds, or 0 if there were
+     *         none.
+     */
+    public long getAverageFullHandshakeTime() {
+        long count = mTimedFullHandshakes.get();
+        return count == 0 ? 0 : mFullHandshakeTime.get() / count;
+    }
+
+    /**
+     * @return mean resumed handshake time in milliseconds, or 0 if there were
+     *         none.
+     */
+    public long getAverageResumedHandshakeTime() {
+        long count = mTimedResumedHandshakes.get();
+        return count == 0 ? 0 : mResumedHandshakeTime.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "full=" + getFullHandshakeCount() + " ("
+                + getAverageFullHandshakeTime() + "ms) resumed="
+                + getResumedHandshakeCount() + " ("
+                + getAverageResumedHandshakeTime() + "ms)";
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private final AtomicLong mFullHandshakes = new AtomicLong();
+    private final AtomicLong mResumedHandshakes = new AtomicLong();
+    private final AtomicLong mTimedFullHandshakes = new AtomicLong();
+    private final AtomicLong mTimedResumedHandshakes = new AtomicLong();
+    private final AtomicLong mFullHandshakeTime = new AtomicLong();
+    private final AtomicLong mResumedHandshakeTime = new AtomicLong();
+
+    /**
+     * @param time how long the handshake took, or -1 if its start wasn't
+     *            seen; it's counted but left out of the averages.
+     */
+    void onHandshake(boolean resumed, long time) {
+        if (resumed) {
+            mResumedHandshakes.incrementAndGet();
+            if (time >= 0) {
+                mTimedResumedHandshakes.incrementAndGet();
+                mResumedHandshakeTime.addAndGet(time);
+            }
+        } else {
+            mFullHandshakes.incrementAndGet();
+            if (time >= 0) {
+                mTimedFullHandshakes.incrementAndGet();
+                mFullHandshakeTime.addAndGet(time);
+            }
+        }
+    }
+
+}
@@ -16,12 +16,41 @@
 
 package com.twotoasters.android.hoot;
 
-interface HootTransport {
+import java.io.IOException;
 
+/**
+ * The transport SPI: moves a single request over the network. Hoot builds the
+ * {@link HootTransportRequest}, and once the transport has filled in the
+ * {@link HootTransportResponse} Hoot takes care of deserialization, retries
+ * and listener callbacks.
+ * <p>
+ * Transports must be safe to use from several threads at once.
+ */
+public interface HootTransport {
+
+    /**
+     * Called once, before the first request, with the owning Hoot so the
+     * transport can pick up timeouts, pool sizes and so on.
+     */
     public void setup(Hoot hoot);
 
-    public HootResult synchronousExecute(HootRequest request);
+    public HootTransportCapabilities getCapabilities();
+
+    /**
+     * Execute the request, blocking until the response status and headers
+     * are available. The transport sets the response body to a stream that
+     * releases the connection when closed; Hoot always closes it.
+     * 
+     * @throws IOException if the request couldn't be completed.
+     */
+    public void execute(HootTransportRequest request,
+            HootTransportResponse response) throws IOException;
 
-    public void cancel(HootRequest request);
+    /**
+     * Abort an in-flight request, as described by
+     * {@link HootTransportCapabilities#getCancellation()}. May be called from
+     * any thread, including after the request has finished.
+     */
+    public void cancel(HootTransportRequest request);
 
 }
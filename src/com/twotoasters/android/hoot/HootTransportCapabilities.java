@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+/**
+ * Describes what a {@link HootTransport} can do, so Hoot can take the cheaper
+ * path when a transport supports it.
+ */
+public class HootTransportCapabilities {
+
+    /**
+     * What happens to the underlying connection when a request is cancelled.
+     */
+    public enum Cancellation {
+        /** Cancelling only stops Hoot from delivering the result. */
+        NONE,
+        /** The request's connection is closed. */
+        CLOSE_CONNECTION,
+        /** Only the request's stream is reset; the connection stays up. */
+        RESET_STREAM
+    }
+
+    /**
+     * @param streamingRequestBodies true if request bodies are written to the
+     *            wire as they are read rather than buffered first.
+     */
+    public HootTransportCapabilities setStreamingRequestBodies(
+            boolean streamingRequestBodies) {
+        mStreamingRequestBodies = streamingRequestBodies;
+        return this;
+    }
+
+    /**
+     * @param streamingResponseBodies true if the response body is read from
+     *            the wire as it is consumed rather than buffered first.
+     */
+    public HootTransportCapabilities setStreamingResponseBodies(
+            boolean streamingResponseBodies) {
+        mStreamingResponseBodies = streamingResponseBodies;
+        return this;
+    }
+
+    /**
+     * @param multiplexing true if concurrent requests to a host share one
+     *            connection.
+     */
+    public HootTransportCapabilities setMultiplexing(boolean multiplexing) {
+        mMultiplexing = multiplexing;
+        return this;
+    }
+
+    /**
+     * @param nonBlocking true if the transport implements
+     *            {@link HootAsyncTransport} and doesn't need a thread per
+     *            request.
+     */
+    public HootTransportCapabilities setNonBlocking(boolean nonBlocking) {
+        mNonBlocking = nonBlocking;
+        return this;
+    }
+
+    public HootTransportCapabilities setCancellation(Cancellation cancellation) {
+        mCancellation = cancellation;
+        return this;
+    }
+
+    public boolean isStreamingRequestBodies() {
+        return mStreamingRequestBodies;
+    }
+
+    public boolean isStreamingResponseBodies() {
+        return mStreamingResponseBodies;
+    }
+
+    public boolean isMultiplexing() {
+        return mMultiplexing;
+    }
+
+    public boolean isNonBlocking() {
+        return mNonBlocking;
+    }
+
+    public Cancellation getCancellation() {
+        return mCancellation;
+    }
+
+    @Override
+    public String toString() {
+        return "streamingRequestBodies=" + mStreamingRequestBodies
+                + " streamingResponseBodies=" + mStreamingResponseBodies
+                + " multiplexing=" + mMultiplexing + " nonBlocking="
+                + mNonBlocking + " cancellation=" + mCancellation;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private boolean mStreamingRequestBodies;
+    private boolean mStreamingResponseBodies;
+    private boolean mMultiplexing;
+    private boolean mNonBlocking;
+    private Cancellation mCancellation = Cancellation.CLOSE_CONNECTION;
+
+}
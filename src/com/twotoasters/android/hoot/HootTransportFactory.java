@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+/**
+ * Creates transports for {@link Hoot} instances. Register one with
+ * {@link Hoot#registerTransportFactory(int, HootTransportFactory)} to make it
+ * selectable by type, or hand it to a single Hoot with
+ * {@link Hoot#setTransportFactory(HootTransportFactory)}.
+ */
+public interface HootTransportFactory {
+
+    /**
+     * @return a new, not yet set up, transport.
+     */
+    public HootTransport createTransport();
+
+}
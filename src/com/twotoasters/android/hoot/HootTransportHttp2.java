@@ -0,0 +1,624 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * An HTTP/2 transport that multiplexes every request to a host over a single
+ * connection. https hosts are negotiated with ALPN where the platform
+ * supports it; plain http hosts are spoken to with prior knowledge (h2c),
+ * which is mostly useful against local test servers. Hosts that don't
+ * negotiate h2 are remembered and handed to the regular blocking transport.
+ * <p>
+ * Cancelling a request resets just its stream; the connection stays up for
+ * everything else.
+ */
+class HootTransportHttp2 implements HootAsyncTransport, HootPooledTransport {
+
+    @Override
+    public void setup(Hoot hoot) {
+        mTimeout = hoot.getTimeout();
+        mConnector = new HootConnector(hoot.getResolver(), mTimeout);
+        mIdleConnectionTimeout = hoot.getIdleConnectionTimeout();
+        mSSLHostNameVerifier = hoot.getSSLHostNameVerifier();
+        mSSLSocketFactory = hoot.getSSLSocketFactory();
+
+        mFallbackTransport = Hoot.createPlatformTransport();
+        mFallbackTransport.setup(hoot);
+    }
+
+    @Override
+    public HootTransportCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    public boolean isAsync(HootTransportRequest request) {
+        Uri uri = request.getUri();
+        if ("http".equalsIgnoreCase(uri.getScheme())) {
+            return true;
+        }
+        synchronized (mHttp1Authorities) {
+            return !mHttp1Authorities.contains(getAuthority(uri));
+        }
+    }
+
+    @Override
+    public void executeAsync(final HootTransportRequest request,
+            final HootTransportResponse response, final Callback callback) {
+        getWorker().execute(new Runnable() {
+            @Override
+            public void run() {
+                start(request, response, callback, true);
+            }
+        });
+    }
+
+    @Override
+    public void execute(HootTransportRequest request,
+            HootTransportResponse response) throws IOException {
+        if (!isAsync(request)) {
+            mFallbackTransport.execute(request, response);
+            return;
+        }
+
+        HootBlockingCallback callback = new HootBlockingCallback();
+        executeAsync(request, response, callback);
+        callback.await(this, request);
+    }
+
+    /**
+     * Every request to a host shares one connection, so that's all this
+     * opens. Requests made while it's opening wait for it rather than open a
+     * second one.
+     */
+    @Override
+    public void prewarm(final Uri uri, final int connections) {
+        getConnection(uri, getAuthority(uri), new ConnectionCallback() {
+
+            @Override
+            public void onConnection(HootHttp2Connection connection) {
+                if (connection == null) {
+                    prewarmFallback(uri, connections);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Log.v(TAG, "Unable to prewarm [" + uri + "]: " + e);
+            }
+        });
+    }
+
+    @Override
+    public void cancel(HootTransportRequest request) {
+        mFallbackTransport.cancel(request);
+        HootHttp2Connection.Stream stream;
+        synchronized (mStreams) {
+            stream = mStreams.get(request);
+        }
+        if (stream != null) {
+            stream.cancel();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootTransportHttp2.class.getSimpleName();
+    private static final HootTransportCapabilities CAPABILITIES = new HootTransportCapabilities()
+            .setMultiplexing(true)
+            .setNonBlocking(true)
+            .setCancellation(HootTransportCapabilities.Cancellation.RESET_STREAM);
+    private static final long CHECK_INTERVAL = 1000;
+
+    // shared by every HTTP/2 transport
+    private static ExecutorService sWorker;
+    private static ExecutorService sBlockingExecutor;
+    private static ScheduledExecutorService sTimer;
+
+    private int mTimeout;
+    private HootConnector mConnector;
+    private int mIdleConnectionTimeout;
+    private X509HostnameVerifier mSSLHostNameVerifier;
+    private SSLSocketFactory mSSLSocketFactory;
+    private HootTransport mFallbackTransport;
+
+    // guarded by mConnections
+    private final Map<String, HootHttp2Connection> mConnections = new HashMap<String, HootHttp2Connection>();
+    private boolean mCheckScheduled;
+    private final Map<String, List<ConnectionCallback>> mPendingConnections = new HashMap<String, List<ConnectionCallback>>();
+    private final Set<String> mHttp1Authorities = new HashSet<String>();
+    private final Map<HootTransportRequest, HootHttp2Connection.Stream> mStreams = new HashMap<HootTransportRequest, HootHttp2Connection.Stream>();
+
+    /**
+     * Told of a connection once it's open, on a worker thread. A null
+     * connection means the host doesn't speak HTTP/2.
+     */
+    private interface ConnectionCallback {
+        public void onConnection(HootHttp2Connection connection);
+
+        public void onFailure(Exception e);
+    }
+
+    /**
+     * Starts requests and hands back responses, which Hoot deserializes on
+     * the thread it's given.
+     */
+    private static synchronized ExecutorService getWorker() {
+        if (sWorker == null) {
+            sWorker = Executors.newCachedThreadPool(newThreadFactory("Hoot-HTTP2-worker"));
+        }
+        return sWorker;
+    }
+
+    /**
+     * Connects, handshakes, writes request bodies and runs fallback requests.
+     */
+    private static synchronized ExecutorService getBlockingExecutor() {
+        if (sBlockingExecutor == null) {
+            sBlockingExecutor = Executors.newCachedThreadPool(newThreadFactory("Hoot-HTTP2-io"));
+        }
+        return sBlockingExecutor;
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, newThreadFactory("Hoot-HTTP2-timer"));
+        }
+        return sTimer;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs on a worker thread.
+     */
+    private void start(final HootTransportRequest request,
+            final HootTransportResponse response, final Callback callback,
+            final boolean mayRetry) {
+        if (request.isCancelled()) {
+            callback.onFailure(request, new IOException("Request cancelled"));
+            return;
+        }
+
+        final Uri uri = request.getUri();
+        final String authority = getAuthority(uri);
+        getConnection(uri, authority, new ConnectionCallback() {
+
+            @Override
+            public void onConnection(HootHttp2Connection connection) {
+                if (connection == null) {
+                    runOnFallback(request, response, callback);
+                } else {
+                    send(connection, request, response, callback, mayRetry);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                complete(request, response, callback, 0, null, null, e);
+            }
+        });
+    }
+
+    /**
+     * Runs on a worker thread.
+     */
+    private void send(HootHttp2Connection connection,
+            final HootTransportRequest request,
+            final HootTransportResponse response, final Callback callback,
+            final boolean mayRetry) {
+        if (request.isCancelled()) {
+            callback.onFailure(request, new IOException("Request cancelled"));
+            return;
+        }
+
+        Uri uri = request.getUri();
+        String authority = getAuthority(uri);
+        try {
+            Log.v(TAG, "Executing [" + uri + "]");
+            List<String[]> headers = new ArrayList<String[]>();
+            byte[] body = buildRequest(request, uri, authority, headers);
+            HootHttp2Connection.Stream stream = connection.newStream(headers,
+                    body, new HootHttp2Connection.StreamListener() {
+
+                        @Override
+                        public void onResponse(int statusCode,
+                                Map<String, List<String>> headers,
+                                InputStream body) {
+                            complete(request, response, callback,
+                                    statusCode, headers, body, null);
+                        }
+
+                        @Override
+                        public void onFailure(IOException e, boolean retryable) {
+                            if (retryable && mayRetry && !request.isCancelled()) {
+                                // the server never saw this stream, so it's
+                                // safe to send it again on a new connection
+                                getWorker().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        start(request, response, callback,
+                                                false);
+                                    }
+                                });
+                            } else {
+                                complete(request, response, callback, 0,
+                                        null, null, e);
+                            }
+                        }
+                    });
+            synchronized (mStreams) {
+                mStreams.put(request, stream);
+            }
+            if (request.isCancelled()) {
+                stream.cancel();
+            }
+        } catch (Exception e) {
+            complete(request, response, callback, 0, null, null, e);
+        }
+    }
+
+    private String getAuthority(Uri uri) {
+        boolean https = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() != -1 ? uri.getPort() : https ? 443 : 80;
+        return uri.getHost() + ":" + port;
+    }
+
+    /**
+     * Hand the callback a usable connection for the authority, opening one if
+     * there isn't one yet. Connecting and the TLS handshake happen on an io
+     * thread, so a slow host doesn't hold up a worker. Callers waiting for
+     * the same authority share the connection that's opening.
+     */
+    private void getConnection(final Uri uri, final String authority,
+            ConnectionCallback callback) {
+        HootHttp2Connection connection;
+        synchronized (mConnections) {
+            connection = mConnections.get(authority);
+            if (connection == null || !connection.isUsable()) {
+                connection = null;
+                List<ConnectionCallback> waiting = mPendingConnections.get(authority);
+                if (waiting != null) {
+                    waiting.add(callback);
+                    return;
+                }
+                waiting = new ArrayList<ConnectionCallback>();
+                waiting.add(callback);
+                mPendingConnections.put(authority, waiting);
+            }
+        }
+        if (connection != null) {
+            callback.onConnection(connection);
+            return;
+        }
+
+        getBlockingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                HootHttp2Connection connection = null;
+                Exception failure = null;
+                try {
+                    connection = openConnection(uri, authority);
+                } catch (Exception e) {
+                    failure = e;
+                }
+                final List<ConnectionCallback> waiting;
+                synchronized (mConnections) {
+                    if (connection != null) {
+                        mConnections.put(authority, connection);
+                        scheduleCheck();
+                    }
+                    waiting = mPendingConnections.remove(authority);
+                }
+                final HootHttp2Connection opened = connection;
+                final Exception exception = failure;
+                getWorker().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ConnectionCallback callback : waiting) {
+                            if (exception != null) {
+                                callback.onFailure(exception);
+                            } else {
+                                callback.onConnection(opened);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs on an io thread.
+     * 
+     * @return a new connection to the authority, or null if the host doesn't
+     *         speak HTTP/2.
+     */
+    private HootHttp2Connection openConnection(Uri uri, String authority)
+            throws IOException {
+        synchronized (mHttp1Authorities) {
+            if (mHttp1Authorities.contains(authority)) {
+                return null;
+            }
+        }
+
+        boolean https = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() != -1 ? uri.getPort() : https ? 443 : 80;
+        Socket socket = mConnector.connect(uri.getHost(), port);
+        if (https) {
+            SSLSocket sslSocket = (SSLSocket) mSSLSocketFactory.createSocket(
+                    socket, uri.getHost(), port, true);
+            if (!negotiateHttp2(sslSocket, uri.getHost())) {
+                Log.v(TAG, authority + " does not support h2, falling back");
+                sslSocket.close();
+                synchronized (mHttp1Authorities) {
+                    mHttp1Authorities.add(authority);
+                }
+                return null;
+            }
+            socket = sslSocket;
+        }
+
+        HootHttp2Connection connection = new HootHttp2Connection(socket,
+                getBlockingExecutor(), mTimeout);
+        connection.start();
+        return connection;
+    }
+
+    /**
+     * ALPN is only reachable through reflection on the platforms we support
+     * (SSLParameters.setApplicationProtocols arrived in Java 9 and Android
+     * 10); without it we can't safely speak h2 over TLS.
+     */
+    private boolean negotiateHttp2(SSLSocket socket, String host)
+            throws IOException {
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            Method setProtocols = SSLParameters.class.getMethod(
+                    "setApplicationProtocols", String[].class);
+            setProtocols.invoke(parameters, new Object[] { new String[] {
+                    "h2", "http/1.1" } });
+            socket.setSSLParameters(parameters);
+            socket.setSoTimeout(mTimeout);
+            HootSSLSocketFactory.startHandshake(socket);
+            mSSLHostNameVerifier.verify(host, socket);
+            Method getProtocol = SSLSocket.class.getMethod("getApplicationProtocol");
+            return "h2".equals(getProtocol.invoke(socket));
+        } catch (SSLException e) {
+            throw e;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            Log.v(TAG, "ALPN unavailable: " + e);
+            return false;
+        }
+    }
+
+    private byte[] buildRequest(HootTransportRequest request, Uri uri,
+            String authority, List<String[]> headers) throws IOException {
+        byte[] body = null;
+        if (request.hasBody()) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            request.writeBody(os);
+            body = os.toByteArray();
+        }
+
+        String path = uri.getEncodedPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        if (uri.getEncodedQuery() != null) {
+            path += "?" + uri.getEncodedQuery();
+        }
+
+        headers.add(new String[] { ":method", request.getMethod() });
+        headers.add(new String[] { ":scheme", uri.getScheme().toLowerCase() });
+        headers.add(new String[] { ":authority", authority });
+        headers.add(new String[] { ":path", path });
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase();
+            if (!CONNECTION_HEADERS.contains(name)) {
+                headers.add(new String[] { name, header.getValue() });
+            }
+        }
+        if (request.getContentType() != null) {
+            headers.add(new String[] { "content-type", request.getContentType() });
+        }
+        if (body != null) {
+            headers.add(new String[] { "content-length",
+                    String.valueOf(body.length) });
+        }
+        return body;
+    }
+
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("host");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+    }
+
+    private void runOnFallback(final HootTransportRequest request,
+            final HootTransportResponse response, final Callback callback) {
+        getBlockingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mFallbackTransport.execute(request, response);
+                } catch (Exception e) {
+                    callback.onFailure(request, e);
+                    return;
+                }
+                callback.onResponse(request, response);
+            }
+        });
+    }
+
+    private void prewarmFallback(final Uri uri, final int connections) {
+        if (!(mFallbackTransport instanceof HootPooledTransport)) {
+            return;
+        }
+        getBlockingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ((HootPooledTransport) mFallbackTransport).prewarm(uri,
+                            connections);
+                } catch (IOException e) {
+                    Log.v(TAG, "Unable to prewarm [" + uri + "]: " + e);
+                }
+            }
+        });
+    }
+
+    private void complete(final HootTransportRequest request,
+            final HootTransportResponse response, final Callback callback,
+            final int statusCode, final Map<String, List<String>> headers,
+            final InputStream body, final Exception exception) {
+        if (exception != null) {
+            synchronized (mStreams) {
+                mStreams.remove(request);
+            }
+        }
+        getWorker().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (exception != null) {
+                    callback.onFailure(request, exception);
+                    return;
+                }
+                response.setStatusCode(statusCode);
+                response.setHeaders(headers);
+                response.setBody(new ResponseBody(request, body));
+                callback.onResponse(request, response);
+            }
+        });
+    }
+
+    /**
+     * Keeps the request's stream cancellable until its body is closed.
+     */
+    private class ResponseBody extends FilterInputStream {
+
+        ResponseBody(HootTransportRequest request, InputStream body) {
+            super(body);
+            mRequest = request;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (mStreams) {
+                mStreams.remove(mRequest);
+            }
+            super.close();
+        }
+
+        private final HootTransportRequest mRequest;
+    }
+
+    /**
+     * Sweeps the connections for idle ones and timed out streams every
+     * second, for as long as there are any. Called holding mConnections.
+     */
+    private void scheduleCheck() {
+        if (mCheckScheduled) {
+            return;
+        }
+        mCheckScheduled = true;
+        getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkConnections();
+            }
+        }, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkConnections() {
+        long now = System.currentTimeMillis();
+        List<HootHttp2Connection> idle = new ArrayList<HootHttp2Connection>();
+        List<HootHttp2Connection> active = new ArrayList<HootHttp2Connection>();
+        synchronized (mConnections) {
+            mCheckScheduled = false;
+            Iterator<HootHttp2Connection> iter = mConnections.values().iterator();
+            while (iter.hasNext()) {
+                HootHttp2Connection connection = iter.next();
+                if (!connection.isUsable()) {
+                    iter.remove();
+                } else if (connection.isIdle()
+                        && now - connection.getIdleSince() > mIdleConnectionTimeout) {
+                    iter.remove();
+                    idle.add(connection);
+                } else {
+                    active.add(connection);
+                }
+            }
+            if (!mConnections.isEmpty()) {
+                scheduleCheck();
+            }
+        }
+        for (HootHttp2Connection connection : idle) {
+            connection.shutdown();
+        }
+        for (HootHttp2Connection connection : active) {
+            connection.checkTimeouts(now);
+        }
+    }
+
+}
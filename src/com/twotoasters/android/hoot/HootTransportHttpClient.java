@@ -16,46 +16,63 @@
 
 package com.twotoasters.android.hoot;
 
-import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
+import android.net.Uri;
 import android.util.Log;
 
-class HootTransportHttpClient implements HootTransport {
+class HootTransportHttpClient implements HootPooledTransport {
 
     private static final String TAG = HootTransportHttpClient.class
             .getSimpleName();
@@ -63,133 +80,165 @@ class HootTransportHttpClient implements HootTransport {
     @Override
     public void setup(Hoot hoot) {
         HttpParams params = new BasicHttpParams();
-        ConnManagerParams.setMaxTotalConnections(params, 10);
+        ConnManagerParams.setMaxTotalConnections(params,
+                hoot.getMaxConnections());
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+                hoot.getMaxConnectionsPerHost()));
         ConnManagerParams.setTimeout(params, hoot.getTimeout());
         HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
         HttpConnectionParams.setConnectionTimeout(params, hoot.getTimeout());
         HttpConnectionParams.setSoTimeout(params, hoot.getTimeout());
         HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
 
         SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory
-                .getSocketFactory(), 80));
-        SSLSocketFactory sslSocketFactory = SSLSocketFactory.getSocketFactory();
-        sslSocketFactory.setHostnameVerifier(hoot.getSSLHostNameVerifier());
-        schemeRegistry.register(new Scheme("https", sslSocketFactory, 443));
+        HootConnector connector = new HootConnector(hoot.getResolver(),
+                hoot.getTimeout());
+        schemeRegistry.register(new Scheme("http",
+                new PlainConnectorSocketFactory(connector), 80));
+        schemeRegistry.register(new Scheme("https", new TlsSocketFactory(
+                hoot.getSSLSocketFactory(), hoot.getSSLHostNameVerifier(),
+                connector), 443));
 
         ClientConnectionManager cm = new ThreadSafeClientConnManager(params,
                 schemeRegistry);
         mClient = new DefaultHttpClient(cm, params);
-        if (hoot.isBasicAuth()) {
-            mClient.getCredentialsProvider().setCredentials(
-                    AuthScope.ANY,
-                    new UsernamePasswordCredentials(
-                            hoot.getBasicAuthUsername(), hoot
-                                    .getBasicAuthPassword()));
+        mIdleConnectionTimeout = hoot.getIdleConnectionTimeout();
+        mTimeout = hoot.getTimeout();
+        if (hoot.isKeepAlive()) {
+            mClient.setKeepAliveStrategy(new IdleTimeoutKeepAliveStrategy());
+        } else {
+            mClient.setReuseStrategy(new NoConnectionReuseStrategy());
         }
     }
 
     @Override
-    public HootResult synchronousExecute(HootRequest request) {
+    public HootTransportCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
 
+    @Override
+    public void execute(HootTransportRequest request,
+            HootTransportResponse response) throws IOException {
         HttpRequestBase requestBase = null;
-        HootResult result = request.getResult();
-        try {
-            String uri = request.buildUri().toString();
-            switch (request.getOperation()) {
-                case DELETE:
-                    requestBase = new HttpDelete(uri);
-                    break;
-                case GET:
-                    requestBase = new HttpGet(uri);
-                    break;
-                case PUT:
-                    HttpPut put = new HttpPut(uri);
-                    put.setEntity(getEntity(request));
-                    requestBase = put;
-                    break;
-                case POST:
-                    HttpPost post = new HttpPost(uri);
-                    post.setEntity(getEntity(request));
-                    requestBase = post;
-                    break;
-                case HEAD:
-                    requestBase = new HttpHead(uri);
-                    break;
-            }
-        } catch (UnsupportedEncodingException e1) {
-            result.setException(e1);
-            e1.printStackTrace();
-            return result;
-        } catch (IOException e) {
-            result.setException(e);
-            e.printStackTrace();
-            return result;
+        String uri = request.getUri().toString();
+        switch (request.getRequest().getOperation()) {
+            case DELETE:
+                requestBase = new HttpDelete(uri);
+                break;
+            case GET:
+                requestBase = new HttpGet(uri);
+                break;
+            case PUT:
+                HttpPut put = new HttpPut(uri);
+                put.setEntity(getEntity(request));
+                requestBase = put;
+                break;
+            case POST:
+                HttpPost post = new HttpPost(uri);
+                post.setEntity(getEntity(request));
+                requestBase = post;
+                break;
+            case PATCH:
+                HttpPatch patch = new HttpPatch(uri);
+                if (request.hasBody()) {
+                    patch.setEntity(getEntity(request));
+                }
+                requestBase = patch;
+                break;
+            case HEAD:
+                requestBase = new HttpHead(uri);
+                break;
+        }
+
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            requestBase.addHeader(header.getKey(), header.getValue());
         }
 
         synchronized (mRequestBaseMap) {
             mRequestBaseMap.put(request, requestBase);
         }
-        if (request.getHeaders() != null && request.getHeaders().size() > 0) {
-            for (Object propertyKey : request.getHeaders().keySet()) {
-                requestBase.addHeader((String) propertyKey, (String) request
-                        .getHeaders().get(propertyKey));
-            }
-        }
-
-        InputStream is = null;
+        boolean executed = false;
         try {
+            evictIdleConnections();
             Log.v(TAG, "URI: [" + requestBase.getURI().toString() + "]");
-            HttpResponse response = mClient.execute(requestBase);
-
-            if (response != null) {
-                result.setResponseCode(response.getStatusLine().getStatusCode());
-                Map<String, List<String>> headers = new HashMap<String, List<String>>();
-                for (Header header : response.getAllHeaders()) {
-                    List<String> values = new ArrayList<String>();
-                    values.add(header.getValue());
+            HttpResponse httpResponse = mClient.execute(requestBase);
+
+            response.setStatusCode(httpResponse.getStatusLine().getStatusCode());
+            Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            for (Header header : httpResponse.getAllHeaders()) {
+                List<String> values = headers.get(header.getName());
+                if (values == null) {
+                    values = new ArrayList<String>();
                     headers.put(header.getName(), values);
                 }
-                result.setHeaders(headers);
-                HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    is = entity.getContent();
-                    result.setResponseStream(new BufferedInputStream(is));
-                    request.deserializeResult();
-                }
+                values.add(header.getValue());
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            result.setException(e);
+            response.setHeaders(headers);
+            HttpEntity entity = httpResponse.getEntity();
+            InputStream is = entity != null ? entity.getContent() : null;
+            response.setBody(new RequestStream(request, is));
+            executed = true;
         } finally {
-            requestBase = null;
-            synchronized (mRequestBaseMap) {
-                mRequestBaseMap.remove(request);
-            }
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            if (!executed) {
+                synchronized (mRequestBaseMap) {
+                    mRequestBaseMap.remove(request);
                 }
             }
         }
-        return result;
     }
 
-    private HttpEntity getEntity(HootRequest request)
-            throws UnsupportedEncodingException, IOException {
-    	
-    	if (request.getMultipartEntity() != null) {
-    		return request.getMultipartEntity();
-    	}
+    /**
+     * Closes pooled connections the server has told us it will drop and any
+     * that have sat idle longer than the configured idle timeout.
+     */
+    private void evictIdleConnections() {
+        ClientConnectionManager cm = mClient.getConnectionManager();
+        cm.closeExpiredConnections();
+        cm.closeIdleConnections(mIdleConnectionTimeout, TimeUnit.MILLISECONDS);
+    }
 
-        return new StringEntity(IOUtils.toString(request.getData()), HTTP.UTF_8);
+    private HttpEntity getEntity(HootTransportRequest request) {
+        return new RequestBodyEntity(request);
+    }
+
+    /**
+     * Lease every connection before opening any, so the pool can't hand the
+     * same one back, then release them all as reusable.
+     */
+    @Override
+    public void prewarm(Uri uri, int connections) throws IOException {
+        HttpHost target = new HttpHost(uri.getHost(), uri.getPort(),
+                uri.getScheme());
+        HttpRoute route = new HttpRoute(target, null,
+                "https".equalsIgnoreCase(uri.getScheme()));
+        ClientConnectionManager cm = mClient.getConnectionManager();
+        List<ManagedClientConnection> leased = new ArrayList<ManagedClientConnection>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                leased.add(cm.requestConnection(route, null).getConnection(
+                        mTimeout, TimeUnit.MILLISECONDS));
+            }
+            for (ManagedClientConnection connection : leased) {
+                if (!connection.isOpen()) {
+                    connection.open(route, new BasicHttpContext(),
+                            mClient.getParams());
+                }
+                connection.markReusable();
+            }
+            Log.v(TAG, "Prewarmed " + leased.size() + " connections to " + target);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ManagedClientConnection connection : leased) {
+                cm.releaseConnection(connection, mIdleConnectionTimeout,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
     }
 
     @Override
-    public void cancel(HootRequest request) {
+    public void cancel(HootTransportRequest request) {
         synchronized (mRequestBaseMap) {
             HttpRequestBase requestBase = mRequestBaseMap.get(request);
             if (requestBase != null) {
@@ -201,7 +250,439 @@ class HootTransportHttpClient implements HootTransport {
     // -------------------------------------------------------------------------
     // END OF PUBLIC INTERFACE
     // -------------------------------------------------------------------------
+    private static final HootTransportCapabilities CAPABILITIES = new HootTransportCapabilities()
+            .setStreamingResponseBodies(true)
+            .setCancellation(HootTransportCapabilities.Cancellation.CLOSE_CONNECTION);
+
+    private static final String DEFAULT_CONTENT_TYPE = HTTP.PLAIN_TEXT_TYPE
+            + HTTP.CHARSET_PARAM + HTTP.UTF_8;
+
     private DefaultHttpClient mClient;
-    private Map<HootRequest, HttpRequestBase> mRequestBaseMap = new HashMap<HootRequest, HttpRequestBase>();
+    private int mIdleConnectionTimeout;
+    private int mTimeout;
+    private Map<HootTransportRequest, HttpRequestBase> mRequestBaseMap = new HashMap<HootTransportRequest, HttpRequestBase>();
+
+    /**
+     * Connects plain sockets through the Hoot connector.
+     */
+    private static class PlainConnectorSocketFactory implements SocketFactory {
+
+        PlainConnectorSocketFactory(HootConnector connector) {
+            mConnector = connector;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new DeferredSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params)
+                throws IOException {
+            DeferredSocket deferred = (DeferredSocket) (sock != null ? sock
+                    : createSocket());
+            Socket socket = mConnector.connect(host, port, localAddress);
+            socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            deferred.setDelegate(socket);
+            return deferred;
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            return false;
+        }
+
+        private final HootConnector mConnector;
+    }
+
+    /**
+     * Makes https sockets with the Hoot socket factory, so they share the
+     * Hoot session cache. HttpClient's own SSLSocketFactory can't be given an
+     * SSLContext on Android.
+     */
+    private static class TlsSocketFactory implements LayeredSocketFactory {
+
+        TlsSocketFactory(javax.net.ssl.SSLSocketFactory factory,
+                X509HostnameVerifier hostnameVerifier,
+                HootConnector connector) {
+            mFactory = factory;
+            mHostnameVerifier = hostnameVerifier;
+            mConnector = connector;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new DeferredSocket();
+        }
+
+        /**
+         * HttpClient keeps talking to the socket it created, so the TLS
+         * socket layered over the winning connection goes into that one.
+         */
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params)
+                throws IOException {
+            DeferredSocket deferred = (DeferredSocket) (sock != null ? sock
+                    : createSocket());
+            SSLSocket sslSocket = (SSLSocket) mFactory.createSocket(
+                    mConnector.connect(host, port, localAddress), host, port,
+                    true);
+            sslSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            verify(host, sslSocket);
+            deferred.setDelegate(sslSocket);
+            return deferred;
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            if (sock instanceof DeferredSocket) {
+                sock = ((DeferredSocket) sock).getDelegate();
+            }
+            return sock instanceof SSLSocket;
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port,
+                boolean autoClose) throws IOException {
+            SSLSocket sslSocket = (SSLSocket) mFactory.createSocket(socket,
+                    host, port, autoClose);
+            verify(host, sslSocket);
+            return sslSocket;
+        }
+
+        private void verify(String host, SSLSocket sslSocket)
+                throws IOException {
+            try {
+                HootSSLSocketFactory.startHandshake(sslSocket);
+                mHostnameVerifier.verify(host, sslSocket);
+            } catch (IOException e) {
+                sslSocket.close();
+                throw e;
+            }
+        }
+
+        private final javax.net.ssl.SSLSocketFactory mFactory;
+        private final X509HostnameVerifier mHostnameVerifier;
+        private final HootConnector mConnector;
+    }
+
+    /**
+     * HttpClient 4.0 binds its connection to the socket from createSocket()
+     * and ignores the one connectSocket() returns, but a raced connection
+     * can't be made in place: each attempt needs its own socket. This stands
+     * in for the winner and forwards everything to it once it's connected.
+     */
+    private static class DeferredSocket extends Socket {
+
+        void setDelegate(Socket delegate) throws IOException {
+            synchronized (this) {
+                if (!mClosed) {
+                    mDelegate = delegate;
+                    return;
+                }
+            }
+            delegate.close();
+            throw new SocketException("Socket is closed");
+        }
+
+        Socket getDelegate() {
+            return mDelegate;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout)
+                throws IOException {
+            throw new SocketException("Connected by the socket factory");
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            throw new SocketException("Bound by the socket factory");
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return mDelegate != null ? mDelegate.getInetAddress() : null;
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return mDelegate != null ? mDelegate.getLocalAddress()
+                    : super.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return mDelegate != null ? mDelegate.getPort() : 0;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return mDelegate != null ? mDelegate.getLocalPort() : -1;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return mDelegate != null ? mDelegate.getRemoteSocketAddress() : null;
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return mDelegate != null ? mDelegate.getLocalSocketAddress() : null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return delegate().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return delegate().getOutputStream();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            delegate().setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return delegate().getTcpNoDelay();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            delegate().setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return delegate().getSoLinger();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            delegate().setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return delegate().getSoTimeout();
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            delegate().setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return delegate().getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            delegate().setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return delegate().getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            delegate().setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return delegate().getKeepAlive();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            delegate().shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            delegate().shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mDelegate != null && mDelegate.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return mDelegate != null && mDelegate.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mDelegate != null ? mDelegate.isClosed() : mClosed;
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return mDelegate != null && mDelegate.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return mDelegate != null && mDelegate.isOutputShutdown();
+        }
+
+        @Override
+        public void close() throws IOException {
+            Socket delegate;
+            synchronized (this) {
+                mClosed = true;
+                delegate = mDelegate;
+            }
+            super.close();
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mDelegate != null ? mDelegate.toString() : super.toString();
+        }
+
+        private Socket delegate() throws SocketException {
+            Socket delegate = mDelegate;
+            if (delegate == null) {
+                throw new SocketException("Socket is not connected");
+            }
+            return delegate;
+        }
+
+        private volatile Socket mDelegate;
+        private boolean mClosed;
+    }
+
+    /**
+     * Streams the body straight from the request as HttpClient sends it,
+     * chunked when the length isn't known.
+     */
+    private static class RequestBodyEntity extends AbstractHttpEntity {
+
+        RequestBodyEntity(HootTransportRequest request) {
+            mRequest = request;
+            setChunked(request.getContentLength() < 0);
+            // what StringEntity used to send
+            setContentType(request.getContentType() != null ? request
+                    .getContentType() : DEFAULT_CONTENT_TYPE);
+            setContentEncoding(request.getContentEncoding());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return mRequest.isBodyReplayable();
+        }
+
+        @Override
+        public long getContentLength() {
+            return mRequest.getContentLength();
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException(
+                    "The body can only be written");
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            mRequest.writeBody(outstream);
+            outstream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        private final HootTransportRequest mRequest;
+    }
+
+    /**
+     * HttpClient 4.0 has no PATCH request of its own.
+     */
+    private static class HttpPatch extends HttpEntityEnclosingRequestBase {
+
+        HttpPatch(String uri) {
+            setURI(URI.create(uri));
+        }
+
+        @Override
+        public String getMethod() {
+            return "PATCH";
+        }
+    }
+
+    /**
+     * The response body handed to Hoot. Closing the entity stream releases
+     * the connection back to the manager.
+     */
+    private class RequestStream extends FilterInputStream {
+
+        RequestStream(HootTransportRequest request, InputStream in) {
+            super(in);
+            mRequest = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in != null ? super.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            return in != null ? super.read(buffer, offset, count) : -1;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in != null ? super.available() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (mRequestBaseMap) {
+                mRequestBaseMap.remove(mRequest);
+            }
+            if (in != null) {
+                super.close();
+            }
+        }
+
+        private final HootTransportRequest mRequest;
+    }
+
+    /**
+     * Honors the server's Keep-Alive timeout but never keeps a connection
+     * longer than our own idle timeout.
+     */
+    private class IdleTimeoutKeepAliveStrategy extends
+            DefaultConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response,
+                HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            if (duration < 0 || duration > mIdleConnectionTimeout) {
+                duration = mIdleConnectionTimeout;
+            }
+            return duration;
+        }
+    }
 
 }
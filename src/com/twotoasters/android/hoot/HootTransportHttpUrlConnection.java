@@ -16,55 +16,59 @@
 
 package com.twotoasters.android.hoot;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
-import org.apache.http.entity.mime.MultipartEntity;
 
+import android.net.Uri;
 import android.util.Log;
 
-class HootTransportHttpUrlConnection implements HootTransport {
+class HootTransportHttpUrlConnection implements HootPooledTransport {
 	
     @Override
     public void setup(Hoot hoot) {
+        mHoot = hoot;
         mTimeout = hoot.getTimeout();
         mSSLHostNameVerifier = hoot.getSSLHostNameVerifier();
+        mSSLSocketFactory = hoot.getSSLSocketFactory();
+        mKeepAlive = hoot.isKeepAlive();
+        configureConnectionPool(hoot);
     }
 
     @Override
-    public HootResult synchronousExecute(HootRequest request) {
-        if (request.isCancelled()) {
-            return request.getResult();
-        }
+    public HootTransportCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
 
-        mStreamingMode = (request.getQueryParameters() == null && request
-                .getData() == null && request.getMultipartEntity() == null) 
-                ? StreamingMode.CHUNKED : StreamingMode.FIXED;
-        
-        if(request.getStreamingMode()==HootRequest.STREAMING_MODE_FIXED){
-        	mStreamingMode = StreamingMode.FIXED;
-        }
-        
+    @Override
+    public void execute(HootTransportRequest request,
+            HootTransportResponse response) throws IOException {
         HttpURLConnection connection = null;
+        boolean connected = false;
         try {
-            String url = request.buildUri().toString();
+            String url = request.getUri().toString();
             Log.v(TAG, "Executing [" + url + "]");
+            // HttpURLConnection always does its own lookup with the platform
+            // resolver, so the Hoot's resolver and DNS cache don't apply here
             connection = (HttpURLConnection) new URL(url).openConnection();
             if (connection instanceof HttpsURLConnection) {
             	HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
             	httpsConnection.setHostnameVerifier(mSSLHostNameVerifier);
+            	httpsConnection.setSSLSocketFactory(mSSLSocketFactory);
             }
             connection.setConnectTimeout(mTimeout);
             connection.setReadTimeout(mTimeout);
@@ -73,45 +77,79 @@ class HootTransportHttpUrlConnection implements HootTransport {
             }
 
             setRequestMethod(request, connection);
+            setStreamingMode(request, connection);
             setRequestHeaders(request, connection);
 
-            if (request.getMultipartEntity() != null) {
-            	setMultipartEntity(request, connection);
-            } else if (request.getData() != null) {
+            if (request.hasBody()) {
                 setRequestData(request, connection);
             }
             
-            HootResult hootResult = request.getResult();
-            hootResult.setResponseCode(connection.getResponseCode());
-            Log.d(TAG,
-                    " - received response code ["
-                            + connection.getResponseCode() + "]");
-            if (request.getResult().isSuccess()) {
-                hootResult.setHeaders(connection.getHeaderFields());
-                hootResult.setResponseStream(new BufferedInputStream(connection
-                        .getInputStream()));
-            } else {
-                hootResult.setResponseStream(new BufferedInputStream(connection
-                        .getErrorStream()));
-            }
-            request.deserializeResult();
-        } catch (Exception e) {
-            request.getResult().setException(e);
-            e.printStackTrace();
+            int responseCode = connection.getResponseCode();
+            response.setStatusCode(responseCode);
+            response.setHeaders(connection.getHeaderFields());
+            InputStream responseStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream() : connection.getInputStream();
+            response.setBody(new ConnectionStream(request, connection,
+                    responseStream));
+            connected = true;
         } finally {
-            if (connection != null) {
+            if (!connected && connection != null) {
                 synchronized (mConnectionMap) {
                     mConnectionMap.remove(request);
                 }
                 connection.disconnect();
-                connection = null;
             }
         }
-        return request.getResult();
+    }
+
+    /**
+     * The platform pool can only be filled by using it, so this sends HEAD
+     * requests to the URI, all in flight at once so each gets a connection
+     * of its own, and drains them so the connections are parked for the
+     * requests that follow. With keep-alive off a single request still
+     * leaves a TLS session behind to resume.
+     */
+    @Override
+    public void prewarm(final Uri uri, int connections) throws IOException {
+        final int count = mKeepAlive ? connections : 1;
+        final CountDownLatch responded = new CountDownLatch(count);
+        final IOException[] failure = new IOException[1];
+        Runnable head = new Runnable() {
+            @Override
+            public void run() {
+                HootRequest request = new HootRequest(mHoot).head();
+                request.setUri(uri);
+                HootTransportResponse response = new HootTransportResponse();
+                try {
+                    execute(new HootTransportRequest(request), response);
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+                responded.countDown();
+                try {
+                    // hold on to the connection until every request has one
+                    responded.await(mTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.close();
+            }
+        };
+        for (int i = 1; i < count; i++) {
+            Hoot.getBackgroundExecutor().execute(head);
+        }
+        head.run();
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
     }
 
     @Override
-    public void cancel(HootRequest request) {
+    public void cancel(HootTransportRequest request) {
         synchronized (mConnectionMap) {
             HttpURLConnection connection = mConnectionMap.get(request);
             if (connection != null) {
@@ -123,41 +161,131 @@ class HootTransportHttpUrlConnection implements HootTransport {
     // -------------------------------------------------------------------------
     // END OF PUBLIC INTERFACE
     // -------------------------------------------------------------------------
+    private Hoot mHoot;
+
     private int mTimeout = 15 * 1000;
-    
+
     private X509HostnameVerifier mSSLHostNameVerifier;
 
-    private enum StreamingMode {
-        CHUNKED, FIXED
-    };
+    private SSLSocketFactory mSSLSocketFactory;
+
+    private boolean mKeepAlive = true;
+
+    /**
+     * Upper bound on how much of an unread response body we'll drain in order
+     * to save a connection. Anything bigger is cheaper to reconnect.
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final HootTransportCapabilities CAPABILITIES = new HootTransportCapabilities()
+            .setStreamingRequestBodies(true)
+            .setStreamingResponseBodies(true)
+            .setCancellation(HootTransportCapabilities.Cancellation.CLOSE_CONNECTION);
+
+    /**
+     * The response body handed to Hoot. Closing it gives the connection back
+     * to the platform pool, or tears it down if it can't be reused.
+     */
+    private class ConnectionStream extends FilterInputStream {
+
+        ConnectionStream(HootTransportRequest request,
+                HttpURLConnection connection, InputStream in) {
+            super(in);
+            mRequest = request;
+            mConnection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in != null ? super.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            return in != null ? super.read(buffer, offset, count) : -1;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in != null ? super.available() : 0;
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            synchronized (mConnectionMap) {
+                mConnectionMap.remove(mRequest);
+            }
+            if (!mKeepAlive || mRequest.isCancelled()
+                    || !releaseConnection(in)) {
+                mConnection.disconnect();
+            }
+        }
+
+        private final HootTransportRequest mRequest;
+        private final HttpURLConnection mConnection;
+        private boolean mClosed;
+    }
     
-    private void setMultipartEntity(HootRequest request,
-    		HttpURLConnection connection) throws IOException {
-    	OutputStream os = null;
-    	MultipartEntity entity = request.getMultipartEntity();
-    	try {
-    		connection.setRequestProperty(entity.getContentType().getName(), entity.getContentType().getValue());
-    		
-    		os = new BufferedOutputStream(connection.getOutputStream(), (int)request.getMultipartEntity().getContentLength());
-    		entity.writeTo(os);
-    	} finally {
-    		if (os != null) {
-    			try {
-    				os.flush();
-    				os.close();
-    			} catch (Exception e) {
-    				e.printStackTrace();
-    			}
-    		}
-    	}
+    /**
+     * HttpURLConnection keeps its own connection pool, so all we can do is
+     * size it. The platform reads these properties when the pool is first
+     * created, so they are process-wide and only take effect if set before
+     * the first connection is opened. With keep-alive off we simply
+     * disconnect after every request and leave the platform pool alone.
+     */
+    private static void configureConnectionPool(Hoot hoot) {
+        if (!hoot.isKeepAlive()) {
+            return;
+        }
+        System.setProperty("http.maxConnections",
+                String.valueOf(hoot.getMaxConnectionsPerHost()));
+        System.setProperty("http.keepAliveDuration",
+                String.valueOf(hoot.getIdleConnectionTimeout()));
+    }
+
+    /**
+     * Drain and close the response body so the connection goes back to the
+     * pool instead of being torn down.
+     * 
+     * @return true if the body was fully consumed and the connection released.
+     */
+    private boolean releaseConnection(InputStream responseStream) {
+        if (responseStream == null) {
+            return true;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+            while ((read = responseStream.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            responseStream.close();
+            return true;
+        } catch (IOException e) {
+            Log.v(TAG, "Unable to drain response, disconnecting");
+            return false;
+        }
     }
 
-    private void setRequestData(HootRequest request,
+    private void setRequestData(HootTransportRequest request,
             HttpURLConnection connection) throws IOException {
         OutputStream os = null;
         try {
+            if (request.getContentType() != null) {
+                connection.setRequestProperty("Content-Type",
+                        request.getContentType());
+            }
             os = new BufferedOutputStream(connection.getOutputStream());
-            IOUtils.copy(request.getData(), os);
+            request.writeBody(os);
         } finally {
             if (os != null) {
                 try {
@@ -170,26 +298,39 @@ class HootTransportHttpUrlConnection implements HootTransport {
         }
     }
 
-    private void setRequestHeaders(HootRequest request,
+    /**
+     * Left alone, the platform buffers the whole body to count it. Stream it
+     * instead: fixed-length when we know the length, chunked when we don't.
+     * STREAMING_MODE_FIXED with an unknown length still buffers, as that's
+     * the only way to send a Content-Length.
+     */
+    private void setStreamingMode(HootTransportRequest request,
             HttpURLConnection connection) {
-        if (request.getHeaders() != null) {
-            Iterator<Object> iter = request.getHeaders().keySet().iterator();
-            while (iter.hasNext()) {
-                String name = (String) iter.next();
-                connection.addRequestProperty(name, request.getHeaders()
-                        .getProperty(name));
-            }
+        if (!connection.getDoOutput()) {
+            return;
+        }
+        long length = request.getContentLength();
+        int streamingMode = request.getStreamingMode();
+        if (streamingMode == HootRequest.STREAMING_MODE_CHUNKED) {
+            connection.setChunkedStreamingMode(0);
+        } else if (length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else if (streamingMode != HootRequest.STREAMING_MODE_FIXED) {
+            connection.setChunkedStreamingMode(0);
         }
+    }
 
-        if (request.getHoot().isBasicAuth()) {
-            connection.addRequestProperty("Authorization", request.getHoot()
-                    .calculateBasicAuthHeader());
+    private void setRequestHeaders(HootTransportRequest request,
+            HttpURLConnection connection) {
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.addRequestProperty(header.getKey(), header.getValue());
         }
     }
 
-    private void setRequestMethod(HootRequest request,
-            HttpURLConnection connection) throws ProtocolException {
-        switch (request.getOperation()) {
+    private void setRequestMethod(HootTransportRequest request,
+            HttpURLConnection connection)
+            throws ProtocolException {
+        switch (request.getRequest().getOperation()) {
             case DELETE:
                 connection.setRequestMethod("DELETE");
                 break;
@@ -201,6 +342,13 @@ class HootTransportHttpUrlConnection implements HootTransport {
                 connection.setRequestMethod("PUT");
                 connection.setDoOutput(true);
                 break;
+            case PATCH:
+                // HttpURLConnection refuses PATCH outright, so tunnel it
+                // through a POST
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.addRequestProperty("X-HTTP-Method-Override", "PATCH");
+                break;
             case HEAD:
                 connection.setRequestMethod("HEAD");
                 break;
@@ -209,22 +357,13 @@ class HootTransportHttpUrlConnection implements HootTransport {
                 break;
         }
 
-        if (mStreamingMode == StreamingMode.CHUNKED) {
-            connection.setChunkedStreamingMode(0);
-        }
-
-        if (request.getOperation() == HootRequest.Operation.PATCH) {
-            request.getHeaders().put("X-HTTP-Method-Override", "PATCH");
-        }
-
         // TODO handle other OP types
     }
 
-    private Map<HootRequest, HttpURLConnection> mConnectionMap =
-            new HashMap<HootRequest, HttpURLConnection>();
+    private Map<HootTransportRequest, HttpURLConnection> mConnectionMap =
+            new HashMap<HootTransportRequest, HttpURLConnection>();
 
     private static final String TAG = HootTransportHttpUrlConnection.class
             .getSimpleName();
-    private StreamingMode mStreamingMode = StreamingMode.CHUNKED;
 
 }
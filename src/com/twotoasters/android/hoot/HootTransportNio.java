@@ -0,0 +1,812 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * A non-blocking HTTP/1.1 transport. A single selector thread writes requests
+ * and parses responses for every request in flight, so hundreds of slow
+ * requests cost one thread rather than hundreds, and it's only borrowed from
+ * a shared pool while there are requests or idle connections. The work around it that may
+ * block, preparing requests and deserializing responses, runs on a shared
+ * pool so one slow request can't hold up the rest.
+ * <p>
+ * Only plain http is handled here; https requests are handed to the regular
+ * blocking transport.
+ */
+class HootTransportNio implements HootAsyncTransport, HootPooledTransport {
+
+    @Override
+    public void setup(Hoot hoot) {
+        mTimeout = hoot.getTimeout();
+        mConnector = new HootConnector(hoot.getResolver(), mTimeout);
+        mKeepAlive = hoot.isKeepAlive();
+        mMaxConnections = hoot.getMaxConnections();
+        mMaxConnectionsPerHost = hoot.getMaxConnectionsPerHost();
+        mIdleConnectionTimeout = hoot.getIdleConnectionTimeout();
+
+        mFallbackTransport = Hoot.createPlatformTransport();
+        mFallbackTransport.setup(hoot);
+    }
+
+    @Override
+    public HootTransportCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    public boolean isAsync(HootTransportRequest request) {
+        return "http".equalsIgnoreCase(request.getUri().getScheme());
+    }
+
+    @Override
+    public void executeAsync(HootTransportRequest request,
+            HootTransportResponse response, Callback callback) {
+        final Exchange exchange = new Exchange(request, response, callback);
+        synchronized (mExchanges) {
+            mExchanges.put(request, exchange);
+        }
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                prepare(exchange);
+            }
+        });
+    }
+
+    @Override
+    public void execute(HootTransportRequest request,
+            HootTransportResponse response) throws IOException {
+        if (!isAsync(request)) {
+            mFallbackTransport.execute(request, response);
+            return;
+        }
+
+        HootBlockingCallback callback = new HootBlockingCallback();
+        executeAsync(request, response, callback);
+        callback.await(this, request);
+    }
+
+    /**
+     * Connects on the calling thread, then hands the channels to the
+     * selector to park in the idle pool.
+     */
+    @Override
+    public void prewarm(Uri uri, int connections) throws IOException {
+        if (!"http".equalsIgnoreCase(uri.getScheme())) {
+            if (mFallbackTransport instanceof HootPooledTransport) {
+                ((HootPooledTransport) mFallbackTransport).prewarm(uri,
+                        connections);
+            }
+            return;
+        }
+        if (!mKeepAlive) {
+            return;
+        }
+
+        int port = uri.getPort() == -1 ? 80 : uri.getPort();
+        String poolKey = uri.getHost() + ":" + port;
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = mConnector.connectChannel(uri.getHost(),
+                    port);
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                close(channel);
+                throw e;
+            }
+            mPrewarmed.add(new IdleConnection(poolKey, channel,
+                    System.currentTimeMillis()));
+        }
+        ensureSelectorThread();
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void cancel(HootTransportRequest request) {
+        mFallbackTransport.cancel(request);
+        Exchange exchange;
+        synchronized (mExchanges) {
+            exchange = mExchanges.get(request);
+        }
+        Selector selector = mSelector;
+        if (exchange != null && selector != null) {
+            mCancellations.add(exchange);
+            selector.wakeup();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final String TAG = HootTransportNio.class.getSimpleName();
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final HootTransportCapabilities CAPABILITIES = new HootTransportCapabilities()
+            .setNonBlocking(true)
+            .setCancellation(HootTransportCapabilities.Cancellation.CLOSE_CONNECTION);
+
+    private static ExecutorService sWorkers;
+    private static ExecutorService sSelectors;
+
+    private int mTimeout;
+    private HootConnector mConnector;
+    private boolean mKeepAlive;
+    private int mMaxConnections;
+    private int mMaxConnectionsPerHost;
+    private int mIdleConnectionTimeout;
+    private HootTransport mFallbackTransport;
+
+    // opened once, under this
+    private volatile Selector mSelector;
+    // guarded by this
+    private boolean mSelectorRunning;
+    private final Queue<Exchange> mPending = new ConcurrentLinkedQueue<Exchange>();
+    private final Queue<Exchange> mCancellations = new ConcurrentLinkedQueue<Exchange>();
+    private final Queue<IdleConnection> mPrewarmed = new ConcurrentLinkedQueue<IdleConnection>();
+    private final Map<HootTransportRequest, Exchange> mExchanges = new HashMap<HootTransportRequest, Exchange>();
+
+    // owned by the selector thread
+    private final Map<String, LinkedList<IdleConnection>> mIdleConnections = new HashMap<String, LinkedList<IdleConnection>>();
+    private int mIdleConnectionCount;
+    private final LinkedList<Exchange> mActive = new LinkedList<Exchange>();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private static class Exchange {
+        final HootTransportRequest request;
+        final HootTransportResponse response;
+        final Callback callback;
+        InetAddress[] addresses;
+        int port;
+        String poolKey;
+        ByteBuffer[] output;
+        // a file body, sent after the output with transferTo
+        FileChannel file;
+        long fileStart;
+        long filePosition;
+        SocketChannel channel;
+        // connect attempts in flight, until one of them wins
+        List<SocketChannel> attempts;
+        int nextAddress;
+        long nextAttempt;
+        IOException attemptFailure;
+        HootHttpResponseParser parser;
+        boolean reused;
+        long deadline;
+        Exception exception;
+
+        Exchange(HootTransportRequest request,
+                HootTransportResponse response, Callback callback) {
+            this.request = request;
+            this.response = response;
+            this.callback = callback;
+        }
+    }
+
+    private static class IdleConnection {
+        final String poolKey;
+        final SocketChannel channel;
+        final long idleSince;
+
+        IdleConnection(String poolKey, SocketChannel channel, long idleSince) {
+            this.poolKey = poolKey;
+            this.channel = channel;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * Runs on a worker thread: everything that may block (reading the
+     * request body, resolving the host) happens here, not on the selector.
+     */
+    private void prepare(Exchange exchange) {
+        try {
+            Uri uri = exchange.request.getUri();
+            int port = uri.getPort() == -1 ? 80 : uri.getPort();
+            exchange.addresses = mConnector.resolve(uri.getHost());
+            exchange.port = port;
+            exchange.poolKey = uri.getHost() + ":" + port;
+            exchange.file = exchange.request.openBodyChannel();
+            if (exchange.file != null) {
+                exchange.fileStart = exchange.file.position();
+            }
+            exchange.output = buildRequest(exchange.request, uri, port,
+                    exchange.file != null);
+            Log.v(TAG, "Executing [" + uri + "]");
+        } catch (Exception e) {
+            exchange.exception = e;
+            complete(exchange);
+            return;
+        }
+        mPending.add(exchange);
+        ensureSelectorThread();
+        mSelector.wakeup();
+    }
+
+    private ByteBuffer[] buildRequest(HootTransportRequest request, Uri uri,
+            int port, boolean fileBody) throws IOException {
+        byte[] body = null;
+        if (request.hasBody() && !fileBody) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            request.writeBody(os, false);
+            body = os.toByteArray();
+        }
+
+        String path = uri.getEncodedPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        if (uri.getEncodedQuery() != null) {
+            path += "?" + uri.getEncodedQuery();
+        }
+
+        Map<String, String> headers = request.getHeaders();
+        StringBuilder head = new StringBuilder();
+        head.append(request.getMethod()).append(' ').append(path)
+                .append(" HTTP/1.1\r\n");
+        if (!hasHeader(headers, "Host")) {
+            head.append("Host: ").append(uri.getHost());
+            if (port != 80) {
+                head.append(':').append(port);
+            }
+            head.append("\r\n");
+        }
+        if (!mKeepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+        }
+        if (request.getContentType() != null) {
+            head.append("Content-Type: ").append(request.getContentType())
+                    .append("\r\n");
+        }
+        if (fileBody) {
+            head.append("Content-Length: ").append(request.getContentLength())
+                    .append("\r\n");
+        } else if (body != null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        } else if (expectsBody(request.getMethod())) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes("ISO-8859-1"));
+        if (body == null) {
+            return new ByteBuffer[] { headBuffer };
+        }
+        return new ByteBuffer[] { headBuffer, ByteBuffer.wrap(body) };
+    }
+
+    private static boolean hasHeader(Map<String, String> headers, String name) {
+        for (String header : headers.keySet()) {
+            if (name.equalsIgnoreCase(header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true for methods whose requests carry a body, so an empty one
+     *         still needs a Content-Length for the server to know it's empty.
+     */
+    private static boolean expectsBody(String method) {
+        return "POST".equals(method) || "PUT".equals(method)
+                || "PATCH".equals(method);
+    }
+
+    /**
+     * The selector loop runs on a shared thread only while there's something
+     * for it to do. Call this after queueing the work, so a loop that's on
+     * its way out either sees it or is started again.
+     */
+    private synchronized void ensureSelectorThread() {
+        if (mSelectorRunning) {
+            return;
+        }
+        if (mSelector == null) {
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector", e);
+            }
+        }
+        mSelectorRunning = true;
+        getSelectors().execute(new Runnable() {
+            @Override
+            public void run() {
+                runSelectorLoop();
+            }
+        });
+    }
+
+    /**
+     * @return true once there are no requests or idle connections left, and
+     *         the loop has been marked as stopped.
+     */
+    private synchronized boolean stopSelectorIfIdle() {
+        if (!mActive.isEmpty() || mIdleConnectionCount > 0
+                || !mPending.isEmpty() || !mPrewarmed.isEmpty()) {
+            return false;
+        }
+        mSelectorRunning = false;
+        return true;
+    }
+
+    private void runSelectorLoop() {
+        while (!stopSelectorIfIdle()) {
+            try {
+                mSelector.select(nextTimeout());
+                long now = System.currentTimeMillis();
+
+                IdleConnection prewarmed;
+                while ((prewarmed = mPrewarmed.poll()) != null) {
+                    park(prewarmed, now);
+                }
+
+                Exchange exchange;
+                while ((exchange = mPending.poll()) != null) {
+                    start(exchange, now);
+                }
+                while ((exchange = mCancellations.poll()) != null) {
+                    if (mActive.contains(exchange)) {
+                        fail(exchange, new IOException("Request cancelled"));
+                    }
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof IdleConnection) {
+                        // an idle connection should never be readable; the
+                        // server either closed it or sent garbage
+                        closeIdle((IdleConnection) key.attachment());
+                    } else {
+                        handle(key, (Exchange) key.attachment(), now);
+                    }
+                }
+
+                expire(now);
+            } catch (Exception e) {
+                Log.e(TAG, "Selector loop error", e);
+            }
+        }
+    }
+
+    private long nextTimeout() {
+        long next = Long.MAX_VALUE;
+        for (Exchange exchange : mActive) {
+            next = Math.min(next, exchange.deadline);
+        }
+        for (Exchange exchange : mActive) {
+            if (canAttempt(exchange)) {
+                next = Math.min(next, exchange.nextAttempt);
+            }
+        }
+        if (mIdleConnectionCount > 0) {
+            next = Math.min(next, System.currentTimeMillis() + mIdleConnectionTimeout);
+        }
+        if (next == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, next - System.currentTimeMillis());
+    }
+
+    private void start(Exchange exchange, long now) {
+        if (exchange.request.isCancelled()) {
+            exchange.exception = new IOException("Request cancelled");
+            complete(exchange);
+            return;
+        }
+        exchange.parser = new HootHttpResponseParser(
+                "HEAD".equals(exchange.request.getMethod()));
+        exchange.deadline = now + mTimeout;
+        mActive.add(exchange);
+        IdleConnection idle = mKeepAlive ? takeIdle(exchange.poolKey) : null;
+        if (idle != null) {
+            exchange.reused = true;
+            exchange.channel = idle.channel;
+            SelectionKey key = idle.channel.keyFor(mSelector);
+            key.attach(exchange);
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            exchange.reused = false;
+            exchange.channel = null;
+            exchange.attempts = new LinkedList<SocketChannel>();
+            exchange.nextAddress = 0;
+            exchange.attemptFailure = null;
+            attempt(exchange, now);
+        }
+    }
+
+    /**
+     * Starts a connect to the exchange's next address, racing any attempts
+     * already in flight. See {@link HootConnector}.
+     */
+    private void attempt(Exchange exchange, long now) {
+        InetAddress address = exchange.addresses[exchange.nextAddress++];
+        exchange.nextAttempt = now + HootConnector.CONNECTION_ATTEMPT_DELAY;
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            exchange.attempts.add(channel);
+            if (channel.connect(new InetSocketAddress(address, exchange.port))) {
+                connected(exchange, channel);
+            } else {
+                channel.register(mSelector, SelectionKey.OP_CONNECT, exchange);
+            }
+        } catch (IOException e) {
+            attemptFailed(exchange, channel, e, now);
+        }
+    }
+
+    private boolean canAttempt(Exchange exchange) {
+        return exchange.attempts != null
+                && exchange.nextAddress < exchange.addresses.length;
+    }
+
+    private void connected(Exchange exchange, SocketChannel channel)
+            throws IOException {
+        exchange.attempts.remove(channel);
+        closeAttempts(exchange);
+        exchange.channel = channel;
+        HootConnector.remember(exchange.request.getUri().getHost(),
+                channel.socket().getInetAddress());
+        SelectionKey key = channel.keyFor(mSelector);
+        if (key == null) {
+            channel.register(mSelector, SelectionKey.OP_WRITE, exchange);
+        } else {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * A failed attempt makes way for the next address straight away; the
+     * exchange only fails once every address has.
+     */
+    private void attemptFailed(Exchange exchange, SocketChannel channel,
+            IOException e, long now) {
+        if (exchange.attempts == null) {
+            // the channel won but couldn't be registered
+            fail(exchange, e);
+            return;
+        }
+        if (channel != null) {
+            exchange.attempts.remove(channel);
+            close(channel);
+        }
+        if (exchange.attemptFailure == null) {
+            exchange.attemptFailure = e;
+        }
+        if (canAttempt(exchange)) {
+            attempt(exchange, now);
+        } else if (exchange.attempts.isEmpty()) {
+            exchange.attempts = null;
+            fail(exchange, exchange.attemptFailure);
+        }
+    }
+
+    private void closeAttempts(Exchange exchange) {
+        if (exchange.attempts != null) {
+            for (SocketChannel channel : exchange.attempts) {
+                close(channel);
+            }
+            exchange.attempts = null;
+        }
+    }
+
+    private void handle(SelectionKey key, Exchange exchange, long now) {
+        try {
+            if (key.isConnectable()) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                try {
+                    if (channel.finishConnect()) {
+                        connected(exchange, channel);
+                    }
+                } catch (IOException e) {
+                    attemptFailed(exchange, channel, e, now);
+                }
+            } else if (key.isWritable()) {
+                if (write(exchange)) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                exchange.deadline = now + mTimeout;
+            } else if (key.isReadable()) {
+                mReadBuffer.clear();
+                int read = exchange.channel.read(mReadBuffer);
+                boolean done;
+                if (read == -1) {
+                    done = exchange.parser.finish();
+                } else {
+                    mReadBuffer.flip();
+                    done = exchange.parser.feed(mReadBuffer);
+                    exchange.deadline = now + mTimeout;
+                    exchange.request.onDownloadProgress(
+                            exchange.parser.getBodyBytesReceived(),
+                            exchange.parser.getContentLength());
+                }
+                if (done) {
+                    finish(exchange, now);
+                }
+            }
+        } catch (IOException e) {
+            fail(exchange, e);
+        }
+    }
+
+    /**
+     * Writes as much of the request as the socket takes without blocking. A
+     * file body goes from the file to the socket with transferTo, which the
+     * platform does with sendfile rather than through our buffers.
+     * 
+     * @return true once the whole request has been written.
+     */
+    private boolean write(Exchange exchange) throws IOException {
+        exchange.channel.write(exchange.output);
+        if (exchange.output.length > 1) {
+            ByteBuffer body = exchange.output[1];
+            exchange.request.onUploadProgress(body.position(), body.limit());
+        }
+        if (exchange.output[exchange.output.length - 1].hasRemaining()) {
+            return false;
+        }
+        if (exchange.file == null) {
+            return true;
+        }
+        long length = exchange.request.getContentLength();
+        while (exchange.filePosition < length) {
+            long sent = exchange.file.transferTo(exchange.fileStart
+                    + exchange.filePosition, length - exchange.filePosition,
+                    exchange.channel);
+            if (sent == 0) {
+                if (exchange.fileStart + exchange.filePosition >= exchange.file.size()) {
+                    throw new IOException("File is shorter than its Content-Length");
+                }
+                return false;
+            }
+            exchange.filePosition += sent;
+            exchange.request.onUploadProgress(exchange.filePosition, length);
+        }
+        return true;
+    }
+
+    private void finish(Exchange exchange, long now) {
+        mActive.remove(exchange);
+        if (mKeepAlive && exchange.parser.isKeepAlive()) {
+            release(exchange.poolKey, exchange.channel, now);
+        } else {
+            close(exchange.channel);
+        }
+        complete(exchange);
+    }
+
+    private void fail(Exchange exchange, IOException e) {
+        mActive.remove(exchange);
+        closeAttempts(exchange);
+        close(exchange.channel);
+        if (exchange.reused && exchange.parser.getBytesReceived() == 0
+                && !exchange.request.isCancelled()) {
+            // a pooled connection went stale between our check and our
+            // write; the server never saw the request so try a fresh one
+            Log.v(TAG, "Pooled connection failed, reconnecting");
+            exchange.output[0].rewind();
+            if (exchange.output.length > 1) {
+                exchange.output[1].rewind();
+            }
+            exchange.filePosition = 0;
+            startFresh(exchange);
+            return;
+        }
+        exchange.exception = e;
+        complete(exchange);
+    }
+
+    private void startFresh(Exchange exchange) {
+        List<IdleConnection> idle = mIdleConnections.remove(exchange.poolKey);
+        if (idle != null) {
+            for (IdleConnection connection : idle) {
+                close(connection.channel);
+                mIdleConnectionCount--;
+            }
+        }
+        start(exchange, System.currentTimeMillis());
+    }
+
+    private void expire(long now) {
+        for (Exchange exchange : new LinkedList<Exchange>(mActive)) {
+            if (exchange.deadline <= now) {
+                exchange.reused = false;
+                fail(exchange, new SocketTimeoutException("Request timed out"));
+            } else if (canAttempt(exchange) && exchange.nextAttempt <= now) {
+                attempt(exchange, now);
+            }
+        }
+
+        Iterator<LinkedList<IdleConnection>> pools = mIdleConnections.values().iterator();
+        while (pools.hasNext()) {
+            LinkedList<IdleConnection> pool = pools.next();
+            Iterator<IdleConnection> iter = pool.iterator();
+            while (iter.hasNext()) {
+                IdleConnection idle = iter.next();
+                if (now - idle.idleSince >= mIdleConnectionTimeout) {
+                    iter.remove();
+                    close(idle.channel);
+                    mIdleConnectionCount--;
+                }
+            }
+            if (pool.isEmpty()) {
+                pools.remove();
+            }
+        }
+    }
+
+    private IdleConnection takeIdle(String poolKey) {
+        LinkedList<IdleConnection> pool = mIdleConnections.get(poolKey);
+        while (pool != null && !pool.isEmpty()) {
+            IdleConnection idle = pool.removeLast();
+            mIdleConnectionCount--;
+            if (idle.channel.isOpen() && idle.channel.keyFor(mSelector) != null
+                    && idle.channel.keyFor(mSelector).isValid()) {
+                return idle;
+            }
+            close(idle.channel);
+        }
+        return null;
+    }
+
+    private void release(String poolKey, SocketChannel channel, long now) {
+        LinkedList<IdleConnection> pool = mIdleConnections.get(poolKey);
+        if (pool == null) {
+            pool = new LinkedList<IdleConnection>();
+            mIdleConnections.put(poolKey, pool);
+        }
+        if (pool.size() >= mMaxConnectionsPerHost
+                || mIdleConnectionCount >= mMaxConnections) {
+            close(channel);
+            return;
+        }
+        IdleConnection idle = new IdleConnection(poolKey, channel, now);
+        SelectionKey key = channel.keyFor(mSelector);
+        key.attach(idle);
+        key.interestOps(SelectionKey.OP_READ);
+        pool.addLast(idle);
+        mIdleConnectionCount++;
+    }
+
+    private void park(IdleConnection prewarmed, long now) {
+        try {
+            prewarmed.channel.register(mSelector, 0);
+            release(prewarmed.poolKey, prewarmed.channel, now);
+        } catch (IOException e) {
+            close(prewarmed.channel);
+        }
+    }
+
+    private void closeIdle(IdleConnection idle) {
+        LinkedList<IdleConnection> pool = mIdleConnections.get(idle.poolKey);
+        if (pool != null && pool.remove(idle)) {
+            mIdleConnectionCount--;
+        }
+        close(idle.channel);
+    }
+
+    private void close(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more we can do
+        }
+    }
+
+    /**
+     * Hand the finished exchange back on a worker thread, where Hoot will
+     * deserialize it, keeping that work off the selector thread.
+     */
+    private void complete(final Exchange exchange) {
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mExchanges) {
+                    mExchanges.remove(exchange.request);
+                }
+                if (exchange.file != null) {
+                    try {
+                        exchange.file.close();
+                    } catch (IOException e) {
+                        // nothing more we can do
+                    }
+                }
+                if (exchange.exception != null) {
+                    exchange.callback.onFailure(exchange.request,
+                            exchange.exception);
+                    return;
+                }
+                HootHttpResponseParser parser = exchange.parser;
+                exchange.response.setStatusCode(parser.getStatusCode());
+                exchange.response.setHeaders(parser.getHeaders());
+                exchange.response.setBody(new ByteArrayInputStream(parser
+                        .getBody()));
+                exchange.callback.onResponse(exchange.request,
+                        exchange.response);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            sWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-NIO-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWorkers;
+    }
+
+    private static synchronized ExecutorService getSelectors() {
+        if (sSelectors == null) {
+            sSelectors = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Hoot-NIO-selector");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sSelectors;
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import android.net.Uri;
+
+/**
+ * A read-only view of a {@link HootRequest} for transports: the method, URI,
+ * headers (including authorization) and body, resolved once per attempt.
+ */
+public class HootTransportRequest {
+
+    /**
+     * @return the request this was built from, for transports that want its
+     *         tag or identity.
+     */
+    public HootRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * @return the HTTP method, e.g. "GET".
+     */
+    public String getMethod() {
+        return mRequest.getOperation().name();
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return the request headers, in the order they were added.
+     */
+    public Map<String, String> getHeaders() {
+        prepareBody();
+        return prepareHeaders();
+    }
+
+    public boolean hasBody() {
+        return mBody != null;
+    }
+
+    /**
+     * @return the body's content type, or null if the caller set it as a
+     *         header (or there's no body).
+     */
+    public String getContentType() {
+        return mBody != null ? mBody.getContentType() : null;
+    }
+
+    /**
+     * @return the "Content-Encoding" the body is written in, which is also
+     *         among the headers, or null if it's sent as is.
+     */
+    public String getContentEncoding() {
+        prepareBody();
+        return mCompressBody ? "gzip" : null;
+    }
+
+    /**
+     * @return the body length in bytes as written, or -1 if unknown. Send a
+     *         known length as a fixed-length body, an unknown one chunked.
+     */
+    public long getContentLength() {
+        prepareBody();
+        if (mCompressBody) {
+            return -1;
+        }
+        if (mBodyHead != null) {
+            return mBodyHead.length;
+        }
+        return mBody != null ? mBody.getContentLength() : 0;
+    }
+
+    /**
+     * @return true if {@link #writeBody(OutputStream)} can be called again,
+     *         e.g. by a transport that retries on its own.
+     */
+    public boolean isBodyReplayable() {
+        return mBody == null || mBody.isReplayable();
+    }
+
+    /**
+     * Write the request body to the stream, compressing it if
+     * {@link #getContentEncoding()} says so. The stream is not closed.
+     */
+    public void writeBody(OutputStream os) throws IOException {
+        writeBody(os, true);
+    }
+
+    /**
+     * @return one of the HootRequest.STREAMING_MODE_ constants, or 0 to let
+     *         the transport decide.
+     */
+    public int getStreamingMode() {
+        return mRequest.getStreamingMode();
+    }
+
+    public boolean isCancelled() {
+        return mRequest.isCancelled();
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private static final int COMPRESSION_BUFFER_SIZE = 8 * 1024;
+
+    private final HootRequest mRequest;
+    private final HootBody mBody;
+    private final Uri mUri;
+    private Map<String, String> mHeaders;
+
+    // decided on the transport's thread, the first time they're needed
+    private boolean mBodyPrepared;
+    private boolean mCompressBody;
+    private byte[] mBodyHead;
+    private IOException mBodyException;
+
+    HootTransportRequest(HootRequest request) {
+        mRequest = request;
+        mBody = request.getBody();
+        mUri = request.buildUri();
+    }
+
+    /**
+     * @param trackProgress false if the body isn't being written to the wire,
+     *            e.g. into a buffer, and the transport reports its progress
+     *            itself with {@link #onUploadProgress(long, long)}.
+     */
+    void writeBody(OutputStream os, boolean trackProgress) throws IOException {
+        prepareBody();
+        if (mBodyException != null) {
+            throw mBodyException;
+        }
+        GZIPOutputStream gzip = null;
+        if (mCompressBody) {
+            gzip = new GZIPOutputStream(os, COMPRESSION_BUFFER_SIZE);
+            os = gzip;
+        }
+        if (mBody != null && trackProgress) {
+            long total = mBody.getContentLength();
+            if (total < 0 && mBodyHead != null && !mCompressBody) {
+                total = mBodyHead.length;
+            }
+            os = mRequest.getUploadProgress().track(os, total);
+        }
+        if (mBody != null) {
+            if (!mBody.isReplayable()) {
+                mRequest.onBodyConsumed();
+            }
+            if (mBodyHead != null) {
+                os.write(mBodyHead);
+            }
+            mBody.writeTo(os);
+        }
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    void onUploadProgress(long bytes, long total) {
+        mRequest.getUploadProgress().update(bytes, total);
+    }
+
+    void onDownloadProgress(long bytes, long total) {
+        mRequest.getDownloadProgress().update(bytes, total);
+    }
+
+    /**
+     * @return a channel to send the body from in place of
+     *         {@link #writeBody(OutputStream)}, or null if it has to be
+     *         written. Only a file body sent as is has one; the caller sends
+     *         {@link #getContentLength()} bytes from its position and closes
+     *         it.
+     */
+    FileChannel openBodyChannel() throws IOException {
+        prepareBody();
+        if (mBody == null || mCompressBody || mBodyHead != null) {
+            return null;
+        }
+        return mBody.openChannel();
+    }
+
+    /**
+     * Collect the headers. A download resuming from a partial file reads it
+     * to build its Range, so this waits until a transport asks for them
+     * rather than running wherever the request happens to be built.
+     */
+    private synchronized Map<String, String> prepareHeaders() {
+        if (mHeaders != null) {
+            return mHeaders;
+        }
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        if (mRequest.getHeaders() != null) {
+            for (Object name : mRequest.getHeaders().keySet()) {
+                headers.put((String) name,
+                        mRequest.getHeaders().getProperty((String) name));
+            }
+        }
+        Hoot hoot = mRequest.getHoot();
+        if (hoot.isBasicAuth()) {
+            headers.put("Authorization", hoot.calculateBasicAuthHeader());
+        }
+        if (HootContentEncoding.isNegotiated(mRequest)) {
+            headers.put("Accept-Encoding", HootContentEncoding.ACCEPT_ENCODING);
+        }
+        if (mRequest.getDownload() != null) {
+            mRequest.getDownload().addHeaders(headers);
+        }
+        if (mRequest.getCacheEntry() != null) {
+            mRequest.getCacheEntry().addConditions(headers);
+        }
+        mHeaders = Collections.unmodifiableMap(headers);
+        return mHeaders;
+    }
+
+    /**
+     * Decide whether to compress the body. A stream body of unknown length
+     * has up to the threshold read ahead; if the stream ends first it's sent
+     * as is, with its now known length.
+     */
+    private synchronized void prepareBody() {
+        if (mBodyPrepared) {
+            return;
+        }
+        mBodyPrepared = true;
+        if (!mRequest.isCompressRequestBody() || !hasBody()) {
+            return;
+        }
+
+        int threshold = mRequest.getRequestCompressionThreshold();
+        long length = mBody.getContentLength();
+        if (length >= 0 || !(mBody instanceof HootBody.StreamBody)) {
+            mCompressBody = length < 0 || length >= threshold;
+        } else {
+            mRequest.onBodyConsumed();
+            byte[] head = new byte[threshold];
+            try {
+                int read = IOUtils.read(
+                        ((HootBody.StreamBody) mBody).getStream(), head);
+                mBodyHead = read < threshold ? Arrays.copyOf(head, read) : head;
+                mCompressBody = read >= threshold;
+            } catch (IOException e) {
+                // surfaces when the transport writes the body
+                mBodyException = e;
+                return;
+            }
+        }
+
+        if (mCompressBody) {
+            Map<String, String> headers = new LinkedHashMap<String, String>(
+                    prepareHeaders());
+            headers.put("Content-Encoding", "gzip");
+            mHeaders = Collections.unmodifiableMap(headers);
+        }
+    }
+
+}
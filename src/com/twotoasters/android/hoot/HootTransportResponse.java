@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a {@link HootTransport} got back from the server. Transports fill this
+ * in; Hoot turns it into the request's {@link HootResult}.
+ */
+public class HootTransportResponse {
+
+    public HootTransportResponse setStatusCode(int statusCode) {
+        mStatusCode = statusCode;
+        return this;
+    }
+
+    public HootTransportResponse setHeaders(Map<String, List<String>> headers) {
+        mHeaders = headers;
+        return this;
+    }
+
+    /**
+     * @param body the response body. Closing it must release whatever the
+     *            transport is holding for this request.
+     */
+    public HootTransportResponse setBody(InputStream body) {
+        mBody = body;
+        return this;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        return mHeaders;
+    }
+
+    public InputStream getBody() {
+        return mBody;
+    }
+
+    // -------------------------------------------------------------------------
+    // END OF PUBLIC INTERFACE
+    // -------------------------------------------------------------------------
+    private int mStatusCode;
+    private Map<String, List<String>> mHeaders;
+    private InputStream mBody;
+    private boolean mFromCache;
+
+    HootTransportResponse setFromCache(boolean fromCache) {
+        mFromCache = fromCache;
+        return this;
+    }
+
+    boolean isFromCache() {
+        return mFromCache;
+    }
+
+    void close() {
+        if (mBody != null) {
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+}
@@ -1,6 +1,9 @@
 # hoottests.rb
 require 'sinatra'
 require 'json'
+require 'zlib'
+require 'stringio'
+require 'digest/md5'
 
 helpers do
   def request_headers
@@ -28,6 +31,31 @@ get '/headers' do
   {"headers" => request_headers["HOOT_TEST_HEADER"]}.to_json
 end
 
+# WEBrick serves every request on a kept-alive connection from the same
+# thread, so the thread id identifies the underlying connection.
+get '/connection' do
+  {"connection" => Thread.current.object_id.to_s}.to_json
+end
+
+# A compressible body, gzipped or deflated if the client accepts it.
+get '/compressed' do
+  body = {"items" => (1..500).map {|i| {"id" => i, "name" => "item #{i}"}}}.to_json
+  accept = request.env['HTTP_ACCEPT_ENCODING'].to_s
+  if accept =~ /gzip/
+    io = StringIO.new
+    gz = Zlib::GzipWriter.new(io)
+    gz.write(body)
+    gz.close
+    headers 'Content-Encoding' => 'gzip'
+    io.string
+  elsif accept =~ /deflate/
+    headers 'Content-Encoding' => 'deflate'
+    Zlib::Deflate.deflate(body)
+  else
+    body
+  end
+end
+
 get '/wait' do
   sleep 10
   '{"test":"This is a test"}'
@@ -62,6 +90,102 @@ post '/headers' do
   {"headers" => request_headers["HOOT_TEST_HEADER"], "postdata" => request.body.string}.to_json
 end
 
+# Reports the body's length as sent and once gunzipped.
+post '/compressed' do
+  data = request.body.read
+  wire = data.bytesize
+  if request.env['HTTP_CONTENT_ENCODING'] == 'gzip'
+    data = Zlib::GzipReader.new(StringIO.new(data)).read
+  end
+  {"length" => data.bytesize, "wire" => wire}.to_json
+end
+
+# Reports the text field and the uploaded file's name and size.
+post '/multipart' do
+  file = params['file']
+  {"field" => params['field'], "filename" => file[:filename],
+   "type" => file[:type], "length" => file[:tempfile].size,
+   "content_length" => request.content_length.to_i}.to_json
+end
+
+# Serves DOWNLOAD with an ETag and byte range support for the resumable
+# download test. ?cut=n stops after n bytes as if the connection dropped,
+# ?etag= changes the ETag as if the file had changed, ?norange ignores Range,
+# ?empty serves an empty file instead.
+DOWNLOAD = Random.new(0).bytes(4 * 1024 * 1024)
+
+get '/download/md5' do
+  {"md5" => Digest::MD5.hexdigest(DOWNLOAD)}.to_json
+end
+
+get '/download' do
+  resource = params['empty'] ? '' : DOWNLOAD
+  etag = "\"#{params['etag'] || 'v1'}\""
+  first = 0
+  last = resource.bytesize - 1
+  if params['norange'].nil? && request.env['HTTP_RANGE'] =~ /\Abytes=(\d+)-(\d*)\z/ &&
+      (request.env['HTTP_IF_RANGE'].nil? || request.env['HTTP_IF_RANGE'] == etag)
+    first = $1.to_i
+    last = [$2.to_i, last].min unless $2.empty?
+    if first >= resource.bytesize
+      headers 'Content-Range' => "bytes */#{resource.bytesize}"
+      halt 416
+    end
+    status 206
+    headers 'Content-Range' => "bytes #{first}-#{last}/#{resource.bytesize}"
+  end
+  headers 'ETag' => etag, 'Content-Type' => 'application/octet-stream'
+  headers 'Accept-Ranges' => 'bytes' unless params['norange']
+  data = resource.byteslice(first, last - first + 1)
+  if params['cut']
+    # promise all of it, send some of it, then hang up
+    headers 'Content-Length' => data.bytesize.to_s, 'Connection' => 'close'
+    data = data.byteslice(0, params['cut'].to_i)
+  end
+  data
+end
+
+# cache test. Every response says how many requests have reached the server.
+CACHE_COUNT = [0]
+
+get '/cache/:kind' do
+  CACHE_COUNT[0] += 1
+  sleep(params['latency'].to_i / 1000.0) if params['latency']
+  case params[:kind]
+  when 'fresh'
+    headers 'Cache-Control' => 'max-age=60'
+  when 'vary'
+    headers 'Cache-Control' => 'max-age=60', 'Vary' => 'X-Variant'
+  when 'etag'
+    headers 'Cache-Control' => 'no-cache', 'ETag' => '"v1"'
+    halt 304 if request.env['HTTP_IF_NONE_MATCH'] == '"v1"'
+  when 'static'
+    # the same body every time, with nothing to revalidate it by
+    headers 'Cache-Control' => 'max-age=60'
+    content_type :json
+    halt({"static" => true}.to_json)
+  end
+  content_type :json
+  {"count" => CACHE_COUNT[0], "variant" => request.env['HTTP_X_VARIANT']}.to_json
+end
+
+post '/cache/:kind' do
+  {"postdata" => request.body.read}.to_json
+end
+
+# Counts the body without keeping it, for upload benchmarks.
+['/upload', '/upload/*'].each do |path|
+  [:post, :put].each do |verb|
+    send(verb, path) do
+      length = 0
+      while (chunk = request.body.read(1024 * 1024))
+        length += chunk.bytesize
+      end
+      {"length" => length}.to_json
+    end
+  end
+end
+
 post '/' do
   {"postdata" => request.body.string}.to_json
 end
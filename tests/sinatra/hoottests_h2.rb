@@ -0,0 +1,107 @@
+# hoottests_h2.rb
+# An HTTP/2 server on port 4570 for the HTTP/2 transport tests. It speaks h2c
+# with prior knowledge, the way HootTransportHttp2 talks to plain http hosts,
+# and uses the http-2 gem (gem install http-2) for framing and HPACK.
+#
+# It allows only 8 concurrent streams per connection and a 1KB initial
+# window, so clients have to queue streams and wait for flow control credit.
+#
+# GET  /stream?latency=ms  answers after a delay with the connection's number
+#                          and how many streams were open on it, this one
+#                          included, when it arrived
+# POST /upload             the length and MD5 of the body it was sent
+# GET  /download?size=n    n bytes of text
+# GET  /resets             how many streams clients have cancelled
+require 'socket'
+require 'json'
+require 'uri'
+require 'digest/md5'
+require 'http/2'
+
+MAX_CONCURRENT_STREAMS = 8
+INITIAL_WINDOW_SIZE = 1024
+
+STATS = { :connections => 0, :cancelled => 0 }
+LOCK = Mutex.new
+
+# Runs on its own thread, so the delayed responses don't hold up the
+# connection; conn_lock serializes everything that touches the connection.
+def respond(conn_lock, stream, status, body, type = 'application/json')
+  conn_lock.synchronize do
+    stream.headers({ ':status' => status.to_s,
+                     'content-type' => type,
+                     'content-length' => body.bytesize.to_s }, :end_stream => false)
+    stream.data(body)
+  end
+rescue HTTP2::Error::Error
+  # the client cancelled the stream while we were waiting
+end
+
+def handle(conn_lock, stream, connection, active, headers, body)
+  path, query = headers[':path'].split('?', 2)
+  params = Hash[URI.decode_www_form(query || '')]
+  case [headers[':method'], path]
+  when ['GET', '/stream']
+    sleep params.fetch('latency', '0').to_i / 1000.0
+    respond(conn_lock, stream, 200, { :connection => connection,
+                                      :stream => stream.id,
+                                      :active => active }.to_json)
+  when ['POST', '/upload']
+    respond(conn_lock, stream, 200, { :length => body.bytesize,
+                                      :md5 => Digest::MD5.hexdigest(body) }.to_json)
+  when ['GET', '/download']
+    size = params.fetch('size', '0').to_i
+    data = ('0123456789abcdef' * (size / 16 + 1))[0, size]
+    respond(conn_lock, stream, 200, data, 'text/plain')
+  when ['GET', '/resets']
+    cancelled = LOCK.synchronize { STATS[:cancelled] }
+    respond(conn_lock, stream, 200, { :cancelled => cancelled }.to_json)
+  else
+    respond(conn_lock, stream, 404, { :error => 'not found' }.to_json)
+  end
+end
+
+server = TCPServer.new('0.0.0.0', 4570)
+puts 'h2c on port 4570'
+
+loop do
+  Thread.start(server.accept) do |sock|
+    connection = LOCK.synchronize { STATS[:connections] += 1 }
+    conn_lock = Mutex.new
+    open_streams = 0
+
+    conn = HTTP2::Server.new(:settings_max_concurrent_streams => MAX_CONCURRENT_STREAMS,
+                             :settings_initial_window_size => INITIAL_WINDOW_SIZE)
+    conn.on(:frame) { |bytes| sock.write(bytes) }
+    conn.on(:stream) do |stream|
+      headers = {}
+      body = ''.b
+      active = 0
+
+      stream.on(:active) { open_streams += 1 }
+      stream.on(:close) do |error|
+        open_streams -= 1
+        LOCK.synchronize { STATS[:cancelled] += 1 } if error == :cancel
+      end
+      stream.on(:headers) do |pairs|
+        headers.merge!(Hash[pairs])
+        active = open_streams
+      end
+      stream.on(:data) { |data| body << data }
+      stream.on(:half_close) do
+        Thread.new { handle(conn_lock, stream, connection, active, headers, body) }
+      end
+    end
+
+    begin
+      until sock.closed? || sock.eof?
+        data = sock.readpartial(16 * 1024)
+        conn_lock.synchronize { conn << data }
+      end
+    rescue StandardError => e
+      puts "connection #{connection}: #{e.message}"
+    ensure
+      sock.close unless sock.closed?
+    end
+  end
+end
@@ -0,0 +1,15 @@
+# hoottests_tls.rb
+# Serves the hoottests.rb routes over https on port 4568 with a throwaway
+# self-signed certificate, for the TLS session resumption test.
+require 'webrick'
+require 'webrick/https'
+require 'sinatra'
+
+set :run, false
+require File.expand_path('../hoottests', __FILE__)
+
+Rack::Handler::WEBrick.run Sinatra::Application,
+  :Host => '0.0.0.0',
+  :Port => 4568,
+  :SSLEnable => true,
+  :SSLCertName => [['CN', '10.0.2.2']]
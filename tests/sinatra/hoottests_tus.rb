@@ -0,0 +1,119 @@
+# hoottests_tus.rb
+# A stand-in tus 1.0 server (http://tus.io) on port 4569 for the resumable
+# upload test. It's plain sockets rather than Sinatra so it can cut a
+# connection off halfway through a chunk, the way a flaky link does.
+#
+# An upload's "hoot-drop" metadata picks how it misbehaves:
+#   flaky  every second PATCH is cut off halfway; the half that arrived is kept
+#   stall  every PATCH past the middle of the file is cut off before any of it
+#          is kept, until DELETE /files/:id/drop
+# GET /files/:id reports the upload's length, offset and MD5 as JSON.
+require 'socket'
+require 'json'
+require 'base64'
+require 'digest/md5'
+
+UPLOADS = {}
+LOCK = Mutex.new
+
+REASONS = { 200 => 'OK', 201 => 'Created', 204 => 'No Content',
+            400 => 'Bad Request', 404 => 'Not Found', 409 => 'Conflict' }
+
+def respond(client, status, headers = {}, body = '', head = false)
+  client.write "HTTP/1.1 #{status} #{REASONS[status]}\r\n"
+  headers = { 'Tus-Resumable' => '1.0.0', 'Content-Length' => body.bytesize }.merge(headers)
+  headers.each { |name, value| client.write "#{name}: #{value}\r\n" }
+  client.write "\r\n"
+  client.write body unless head
+end
+
+def read_request(client)
+  line = client.gets or return nil
+  method, path = line.split(' ')
+  headers = {}
+  while (line = client.gets) && line != "\r\n"
+    name, value = line.split(':', 2)
+    headers[name.strip.downcase] = value.strip
+  end
+  [method, path, headers]
+end
+
+def create(headers)
+  metadata = {}
+  (headers['upload-metadata'] || '').split(',').each do |pair|
+    key, value = pair.split(' ', 2)
+    metadata[key] = value ? Base64.decode64(value) : ''
+  end
+  LOCK.synchronize do
+    id = (UPLOADS.size + 1).to_s
+    UPLOADS[id] = { :length => headers['upload-length'].to_i, :data => ''.b,
+                    :patches => 0, :metadata => metadata,
+                    :drop => metadata['hoot-drop'] }
+    id
+  end
+end
+
+# Returns false once the connection has been cut off.
+def handle(client, method, path, headers)
+  length = headers['content-length'].to_i
+  if method == 'POST' && headers['x-http-method-override']
+    method = headers['x-http-method-override']
+  end
+  id = path[%r{\A/files/(\d+)}, 1]
+  upload = LOCK.synchronize { UPLOADS[id] }
+
+  if method == 'POST' && path == '/files'
+    client.read(length)
+    respond(client, 201, 'Location' => "/files/#{create(headers)}")
+  elsif upload.nil?
+    client.read(length)
+    respond(client, 404, {}, '', method == 'HEAD')
+  elsif method == 'HEAD'
+    respond(client, 200, { 'Upload-Offset' => upload[:data].bytesize,
+                           'Upload-Length' => upload[:length],
+                           'Cache-Control' => 'no-store' }, '', true)
+  elsif method == 'GET'
+    body = { 'length' => upload[:length], 'offset' => upload[:data].bytesize,
+             'md5' => Digest::MD5.hexdigest(upload[:data]),
+             'patches' => upload[:patches], 'metadata' => upload[:metadata] }.to_json
+    respond(client, 200, { 'Content-Type' => 'application/json' }, body)
+  elsif method == 'DELETE' && path.end_with?('/drop')
+    upload[:drop] = nil
+    respond(client, 204)
+  elsif method == 'PATCH'
+    if headers['upload-offset'].to_i != upload[:data].bytesize
+      client.read(length)
+      respond(client, 409)
+      return true
+    end
+    upload[:patches] += 1
+    if upload[:drop] == 'flaky' && upload[:patches].even?
+      upload[:data] << client.read(length / 2)
+      return false
+    elsif upload[:drop] == 'stall' && upload[:data].bytesize >= upload[:length] / 2
+      return false
+    end
+    upload[:data] << client.read(length)
+    respond(client, 204, 'Upload-Offset' => upload[:data].bytesize)
+  else
+    client.read(length)
+    respond(client, 400)
+  end
+  true
+end
+
+server = TCPServer.new('0.0.0.0', 4569)
+loop do
+  Thread.new(server.accept) do |client|
+    begin
+      client.binmode
+      while (request = read_request(client))
+        break unless handle(client, *request)
+      end
+    rescue IOError, SystemCallError
+      # the client went away
+    ensure
+      client.close
+    end
+  end
+end
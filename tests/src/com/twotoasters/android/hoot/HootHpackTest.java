@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 Two Toasters, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twotoasters.android.hoot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * HootHpack is package private, so its tests live in the library's package.
+ */
+public class HootHpackTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        HootHpack.Encoder encoder = new HootHpack.Encoder();
+        HootHpack.Decoder decoder = new HootHpack.Decoder(
+                HootHpack.DEFAULT_TABLE_SIZE);
+        List<String[]> headers = headers(":method", "GET", ":scheme", "https",
+                ":authority", "api.example.com", ":path", "/items?page=2",
+                "accept", "application/json", "x-request-id", "4f1c9a");
+
+        byte[] first = encoder.encode(headers);
+        assertHeaders(headers, decoder.decode(first));
+
+        // the second block is mostly references into the dynamic table
+        byte[] second = encoder.encode(headers);
+        assertHeaders(headers, decoder.decode(second));
+        assertTrue(second.length < first.length / 2);
+    }
+
+    public void testDecodesSpecExamples() throws Exception {
+        // RFC 7541 C.4.1 and C.4.2: requests with Huffman coding, sharing a
+        // dynamic table
+        HootHpack.Decoder decoder = new HootHpack.Decoder(
+                HootHpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(headers(":method", "GET", ":scheme", "http", ":path",
+                "/", ":authority", "www.example.com"),
+                decoder.decode(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff")));
+        assertHeaders(headers(":method", "GET", ":scheme", "http", ":path",
+                "/", ":authority", "www.example.com", "cache-control",
+                "no-cache"), decoder.decode(hex("828684be5886a8eb10649cbf")));
+    }
+
+    public void testEveryOctetSurvives() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 256; i++) {
+            value.append((char) i);
+        }
+        List<String[]> headers = headers("x-binary", value.toString());
+        assertHeaders(headers, new HootHpack.Decoder(
+                HootHpack.DEFAULT_TABLE_SIZE).decode(new HootHpack.Encoder()
+                .encode(headers)));
+    }
+
+    public void testEviction() throws Exception {
+        HootHpack.Encoder encoder = new HootHpack.Encoder();
+        HootHpack.Decoder decoder = new HootHpack.Decoder(
+                HootHpack.DEFAULT_TABLE_SIZE);
+        // far more than fits in the table, so older entries are evicted on
+        // both sides as the blocks go by
+        for (int i = 0; i < 200; i++) {
+            List<String[]> headers = headers("x-sequence", String.valueOf(i),
+                    "x-padding", repeat('a' + i % 26, 300));
+            assertHeaders(headers, decoder.decode(encoder.encode(headers)));
+        }
+    }
+
+    public void testTableSizeUpdate() throws Exception {
+        HootHpack.Encoder encoder = new HootHpack.Encoder();
+        HootHpack.Decoder decoder = new HootHpack.Decoder(
+                HootHpack.DEFAULT_TABLE_SIZE);
+        List<String[]> headers = headers("x-token", "abcdefghijklmnop");
+        assertHeaders(headers, decoder.decode(encoder.encode(headers)));
+
+        // with no table, nothing can be referenced
+        encoder.setMaxTableSize(0);
+        byte[] first = encoder.encode(headers);
+        assertHeaders(headers, decoder.decode(first));
+        byte[] second = encoder.encode(headers);
+        assertHeaders(headers, decoder.decode(second));
+        assertEquals(first.length - 1, second.length);
+    }
+
+    public void testSensitiveHeadersAreNeverIndexed() throws Exception {
+        HootHpack.Encoder encoder = new HootHpack.Encoder();
+        HootHpack.Decoder decoder = new HootHpack.Decoder(
+                HootHpack.DEFAULT_TABLE_SIZE);
+        List<String[]> headers = headers("authorization", "Bearer secret");
+        byte[] first = encoder.encode(headers);
+        byte[] second = encoder.encode(headers);
+        assertEquals(first.length, second.length);
+        // literal never indexed, with the name from the static table
+        assertEquals(0x10, first[0] & 0xf0);
+        assertHeaders(headers, decoder.decode(first));
+        assertHeaders(headers, decoder.decode(second));
+    }
+
+    public void testRejectsBadIndex() {
+        try {
+            new HootHpack.Decoder(HootHpack.DEFAULT_TABLE_SIZE).decode(hex("be"));
+            fail();
+        } catch (IOException e) {
+            // expected: index 62 with an empty dynamic table
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+    private static List<String[]> headers(String... namesAndValues) {
+        List<String[]> headers = new ArrayList<String[]>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.add(new String[] { namesAndValues[i], namesAndValues[i + 1] });
+        }
+        return headers;
+    }
+
+    private static void assertHeaders(List<String[]> expected,
+            List<String[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i)[0], actual.get(i)[0]);
+            assertEquals(expected.get(i)[1], actual.get(i)[1]);
+        }
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String repeat(int c, int count) {
+        StringBuilder string = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            string.append((char) c);
+        }
+        return string.toString();
+    }
+
+}
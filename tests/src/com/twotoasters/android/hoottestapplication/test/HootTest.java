@@ -17,33 +17,80 @@
 package com.twotoasters.android.hoottestapplication.test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.test.InstrumentationTestCase;
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.util.Log;
 
 import com.twotoasters.android.hoot.Hoot;
+import com.twotoasters.android.hoot.HootBody;
+import com.twotoasters.android.hoot.HootCache;
 import com.twotoasters.android.hoot.HootDeserializer;
+import com.twotoasters.android.hoot.HootDnsCache;
+import com.twotoasters.android.hoot.HootExecutor;
 import com.twotoasters.android.hoot.HootGlobalDeserializer;
+import com.twotoasters.android.hoot.HootMultipartBody;
 import com.twotoasters.android.hoot.HootRequest;
+import com.twotoasters.android.hoot.HootRequest.HootProgressListener;
+import com.twotoasters.android.hoot.HootRequest.HootRefreshListener;
 import com.twotoasters.android.hoot.HootRequest.HootRequestListener;
+import com.twotoasters.android.hoot.HootResponseSink;
+import com.twotoasters.android.hoot.HootResolver;
 import com.twotoasters.android.hoot.HootResult;
+import com.twotoasters.android.hoot.HootResultCache;
+import com.twotoasters.android.hoot.HootResumableUpload;
+import com.twotoasters.android.hoot.HootTlsStats;
+import com.twotoasters.android.hoot.HootTransport;
+import com.twotoasters.android.hoot.HootTransportCapabilities;
+import com.twotoasters.android.hoot.HootTransportRequest;
+import com.twotoasters.android.hoot.HootTransportResponse;
 import com.twotoasters.android.hoottestapplication.data.Delete;
 import com.twotoasters.android.hoottestapplication.data.DeleteWithHeaders;
 import com.twotoasters.android.hoottestapplication.data.DeleteWithHeadersAndParams;
@@ -58,12 +105,26 @@ import com.twotoasters.android.hoottestapplication.data.PostWithHeaders;
 public class HootTest extends InstrumentationTestCase {
 
     protected static final String TAG = HootTest.class.getSimpleName();
+    private static final String BASE_URL = "http://10.0.2.2:4567";
+    /** hoottests_tls.rb */
+    private static final String TLS_BASE_URL = "https://10.0.2.2:4568";
+    /** hoottests_tus.rb */
+    private static final String TUS_BASE_URL = "http://10.0.2.2:4569";
+    /** hoottests_h2.rb */
+    private static final String H2_BASE_URL = "http://10.0.2.2:4570";
+    private static final int BENCHMARK_ITERATIONS = 200;
+    private static final int UPLOAD_BENCHMARK_SIZE = 128 * 1024 * 1024;
+    private static final int CONCURRENT_REQUESTS = 50;
+    private static final int[] BLOCKING_TRANSPORTS = {
+            Hoot.TRANSPORT_HTTP_URL_CONNECTION, Hoot.TRANSPORT_HTTP_CLIENT };
+    private static final int[] ALL_TRANSPORTS = {
+            Hoot.TRANSPORT_HTTP_URL_CONNECTION, Hoot.TRANSPORT_HTTP_CLIENT,
+            Hoot.TRANSPORT_NON_BLOCKING };
     private Hoot mHootRestClient;
 
     protected void setUp() throws Exception {
         super.setUp();
-        mHootRestClient = Hoot
-                .createInstanceWithBaseUrl("http://10.0.2.2:4567");
+        mHootRestClient = Hoot.createInstanceWithBaseUrl(BASE_URL);
     }
 
     protected void tearDown() throws Exception {
@@ -403,16 +464,1129 @@ public class HootTest extends InstrumentationTestCase {
                         .equals("this is a post"));
     }
 
+    public void testConnectionReuse() throws Exception {
+        // measure with keep-alive first; the platform pool is configured by
+        // whichever Hoot sets it up first.
+        ConnectionStats pooled = measureConnections(Hoot
+                .createInstanceWithBaseUrl(BASE_URL).setKeepAlive(true));
+        ConnectionStats unpooled = measureConnections(Hoot
+                .createInstanceWithBaseUrl(BASE_URL).setKeepAlive(false));
+
+        Log.i(TAG, "keep-alive off: " + unpooled);
+        Log.i(TAG, "keep-alive on: " + pooled);
+
+        assertTrue(pooled.reuseRatio > unpooled.reuseRatio);
+        assertTrue(pooled.reuseRatio > 0.9f);
+    }
+
+    public void testTlsSessionResumption() throws Throwable {
+        forEachTransport(TLS_BASE_URL, BLOCKING_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                // keep-alive off so every request reconnects and handshakes
+                hoot.setKeepAlive(false)
+                        .setSSLContext(createTrustingSSLContext())
+                        .setSSLHostNameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+                for (int i = 0; i < BENCHMARK_ITERATIONS / 10; i++) {
+                    HootResult result = hoot.executeRequestSynchronously(hoot
+                            .createRequest().get());
+                    assertTrue(result.isSuccess());
+                }
+
+                // handshake listeners may run after the request returns
+                HootTlsStats stats = hoot.getTlsStats();
+                awaitHandshakes(stats, BENCHMARK_ITERATIONS / 10);
+                Log.i(TAG, "transport " + transport + " handshakes: " + stats);
+                assertEquals(1, stats.getFullHandshakeCount());
+                assertEquals(BENCHMARK_ITERATIONS / 10 - 1,
+                        stats.getResumedHandshakeCount());
+            }
+        });
+    }
+
+    public void testPrewarm() throws Throwable {
+        forEachTransport(TLS_BASE_URL, BLOCKING_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                hoot.setSSLContext(createTrustingSSLContext())
+                        .setSSLHostNameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER)
+                        .prewarm(2);
+
+                HootTlsStats stats = hoot.getTlsStats();
+                awaitHandshakes(stats, 2);
+                assertEquals(2, countHandshakes(stats));
+
+                // both requests should go out on prewarmed connections
+                for (int i = 0; i < 2; i++) {
+                    HootResult result = hoot.executeRequestSynchronously(hoot
+                            .createRequest().get());
+                    assertTrue(result.isSuccess());
+                }
+                assertEquals(2, countHandshakes(stats));
+            }
+        });
+    }
+
+    public void testNonBlockingConcurrentRequests() {
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(BASE_URL).setTransportType(
+                Hoot.TRANSPORT_NON_BLOCKING);
+        final CountDownLatch latch = new CountDownLatch(CONCURRENT_REQUESTS);
+        List<HootRequest> requests = new ArrayList<HootRequest>();
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            requests.add(hoot.createRequest().get().setResource("wait")
+                    .bindListener(new TestHootListener(latch, false)));
+        }
+
+        long start = System.currentTimeMillis();
+        executeTest(requests, latch);
+
+        // every request sleeps 10 seconds on the server, so they can only
+        // finish this quickly if they were all in flight at once
+        assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+        for (HootRequest request : requests) {
+            assertTrue(request.getResult().isSuccess());
+        }
+    }
+
+    public void testHttp2Multiplexing() throws Exception {
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(H2_BASE_URL)
+                .setTransportType(Hoot.TRANSPORT_HTTP2);
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "500");
+        CountDownLatch latch = new CountDownLatch(CONCURRENT_REQUESTS);
+        List<HootRequest> requests = new ArrayList<HootRequest>();
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            requests.add(hoot.createRequest().setResource("stream")
+                    .setQueryParameters(params)
+                    .bindListener(new TestHootListener(latch, false)));
+        }
+
+        long start = System.currentTimeMillis();
+        executeTest(requests, latch);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the server allows 8 streams at a time, so the rest wait their turn
+        // on the same connection rather than opening more
+        Set<Integer> connections = new HashSet<Integer>();
+        for (HootRequest request : requests) {
+            assertTrue(request.getResult().isSuccess());
+            JSONObject json = new JSONObject(request.getResult()
+                    .getResponseString());
+            connections.add(json.getInt("connection"));
+            assertTrue(json.getInt("active") <= 8);
+        }
+        assertEquals(1, connections.size());
+        int rounds = (CONCURRENT_REQUESTS + 7) / 8;
+        assertTrue(elapsed >= rounds * 500);
+        assertTrue(elapsed < CONCURRENT_REQUESTS * 500 / 2);
+    }
+
+    public void testHttp2FlowControl() throws Exception {
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(H2_BASE_URL)
+                .setTransportType(Hoot.TRANSPORT_HTTP2);
+
+        // the server's initial window is 1KB, so the body only goes out as
+        // it grants more
+        File file = createTempFile("hoot-h2.bin", 256 * 1024);
+        HootResult result = hoot.executeRequestSynchronously(hoot
+                .createRequest().setResource("upload").post(HootBody.create(file)));
+        assertTrue(result.isSuccess());
+        JSONObject json = new JSONObject(result.getResponseString());
+        assertEquals(file.length(), json.getLong("length"));
+        assertEquals(md5(file), json.getString("md5"));
+        file.delete();
+
+        // and a response bigger than the window we grant needs our updates
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("size", String.valueOf(3 * 1024 * 1024));
+        result = hoot.executeRequestSynchronously(hoot.createRequest()
+                .setResource("download").setQueryParameters(params));
+        assertTrue(result.isSuccess());
+        assertEquals(3 * 1024 * 1024, result.getResponseString().length());
+    }
+
+    public void testHttp2Cancel() throws Throwable {
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(H2_BASE_URL)
+                .setTransportType(Hoot.TRANSPORT_HTTP2);
+        int resets = getHttp2ResetCount(hoot);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "2000");
+        CountDownLatch latch = new CountDownLatch(2);
+        final List<HootRequest> requests = new ArrayList<HootRequest>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(hoot.createRequest().setResource("stream")
+                    .setQueryParameters(params)
+                    .bindListener(new TestHootListener(latch, false)));
+        }
+        executeTest(requests, new CountDownLatch(0));
+        Thread.sleep(500);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                requests.get(1).cancel();
+            }
+        });
+        latch.await(200, TimeUnit.SECONDS);
+
+        // the cancelled stream is reset on its own; its siblings finish
+        assertTrue(requests.get(1).isCancelled());
+        assertTrue(requests.get(0).getResult().isSuccess());
+        assertTrue(requests.get(2).getResult().isSuccess());
+        assertEquals(resets + 1, getHttp2ResetCount(hoot));
+
+        // and the connection carries on
+        HootResult after = hoot.executeRequestSynchronously(hoot
+                .createRequest().setResource("stream"));
+        assertEquals(new JSONObject(requests.get(0).getResult()
+                .getResponseString()).getInt("connection"), new JSONObject(
+                after.getResponseString()).getInt("connection"));
+    }
+
+    public void testCustomTransport() {
+        final List<HootTransportRequest> executed = new ArrayList<HootTransportRequest>();
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(BASE_URL)
+                .setBasicAuth("username", "password")
+                .setTransport(new HootTransport() {
+
+                    @Override
+                    public void setup(Hoot hoot) {
+                    }
+
+                    @Override
+                    public HootTransportCapabilities getCapabilities() {
+                        return new HootTransportCapabilities();
+                    }
+
+                    @Override
+                    public void execute(HootTransportRequest request,
+                            HootTransportResponse response) throws IOException {
+                        executed.add(request);
+                        response.setStatusCode(HttpURLConnection.HTTP_OK)
+                                .setBody(new ByteArrayInputStream(
+                                        "{\"test\": \"custom\"}".getBytes()));
+                    }
+
+                    @Override
+                    public void cancel(HootTransportRequest request) {
+                    }
+                });
+
+        HootResult result = hoot.executeRequestSynchronously(hoot
+                .createRequest().get().setResource("get"));
+        assertTrue(result.isSuccess());
+        assertEquals("{\"test\": \"custom\"}", result.getResponseString());
+        assertEquals(1, executed.size());
+        assertEquals("GET", executed.get(0).getMethod());
+        assertEquals(BASE_URL + "/get", executed.get(0).getUri().toString());
+        assertNotNull(executed.get(0).getHeaders().get("Authorization"));
+    }
+
+    public void testDnsCache() throws Exception {
+        final InetAddress server = InetAddress.getByName("10.0.2.2");
+        final AtomicInteger lookups = new AtomicInteger();
+        // no refreshing ahead, so every lookup is one the requests made
+        HootDnsCache cache = new HootDnsCache(new HootResolver() {
+            @Override
+            public InetAddress[] resolve(String host)
+                    throws UnknownHostException {
+                lookups.incrementAndGet();
+                if (!"hoot.test".equals(host)) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] { server };
+            }
+        }).setRefreshAhead(false);
+        Hoot hoot = Hoot.createInstanceWithBaseUrl("http://hoot.test:4567")
+                .setTransportType(Hoot.TRANSPORT_HTTP_CLIENT)
+                .setResolver(cache);
+
+        for (int i = 0; i < 5; i++) {
+            HootResult result = hoot.executeRequestSynchronously(hoot
+                    .createRequest().get().setResource("get"));
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(1, cache.getLookupCount());
+        assertEquals(0, cache.getRefreshCount());
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.resolve("missing.test");
+                fail();
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        assertEquals(2, lookups.get());
+        assertEquals(1, cache.getNegativeHitCount());
+
+        // a refresh that fails keeps the addresses that are still valid
+        final AtomicInteger refreshes = new AtomicInteger();
+        HootDnsCache flaky = new HootDnsCache(new HootResolver() {
+            @Override
+            public InetAddress[] resolve(String host)
+                    throws UnknownHostException {
+                if (refreshes.incrementAndGet() == 2) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] { server };
+            }
+        });
+        assertEquals(server, flaky.resolve("hoot.test")[0]);
+        flaky.refreshAhead("hoot.test");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (refreshes.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        flaky.stopRefreshAhead("hoot.test");
+        assertEquals(2, refreshes.get());
+        assertEquals(server, flaky.resolve("hoot.test")[0]);
+        assertEquals(0, flaky.getNegativeHitCount());
+        assertEquals(1, flaky.getMissCount());
+    }
+
+    public void testHappyEyeballs() throws Throwable {
+        // a listener whose backlog is full drops every SYN, so connects to it
+        // neither succeed nor fail; it leads as the IPv6 address, and only
+        // racing the IPv4 one keeps requests from waiting out the timeout
+        final InetAddress blackHole = InetAddress.getByName("::1");
+        final InetAddress[] addresses = new InetAddress[] { blackHole,
+                InetAddress.getByName("10.0.2.2") };
+        final AtomicInteger lookups = new AtomicInteger();
+        final HootResolver resolver = new HootResolver() {
+            @Override
+            public InetAddress[] resolve(String host) {
+                lookups.incrementAndGet();
+                return addresses.clone();
+            }
+        };
+
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(blackHole, 4567), 1);
+        List<Socket> backlog = fillBacklog(listener);
+        try {
+            int[] transports = { Hoot.TRANSPORT_HTTP_CLIENT,
+                    Hoot.TRANSPORT_NON_BLOCKING };
+            forEachTransport("http://dual.test:4567", transports, new TransportTest() {
+                @Override
+                public void run(Hoot hoot, int transport) throws Throwable {
+                    hoot.setResolver(resolver).setKeepAlive(false)
+                            .setTimeout(10 * 1000);
+                    for (int i = 0; i < 3; i++) {
+                        long start = System.currentTimeMillis();
+                        HootResult result = hoot.executeRequestSynchronously(hoot
+                                .createRequest().get().setResource("get"));
+                        assertTrue(result.isSuccess());
+                        assertTrue(System.currentTimeMillis() - start < 2 * 1000);
+                    }
+                }
+            });
+
+            // HttpURLConnection does its own lookup and connect, so the
+            // resolver isn't asked at all: the platform never hears of
+            // dual.test
+            Hoot hoot = Hoot.createInstanceWithBaseUrl("http://dual.test:4567")
+                    .setTransportType(Hoot.TRANSPORT_HTTP_URL_CONNECTION)
+                    .setResolver(resolver);
+            lookups.set(0);
+            HootResult result = hoot.executeRequestSynchronously(hoot
+                    .createRequest().get().setResource("get"));
+            assertEquals(0, lookups.get());
+            assertFalse(result.isSuccess());
+            assertTrue(result.getException() instanceof UnknownHostException);
+        } finally {
+            for (Socket socket : backlog) {
+                socket.close();
+            }
+            listener.close();
+        }
+    }
+
+    public void testCompressedResponse() throws Throwable {
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                HootResult compressed = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("compressed").get());
+                assertTrue(compressed.isSuccess());
+                assertEquals(500, new JSONObject(compressed.getResponseString())
+                        .getJSONArray("items").length());
+                assertTrue(compressed.getCompressedByteCount() < compressed
+                        .getDecompressedByteCount());
+                assertFalse(compressed.getHeaders().containsKey("Content-Encoding"));
+
+                HootResult plain = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("compressed")
+                        .setAcceptCompressedResponse(false).get());
+                assertTrue(plain.isSuccess());
+                assertEquals(compressed.getResponseString(),
+                        plain.getResponseString());
+                assertEquals(plain.getCompressedByteCount(),
+                        plain.getDecompressedByteCount());
+            }
+        });
+    }
+
+    public void testCompressedRequestBody() throws Throwable {
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            events.append("{\"event\":\"tap\",\"id\":").append(i).append("},");
+        }
+        final byte[] body = events.toString().getBytes("UTF-8");
+
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                HootResult compressed = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("compressed")
+                        .setCompressRequestBody(true)
+                        .post(new ByteArrayInputStream(body)));
+                assertTrue(compressed.isSuccess());
+                JSONObject json = new JSONObject(compressed.getResponseString());
+                assertEquals(body.length, json.getInt("length"));
+                assertTrue(json.getInt("wire") * 5 < body.length);
+
+                // under the threshold, so sent as is
+                HootResult small = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("compressed")
+                        .setCompressRequestBody(true)
+                        .post(new ByteArrayInputStream(body, 0, 100)));
+                json = new JSONObject(small.getResponseString());
+                assertEquals(100, json.getInt("length"));
+                assertEquals(100, json.getInt("wire"));
+            }
+        });
+    }
+
+    public void testSizedBodies() throws Throwable {
+        File file = createTempFile("hoot-body.bin", 256 * 1024);
+        final byte[] data = readFile(file);
+        final HootBody[] bodies = new HootBody[] { HootBody.create(data),
+                HootBody.create(ByteBuffer.wrap(data)),
+                HootBody.create(file),
+                HootBody.create(new ByteArrayInputStream(data), data.length) };
+        forEachTransport(BASE_URL, BLOCKING_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                for (HootBody body : bodies) {
+                    // the stream body can only be sent once
+                    if (!body.isReplayable()
+                            && transport != BLOCKING_TRANSPORTS[0]) {
+                        continue;
+                    }
+                    assertEquals(data.length, body.getContentLength());
+                    HootResult result = hoot.executeRequestSynchronously(hoot
+                            .createRequest().setResource("compressed").post(body));
+                    assertTrue(result.isSuccess());
+                    JSONObject json = new JSONObject(result.getResponseString());
+                    assertEquals(data.length, json.getInt("length"));
+                }
+            }
+        });
+        file.delete();
+    }
+
+    public void testFileUploadThroughput() throws Throwable {
+        final File file = createTempFile("hoot-upload.bin", UPLOAD_BENCHMARK_SIZE);
+        final Runtime runtime = Runtime.getRuntime();
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                hoot.setTimeout(60 * 1000);
+                System.gc();
+                long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+                long start = System.nanoTime();
+                HootResult result = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("upload").put(file));
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+                assertTrue(result.isSuccess());
+                JSONObject json = new JSONObject(result.getResponseString());
+                assertEquals(file.length(), json.getLong("length"));
+                Log.i(TAG, String.format("transport %d: %.1f MB/s, heap %+d KB",
+                        transport, file.length() / seconds / (1024 * 1024),
+                        (heapAfter - heapBefore) / 1024));
+                // the file is streamed, never held in memory
+                assertTrue(heapAfter - heapBefore < file.length() / 4);
+            }
+        });
+        file.delete();
+    }
+
+    public void testMultipartBody() throws Throwable {
+        final File file = createTempFile("hoot-multipart.bin", 1024 * 1024);
+        forEachTransport(BASE_URL, BLOCKING_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                HootMultipartBody body = new HootMultipartBody()
+                        .addField("field", "h\u00e9llo")
+                        .addFile("file", file, "application/x-test");
+                HootResult result = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("multipart").post(body));
+                assertTrue(result.isSuccess());
+                JSONObject json = new JSONObject(result.getResponseString());
+                assertEquals("h\u00e9llo", json.getString("field"));
+                assertEquals(file.getName(), json.getString("filename"));
+                assertEquals("application/x-test", json.getString("type"));
+                assertEquals(file.length(), json.getLong("length"));
+                assertEquals(body.getContentLength(), json.getLong("content_length"));
+            }
+        });
+        file.delete();
+    }
+
+    public void testResumableUpload() throws Throwable {
+        final File file = createTempFile("hoot-resumable.bin",
+                3 * 1024 * 1024 + 17);
+        final File journal = getCacheFile("hoot-uploads.properties");
+        journal.delete();
+        final String md5 = md5(file);
+
+        forEachTransport(TUS_BASE_URL, BLOCKING_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                // connections cut mid-chunk are resumed from the server's offset
+                HootResumableUpload flaky = new HootResumableUpload(file, journal)
+                        .setChunkSize(512 * 1024).setMetadata("hoot-drop", "flaky");
+                HootResult result = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("files").upload(flaky));
+                assertTrue(result.isSuccess());
+                assertEquals(file.length(), flaky.getOffset());
+                assertEquals(md5, getUploadStatus(flaky).getString("md5"));
+
+                // a failed upload is picked up from the journal by a new one
+                HootResumableUpload stalled = new HootResumableUpload(file, journal)
+                        .setChunkSize(512 * 1024).setMetadata("hoot-drop", "stall");
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("files").upload(stalled));
+                assertFalse(result.isSuccess());
+                assertTrue(stalled.getOffset() >= file.length() / 2);
+                Hoot upload = Hoot.createInstanceWithBaseUrl(stalled.getUploadUrl());
+                upload.executeRequestSynchronously(upload.createRequest()
+                        .setResource("drop").delete());
+
+                HootResumableUpload resumed = new HootResumableUpload(file, journal)
+                        .setChunkSize(512 * 1024);
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("files").upload(resumed));
+                assertTrue(result.isSuccess());
+                assertEquals(stalled.getUploadUrl(), resumed.getUploadUrl());
+                assertEquals(md5, getUploadStatus(resumed).getString("md5"));
+            }
+        });
+        file.delete();
+        journal.delete();
+    }
+
+    public void testResumableDownload() throws Throwable {
+        final File file = getCacheFile("hoot-download.bin");
+        final File partial = new File(file.getPath() + ".partial");
+        final Map<String, String> cut = new HashMap<String, String>();
+        cut.put("cut", "1000000");
+        final Map<String, String> changed = new HashMap<String, String>();
+        changed.put("etag", "v2");
+
+        forEachTransport(BASE_URL, BLOCKING_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                String md5 = new JSONObject(hoot.executeRequestSynchronously(
+                        hoot.createRequest().setResource("download/md5"))
+                        .getResponseString()).getString("md5");
+                file.delete();
+                partial.delete();
+
+                // a dropped connection leaves what arrived
+                HootResult result = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("download")
+                        .setQueryParameters(cut).downloadTo(file));
+                assertNotNull(result.getException());
+                assertNull(result.getDownloadedFile());
+                assertFalse(file.exists());
+                assertEquals(1000000, partial.length());
+
+                // and the next request only asks for the rest
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("download").downloadTo(file));
+                assertTrue(result.isSuccess());
+                assertEquals(206, result.getResponseCode());
+                assertEquals(file, result.getDownloadedFile());
+                assertEquals(file.length() - 1000000,
+                        result.getCompressedByteCount());
+                assertEquals(md5, md5(file));
+                assertFalse(partial.exists());
+
+                // unless the resource changed in between
+                file.delete();
+                hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("download").setQueryParameters(cut)
+                        .downloadTo(file));
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("download").setQueryParameters(changed)
+                        .downloadTo(file));
+                assertEquals(200, result.getResponseCode());
+                assertEquals(file.length(), result.getCompressedByteCount());
+                assertEquals(md5, md5(file));
+            }
+        });
+        file.delete();
+    }
+
+    public void testResponseSink() throws Throwable {
+        final File file = getCacheFile("hoot-sink.bin");
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                String md5 = new JSONObject(hoot.executeRequestSynchronously(
+                        hoot.createRequest().setResource("download/md5"))
+                        .getResponseString()).getString("md5");
+
+                file.delete();
+                HootResult result = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("download")
+                        .setResponseSink(HootResponseSink.create(file)));
+                assertTrue(result.isSuccess());
+                assertNull(result.getResponseString());
+                assertEquals(file.length(), result.getBytesWritten());
+                assertEquals(md5, md5(file));
+
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("download")
+                        .setResponseSink(HootResponseSink.create(os)));
+                assertEquals(os.size(), result.getBytesWritten());
+                assertEquals(md5, md5(os.toByteArray()));
+
+                // error bodies are read into the result as usual
+                os.reset();
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("error/404")
+                        .setResponseSink(HootResponseSink.create(os)));
+                assertFalse(result.isSuccess());
+                assertEquals(0, result.getBytesWritten());
+                assertEquals(0, os.size());
+            }
+        });
+        file.delete();
+    }
+
+    public void testSegmentedDownload() throws Throwable {
+        final File file = getCacheFile("hoot-segmented.bin");
+        final File partial = new File(file.getPath() + ".partial");
+        final Map<String, String> noRange = new HashMap<String, String>();
+        noRange.put("norange", "1");
+        final Map<String, String> empty = new HashMap<String, String>();
+        empty.put("empty", "1");
+
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                String md5 = new JSONObject(hoot.executeRequestSynchronously(
+                        hoot.createRequest().setResource("download/md5"))
+                        .getResponseString()).getString("md5");
+
+                file.delete();
+                HootResult result = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("download")
+                        .downloadTo(file, 4));
+                assertTrue(result.isSuccess());
+                assertEquals(206, result.getResponseCode());
+                assertEquals(file, result.getDownloadedFile());
+                assertEquals(file.length(), result.getBytesWritten());
+                assertEquals(md5, md5(file));
+                assertFalse(partial.exists());
+
+                // a server without ranges sends it whole
+                file.delete();
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("download").setQueryParameters(noRange)
+                        .downloadTo(file, 4));
+                assertEquals(200, result.getResponseCode());
+                assertEquals(md5, md5(file));
+
+                // no range of an empty file can be satisfied, and it's done
+                file.delete();
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("download").setQueryParameters(empty)
+                        .downloadTo(file, 4));
+                assertTrue(result.isSuccess());
+                assertEquals(file, result.getDownloadedFile());
+                assertEquals(0, result.getBytesWritten());
+                assertTrue(file.exists());
+                assertEquals(0, file.length());
+                assertFalse(partial.exists());
+
+                // and errors are read as usual
+                result = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("error/404").downloadTo(file, 4));
+                assertFalse(result.isSuccess());
+                assertEquals(404, result.getResponseCode());
+                assertFalse(partial.exists());
+            }
+        });
+        file.delete();
+    }
+
+    public void testCache() throws Throwable {
+        final File directory = getCacheFile("hoot-cache");
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                HootCache cache = new HootCache(directory, 1024 * 1024);
+                cache.evictAll();
+                hoot.setCache(cache);
+
+                // a fresh response is served without going to the network
+                HootResult first = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("cache/fresh"));
+                HootResult second = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("cache/fresh")
+                        .setDeserializer(new TestHootDeserializer<Get>(Get.class)));
+                assertFalse(first.isFromCache());
+                assertTrue(second.isFromCache());
+                assertEquals(200, second.getResponseCode());
+                assertEquals(first.getResponseString(), second.getResponseString());
+                assertNotNull(second.getDeserializedResult());
+                assertEquals(1, cache.getHitCount());
+
+                // a stale one is revalidated, and a 304 serves the cached body
+                first = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("cache/etag"));
+                second = hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("cache/etag"));
+                assertTrue(second.isSuccess());
+                assertTrue(second.isFromCache());
+                assertEquals(200, second.getResponseCode());
+                assertEquals(first.getResponseString(), second.getResponseString());
+                assertEquals(1, cache.getRevalidationCount());
+                assertEquals(1, cache.getConditionalHitCount());
+
+                // a different value of a header the response varies on misses
+                Properties headers = new Properties();
+                headers.setProperty("X-Variant", "a");
+                hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("cache/vary").setHeaders(headers));
+                headers = new Properties();
+                headers.setProperty("X-Variant", "b");
+                HootResult other = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("cache/vary")
+                        .setHeaders(headers));
+                assertFalse(other.isFromCache());
+                assertEquals("b", new JSONObject(other.getResponseString())
+                        .getString("variant"));
+
+                // and a POST to a URL invalidates it
+                hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("cache/fresh").post("x"));
+                assertFalse(hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("cache/fresh")).isFromCache());
+                assertEquals(7, cache.getRequestCount());
+                assertEquals(5, cache.getMissCount());
+                assertTrue(cache.getSize() > 0);
+            }
+        });
+        new HootCache(directory, 0).evictAll();
+    }
+
+    public void testProgress() throws Throwable {
+        final File file = createTempFile("hoot-progress.bin", 8 * 1024 * 1024);
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                CountDownLatch latch = new CountDownLatch(2);
+                TestProgressListener upload = new TestProgressListener(latch);
+                TestProgressListener download = new TestProgressListener(latch);
+                List<HootRequest> requests = new ArrayList<HootRequest>();
+                requests.add(hoot.createRequest().setResource("upload").put(file)
+                        .bindListener(upload));
+                requests.add(hoot.createRequest().setResource("download")
+                        .setProgressInterval(0, 10).bindListener(download));
+                executeTest(requests, latch);
+
+                assertProgress(upload.mUploads, file.length(), 101);
+                assertTrue(upload.mDownloads.isEmpty());
+                assertProgress(download.mDownloads,
+                        requests.get(1).getResult().getCompressedByteCount(), 11);
+            }
+        });
+        file.delete();
+    }
+
+    public void testResultCache() throws Throwable {
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                HootResultCache cache = new HootResultCache(1024);
+                hoot.setResultCache(cache);
+
+                // a repeat is answered with the same deserialized result
+                HootResult first = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("cache/none")
+                        .setResultTags("none")
+                        .setDeserializer(new TestHootDeserializer<Get>(Get.class)));
+                HootResult second = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("cache/none")
+                        .setDeserializer(new TestHootDeserializer<Get>(Get.class)));
+                assertFalse(first.isFromCache());
+                assertTrue(second.isFromCache());
+                assertSame(first.getDeserializedResult(),
+                        second.getDeserializedResult());
+                assertEquals(1, cache.getHitCount());
+
+                // different headers are a different result
+                Properties headers = new Properties();
+                headers.setProperty("X-Variant", "a");
+                HootResult other = hoot.executeRequestSynchronously(hoot
+                        .createRequest().setResource("cache/none")
+                        .setHeaders(headers)
+                        .setDeserializer(new TestHootDeserializer<Get>(Get.class)));
+                assertFalse(other.isFromCache());
+
+                // and invalidating a tag drops only the results tagged with it
+                cache.invalidateTag("none");
+                assertEquals(1, cache.size());
+                assertFalse(hoot.executeRequestSynchronously(hoot.createRequest()
+                        .setResource("cache/none")
+                        .setDeserializer(new TestHootDeserializer<Get>(Get.class)))
+                        .isFromCache());
+
+                // a hit executed asynchronously completes on the UI thread
+                CountDownLatch latch = new CountDownLatch(1);
+                List<HootRequest> requests = new ArrayList<HootRequest>();
+                requests.add(hoot.createRequest().setResource("cache/none")
+                        .setHeaders(headers)
+                        .setDeserializer(new TestHootDeserializer<Get>(Get.class))
+                        .bindListener(new TestHootListener(latch, false)));
+                executeTest(requests, latch);
+                assertTrue(requests.get(0).getResult().isFromCache());
+                assertEquals(2, cache.getHitCount());
+                assertEquals(3, cache.getMissCount());
+                assertTrue(cache.getWeight() <= cache.getMaxWeight());
+            }
+        });
+    }
+
+    public void testCoalescing() throws Throwable {
+        final Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "500");
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                hoot.setCoalesceRequests(true);
+
+                // identical requests made together share one trip
+                CountDownLatch latch = new CountDownLatch(5);
+                List<HootRequest> requests = new ArrayList<HootRequest>();
+                for (int i = 0; i < 5; i++) {
+                    requests.add(hoot.createRequest().setResource("cache/none")
+                            .setQueryParameters(params)
+                            .setDeserializer(new TestHootDeserializer<Get>(Get.class))
+                            .bindListener(new TestHootListener(latch, true)));
+                }
+                executeTest(requests, latch);
+                for (HootRequest request : requests) {
+                    assertSame(requests.get(0).getResult().getDeserializedResult(),
+                            request.getResult().getDeserializedResult());
+                }
+                assertEquals(4, hoot.getCoalescedRequestCount());
+
+                // cancelling the one in flight sends one of the others instead
+                latch = new CountDownLatch(2);
+                requests.clear();
+                for (int i = 0; i < 3; i++) {
+                    requests.add(hoot.createRequest().setResource("cache/none")
+                            .setQueryParameters(params)
+                            .setDeserializer(new TestHootDeserializer<Get>(Get.class))
+                            .bindListener(new TestHootListener(latch, true)));
+                }
+                final List<HootRequest> cancelled = requests;
+                runTestOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (HootRequest request : cancelled) {
+                            request.execute();
+                        }
+                        cancelled.get(0).cancel();
+                    }
+                });
+                latch.await(200, TimeUnit.SECONDS);
+                assertTrue(requests.get(1).getResult().isSuccess());
+                assertSame(requests.get(1).getResult().getDeserializedResult(),
+                        requests.get(2).getResult().getDeserializedResult());
+                assertEquals(5, hoot.getCoalescedRequestCount());
+            }
+        });
+    }
+
+    public void testStaleWhileRevalidate() throws Throwable {
+        final File directory = getCacheFile("hoot-cache");
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                HootCache cache = new HootCache(directory, 1024 * 1024);
+                cache.evictAll();
+                hoot.setCache(cache);
+
+                // with nothing cached the request runs as usual
+                TestRefreshListener listener = executeStaleWhileRevalidate(hoot,
+                        "cache/fresh");
+                assertEquals(1, listener.mSuccesses.size());
+                assertFalse(listener.mSuccesses.get(0).isFromCache());
+                assertTrue(listener.mRefreshes.isEmpty());
+
+                // the cached response comes first, then the changed one
+                listener = executeStaleWhileRevalidate(hoot, "cache/fresh");
+                assertEquals(1, listener.mSuccesses.size());
+                assertTrue(listener.mSuccesses.get(0).isFromCache());
+                assertEquals(1, listener.mRefreshes.size());
+                assertFalse(listener.mRefreshes.get(0).getResponseString().equals(
+                        listener.mSuccesses.get(0).getResponseString()));
+
+                // but a 304 isn't delivered again
+                executeStaleWhileRevalidate(hoot, "cache/etag");
+                listener = executeStaleWhileRevalidate(hoot, "cache/etag");
+                assertEquals(1, listener.mSuccesses.size());
+                assertTrue(listener.mSuccesses.get(0).isFromCache());
+                assertTrue(listener.mRefreshes.isEmpty());
+                assertEquals(1, cache.getConditionalHitCount());
+
+                // nor is an unchanged body without a validator to say so
+                executeStaleWhileRevalidate(hoot, "cache/static");
+                listener = executeStaleWhileRevalidate(hoot, "cache/static");
+                assertEquals(1, listener.mSuccesses.size());
+                assertTrue(listener.mSuccesses.get(0).isFromCache());
+                assertTrue(listener.mRefreshes.isEmpty());
+            }
+        });
+        new HootCache(directory, 0).evictAll();
+    }
+
+    public void testPrefetch() throws Throwable {
+        final Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "500");
+        forEachTransport(BASE_URL, ALL_TRANSPORTS, new TransportTest() {
+            @Override
+            public void run(Hoot hoot, int transport) throws Throwable {
+                hoot.setResultCache(new HootResultCache(1024 * 1024));
+
+                // a request executed while a prefetch is in flight cancels it
+                HootRequest slow = hoot.createRequest().setResource("cache/slow")
+                        .setQueryParameters(params);
+                HootRequest quick = hoot.createRequest().setResource("cache/quick");
+                hoot.prefetch(slow, quick);
+                Thread.sleep(100);
+                assertTrue(hoot.executeRequestSynchronously(
+                        hoot.createRequest().setResource("cache/none")).isSuccess());
+                assertTrue(slow.isCancelled());
+
+                // and the rest are sent once it's done, into the cache
+                for (int i = 0; i < 50 && hoot.getPrefetchQueueSize() > 0; i++) {
+                    Thread.sleep(100);
+                }
+                assertEquals(0, hoot.getPrefetchQueueSize());
+                assertTrue(hoot.getPrefetchBytes() > 0);
+                assertTrue(hoot.executeRequestSynchronously(
+                        hoot.createRequest().setResource("cache/quick"))
+                        .isFromCache());
+            }
+        });
+    }
+
+    public void testExecutor() throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "500");
+        HootExecutor executor = new HootExecutor(1, 1, 1)
+                .setRejectionPolicy(HootExecutor.REJECT_NEWEST);
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(BASE_URL)
+                .setTransportType(Hoot.TRANSPORT_HTTP_URL_CONNECTION)
+                .setExecutor(executor);
+
+        // one request runs, one waits, and there's no room for the third
+        CountDownLatch latch = new CountDownLatch(3);
+        List<HootRequest> requests = new ArrayList<HootRequest>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(hoot.createRequest().setResource("cache/none")
+                    .setQueryParameters(params)
+                    .bindListener(new TestHootListener(latch, false)));
+        }
+        executeTest(requests, latch);
+        assertTrue(requests.get(0).getResult().isSuccess());
+        assertTrue(requests.get(1).getResult().isSuccess());
+        assertTrue(requests.get(2).getResult().getException() instanceof RejectedExecutionException);
+        assertEquals(2, executor.getStartedCount());
+        assertEquals(1, executor.getRejectedCount());
+        assertTrue(executor.getMaxQueueWaitMillis() >= 400);
+    }
+
+    public void testExecutorReprioritize() throws Throwable {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "500");
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(BASE_URL)
+                .setTransportType(Hoot.TRANSPORT_HTTP_URL_CONNECTION)
+                .setExecutor(new HootExecutor(1, 1, 8).setAging(0));
+
+        // the first request holds the only thread while the rest queue up
+        final List<Integer> completed = Collections
+                .synchronizedList(new ArrayList<Integer>());
+        CountDownLatch latch = new CountDownLatch(4);
+        final List<HootRequest> requests = new ArrayList<HootRequest>();
+        for (int i = 0; i < 4; i++) {
+            final int index = i;
+            requests.add(hoot.createRequest().setResource("cache/none")
+                    .setQueryParameters(params)
+                    .setPriority(HootRequest.PRIORITY_LOW)
+                    .bindListener(new TestHootListener(latch, false) {
+                        @Override
+                        public void onSuccess(HootRequest request,
+                                HootResult result) {
+                            completed.add(index);
+                            super.onSuccess(request, result);
+                        }
+                    }));
+        }
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (HootRequest request : requests) {
+                    request.execute();
+                }
+                requests.get(3).setPriority(HootRequest.PRIORITY_HIGH);
+            }
+        });
+        latch.await(20, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 3, 1, 2), completed);
+    }
+
+    public void testPriorityLatency() throws Throwable {
+        LatencyStats fifo = measurePriorityLatency(HootRequest.PRIORITY_LOW);
+        LatencyStats prioritized = measurePriorityLatency(HootRequest.PRIORITY_HIGH);
+
+        Log.i(TAG, "under low priority load, as low: " + fifo);
+        Log.i(TAG, "under low priority load, as high: " + prioritized);
+
+        assertTrue(prioritized.p99 < fifo.p99);
+    }
+
+    /**
+     * The same measurement on the executor alone, with 20ms jobs for
+     * requests, so it doesn't depend on the network or the test server.
+     */
+    public void testExecutorPriorityLatency() throws Exception {
+        LatencyStats fifo = measureExecutorPriorityLatency(HootRequest.PRIORITY_LOW);
+        LatencyStats prioritized = measureExecutorPriorityLatency(HootRequest.PRIORITY_HIGH);
+
+        Log.i(TAG, "executor under low priority load, as low: " + fifo);
+        Log.i(TAG, "executor under low priority load, as high: " + prioritized);
+
+        assertTrue(prioritized.p99 < fifo.p99);
+    }
+
     // -------------------------------------------------------------------------
     // Helpers
     // -------------------------------------------------------------------------
+    /**
+     * Run a test against a new Hoot for the base URL on each of the
+     * transports in turn.
+     */
+    private void forEachTransport(String baseUrl, int[] transports,
+            TransportTest test) throws Throwable {
+        for (int transport : transports) {
+            Log.v(TAG, "transport " + transport);
+            test.run(Hoot.createInstanceWithBaseUrl(baseUrl).setTransportType(
+                    transport), transport);
+        }
+    }
+
+    private File getCacheFile(String name) {
+        return new File(getInstrumentation().getTargetContext().getCacheDir(),
+                name);
+    }
+
+    /**
+     * A file in the cache directory of random bytes, the same bytes for the
+     * same size every time.
+     */
+    private File createTempFile(String name, int size) throws IOException {
+        File file = getCacheFile(name);
+        Random random = new Random(0);
+        byte[] chunk = new byte[64 * 1024];
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                os.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private JSONObject getUploadStatus(HootResumableUpload upload)
+            throws JSONException {
+        Hoot hoot = Hoot.createInstanceWithBaseUrl(upload.getUploadUrl());
+        HootResult result = hoot.executeRequestSynchronously(hoot
+                .createRequest().get());
+        assertTrue(result.isSuccess());
+        return new JSONObject(result.getResponseString());
+    }
+
+    private static String md5(File file) throws IOException,
+            NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String md5(byte[] data) throws NoSuchAlgorithmException {
+        return toHex(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
     private <T> void executeTest(final HootRequest request, CountDownLatch latch) {
+        List<HootRequest> requests = new ArrayList<HootRequest>();
+        requests.add(request);
+        executeTest(requests, latch);
+    }
+
+    private void executeTest(final List<HootRequest> requests,
+            CountDownLatch latch) {
         try {
             runTestOnUiThread(new Runnable() {
 
                 @Override
                 public void run() {
-                    request.execute();
+                    for (HootRequest request : requests) {
+                        request.execute();
+                    }
                 }
             });
         } catch (Throwable e1) {
@@ -426,6 +1600,252 @@ public class HootTest extends InstrumentationTestCase {
         }
     }
 
+    private TestRefreshListener executeStaleWhileRevalidate(Hoot hoot,
+            String resource) {
+        CountDownLatch latch = new CountDownLatch(1);
+        TestRefreshListener listener = new TestRefreshListener(latch);
+        executeTest(hoot.createRequest().setResource(resource)
+                .setStaleWhileRevalidate(true).bindListener(listener), latch);
+        // the result follows onRequestCompleted
+        getInstrumentation().waitForIdleSync();
+        return listener;
+    }
+
+    /**
+     * Progress only goes forward, is throttled to at most the given number of
+     * events, and ends with the whole body.
+     */
+    private void assertProgress(List<long[]> events, long total,
+            int maxEvents) {
+        assertFalse(events.isEmpty());
+        assertTrue(events.size() <= maxEvents);
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(events.get(i)[0] > events.get(i - 1)[0]);
+        }
+        long[] last = events.get(events.size() - 1);
+        assertEquals(total, last[0]);
+        assertEquals(total, last[1]);
+    }
+
+    private ConnectionStats measureConnections(Hoot hoot) throws Exception {
+        Set<String> connections = new HashSet<String>();
+        long[] latencies = new long[BENCHMARK_ITERATIONS];
+        int reused = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            HootResult result = hoot.executeRequestSynchronously(hoot
+                    .createRequest().get().setResource("connection"));
+            latencies[i] = System.nanoTime() - start;
+            assertTrue(result.isSuccess());
+            String connection = new JSONObject(result.getResponseString())
+                    .getString("connection");
+            if (!connections.add(connection)) {
+                reused++;
+            }
+        }
+        Arrays.sort(latencies);
+
+        ConnectionStats stats = new ConnectionStats();
+        stats.reuseRatio = (float) reused / BENCHMARK_ITERATIONS;
+        stats.p50 = latencies[BENCHMARK_ITERATIONS / 2] / 1000000f;
+        stats.p99 = latencies[BENCHMARK_ITERATIONS * 99 / 100] / 1000000f;
+        return stats;
+    }
+
+    /**
+     * Saturate four threads with low priority requests, then time requests
+     * of the given priority made among them.
+     */
+    private LatencyStats measurePriorityLatency(int priority) throws Throwable {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("latency", "50");
+        final Hoot hoot = Hoot.createInstanceWithBaseUrl(BASE_URL)
+                .setTransportType(Hoot.TRANSPORT_HTTP_URL_CONNECTION)
+                .setExecutor(new HootExecutor(4, 4, 1024));
+        final List<HootRequest> load = new ArrayList<HootRequest>();
+        for (int i = 0; i < BENCHMARK_ITERATIONS * 2; i++) {
+            load.add(hoot.createRequest().setResource("cache/none")
+                    .setQueryParameters(params)
+                    .setPriority(HootRequest.PRIORITY_LOW));
+        }
+        executeTest(load, new CountDownLatch(0));
+
+        int count = BENCHMARK_ITERATIONS / 4;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<TestLatencyListener> listeners = new ArrayList<TestLatencyListener>();
+        for (int i = 0; i < count; i++) {
+            TestLatencyListener listener = new TestLatencyListener(latch);
+            listeners.add(listener);
+            final HootRequest request = hoot.createRequest()
+                    .setResource("cache/none").setQueryParameters(params)
+                    .setPriority(priority).bindListener(listener);
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    request.execute();
+                }
+            });
+            Thread.sleep(40);
+        }
+        latch.await(200, TimeUnit.SECONDS);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (HootRequest request : load) {
+                    request.cancel();
+                }
+            }
+        });
+
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = listeners.get(i).mLatency;
+        }
+        return new LatencyStats(latencies);
+    }
+
+    /**
+     * Keep four threads busy with a queue of low priority jobs, and time jobs
+     * of the given priority executed every 25ms alongside them.
+     */
+    private LatencyStats measureExecutorPriorityLatency(int priority)
+            throws InterruptedException {
+        final HootExecutor executor = new HootExecutor(4, 4, 100000);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread load = new Thread() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    if (executor.getQueueSize() < 200) {
+                        executor.execute(new SleepJob(HootRequest.PRIORITY_LOW, null));
+                    } else {
+                        SystemClock.sleep(1);
+                    }
+                }
+            }
+        };
+        load.start();
+        Thread.sleep(500);
+
+        int count = BENCHMARK_ITERATIONS;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<SleepJob> jobs = new ArrayList<SleepJob>();
+        for (int i = 0; i < count; i++) {
+            SleepJob job = new SleepJob(priority, latch);
+            jobs.add(job);
+            executor.execute(job);
+            Thread.sleep(25);
+        }
+        latch.await(120, TimeUnit.SECONDS);
+        stop.set(true);
+        load.join();
+        executor.shutdown();
+
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = jobs.get(i).mLatency;
+        }
+        return new LatencyStats(latencies);
+    }
+
+    private int getHttp2ResetCount(Hoot hoot) throws JSONException {
+        HootResult result = hoot.executeRequestSynchronously(hoot
+                .createRequest().setResource("resets"));
+        assertTrue(result.isSuccess());
+        return new JSONObject(result.getResponseString()).getInt("cancelled");
+    }
+
+    /**
+     * Connect to a listener that never accepts until its backlog is full, so
+     * later connects to it hang.
+     */
+    private List<Socket> fillBacklog(ServerSocket listener) throws IOException {
+        List<Socket> sockets = new ArrayList<Socket>();
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(listener.getLocalSocketAddress(), 500);
+                sockets.add(socket);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                return sockets;
+            }
+        }
+    }
+
+    private long countHandshakes(HootTlsStats stats) {
+        return stats.getFullHandshakeCount() + stats.getResumedHandshakeCount();
+    }
+
+    private void awaitHandshakes(HootTlsStats stats, long count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (countHandshakes(stats) < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * The TLS test server uses a throwaway self-signed certificate.
+     */
+    private SSLContext createTrustingSSLContext() throws Exception {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain,
+                    String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain,
+                    String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { trustAll }, null);
+        return context;
+    }
+
+    private interface TransportTest {
+        public void run(Hoot hoot, int transport) throws Throwable;
+    }
+
+    private static class ConnectionStats {
+        float reuseRatio;
+        float p50;
+        float p99;
+
+        @Override
+        public String toString() {
+            return "reuse=" + reuseRatio + " p50=" + p50 + "ms p99=" + p99
+                    + "ms";
+        }
+    }
+
+    private static class LatencyStats {
+        final float p50;
+        final float p99;
+
+        /**
+         * @param latencies in nanoseconds, sorted in place.
+         */
+        LatencyStats(long[] latencies) {
+            Arrays.sort(latencies);
+            p50 = latencies[latencies.length / 2] / 1000000f;
+            p99 = latencies[latencies.length * 99 / 100] / 1000000f;
+        }
+
+        @Override
+        public String toString() {
+            return "p50=" + p50 + "ms p99=" + p99 + "ms";
+        }
+    }
+
     private class TestHootListener implements HootRequestListener {
         CountDownLatch mLatch = null;
         boolean mShouldHaveDeserializedResult;
@@ -468,6 +1888,106 @@ public class HootTest extends InstrumentationTestCase {
         }
     }
 
+    private class TestRefreshListener extends TestHootListener implements
+            HootRefreshListener {
+        List<HootResult> mSuccesses = new ArrayList<HootResult>();
+        List<HootResult> mRefreshes = new ArrayList<HootResult>();
+
+        public TestRefreshListener(CountDownLatch latch) {
+            super(latch, false);
+        }
+
+        @Override
+        public void onSuccess(HootRequest request, HootResult result) {
+            mSuccesses.add(result);
+        }
+
+        @Override
+        public void onFailure(HootRequest request, HootResult result) {
+            Log.v(TAG, "onFailure");
+        }
+
+        @Override
+        public void onRequestCompleted(HootRequest request) {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onRefreshed(HootRequest request, HootResult result) {
+            mRefreshes.add(result);
+        }
+    }
+
+    /**
+     * Stands in for a 20ms request on the executor.
+     */
+    private static class SleepJob implements HootExecutor.Job {
+        final int mPriority;
+        final CountDownLatch mLatch;
+        final long mCreated = System.nanoTime();
+        volatile long mLatency;
+
+        SleepJob(int priority, CountDownLatch latch) {
+            mPriority = priority;
+            mLatch = latch;
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void onRejected(RejectedExecutionException e) {
+            fail(e.getMessage());
+        }
+
+        @Override
+        public void run() {
+            SystemClock.sleep(20);
+            mLatency = System.nanoTime() - mCreated;
+            if (mLatch != null) {
+                mLatch.countDown();
+            }
+        }
+    }
+
+    private class TestLatencyListener extends TestHootListener {
+        long mStart = System.nanoTime();
+        long mLatency;
+
+        public TestLatencyListener(CountDownLatch latch) {
+            super(latch, false);
+        }
+
+        @Override
+        public void onRequestCompleted(HootRequest request) {
+            mLatency = System.nanoTime() - mStart;
+        }
+    }
+
+    private class TestProgressListener extends TestHootListener implements
+            HootProgressListener {
+        List<long[]> mUploads = new ArrayList<long[]>();
+        List<long[]> mDownloads = new ArrayList<long[]>();
+
+        public TestProgressListener(CountDownLatch latch) {
+            super(latch, false);
+        }
+
+        @Override
+        public void onUploadProgress(HootRequest request, long bytes,
+                long total) {
+            mUploads.add(new long[] { bytes, total });
+        }
+
+        @Override
+        public void onDownloadProgress(HootRequest request, long bytes,
+                long total) {
+            mDownloads.add(new long[] { bytes, total });
+        }
+    }
+
     /**
      * Convenient if ugly. Don't use for production code, only for unit tests.
      * 